@@ -0,0 +1,393 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Expands abstract patterns as an (included) schema streams through it, as
+ * <tt>iso_abstract_expand.xsl</tt> would. Each abstract pattern is recorded and dropped; each
+ * pattern with <tt>is-a</tt> is replaced by a copy of the abstract pattern it names, with the
+ * instance's id, in which every <tt>$name</tt> of a parameter is replaced by its value in the
+ * <tt>test</tt>, <tt>context</tt> and <tt>select</tt> attributes and in text. Parameters are
+ * substituted in the order the instance declares them.
+ * <p>
+ * Everything else passes straight through, except that once an instance names an abstract
+ * pattern not yet seen, the patterns following it are held back until the abstract pattern
+ * arrives, so that their order is kept. An instance whose abstract pattern never arrives is
+ * dropped.
+ */
+public class AbstractPatternFilter extends XMLFilterImpl
+{
+    static Logger logger = LogManager.getLogger( AbstractPatternFilter.class.getName());
+
+    // abstract patterns by id
+    private HashMap< String, Element > abstractPatterns = new HashMap< String, Element >();
+    // patterns (and the text between them) held back behind an unresolved instance
+    private List< Object > held = new ArrayList< Object >();
+    // the elements being recorded, innermost last
+    private List< Element > open = new ArrayList< Element >();
+    // prefix mappings for the next element to start
+    private List< String[] > mappings = new ArrayList< String[] >();
+    // the number of coming end prefix mappings which belong to recorded elements
+    private int swallowedEnds;
+    private int generatedIds;
+    private int depth;
+
+
+    @Override
+    public void startPrefixMapping( String prefix, String uri ) throws SAXException
+    {
+        mappings.add( new String[] { prefix, uri } );
+    }
+
+
+    @Override
+    public void endPrefixMapping( String prefix ) throws SAXException
+    {
+        if( swallowedEnds > 0 )
+        {
+            swallowedEnds--;
+            return;
+        }
+        super.endPrefixMapping( prefix );
+    }
+
+
+    @Override
+    public void startElement( String uri, String localName, String name, Attributes atts )
+            throws SAXException
+    {
+        depth++;
+
+        boolean record = !open.isEmpty()
+                || depth == 2
+                && ( !held.isEmpty() || uri.equals( Utils.SCHEMATRON_NAME )
+                        && localName.equals( "pattern" )
+                        && ( "true".equals( atts.getValue( "abstract" ) ) || atts
+                                .getValue( "is-a" ) != null ) );
+
+        if( record )
+        {
+            Element e = new Element( uri, localName, name, new AttributesImpl( atts ),
+                    mappings );
+            if( !open.isEmpty() )
+            {
+                open.get( open.size() - 1 ).children.add( e );
+            }
+            open.add( e );
+        }
+        else
+        {
+            for( int i = 0; i < mappings.size(); i++ )
+            {
+                super.startPrefixMapping( mappings.get( i )[ 0 ], mappings.get( i )[ 1 ] );
+            }
+            super.startElement( uri, localName, name, atts );
+        }
+        mappings = new ArrayList< String[] >();
+    }
+
+
+    @Override
+    public void endElement( String uri, String localName, String name ) throws SAXException
+    {
+        if( !open.isEmpty() )
+        {
+            Element e = open.remove( open.size() - 1 );
+            swallowedEnds += e.mappings.size();
+            if( open.isEmpty() )
+            {
+                recorded( e );
+            }
+        }
+        else
+        {
+            if( depth == 1 )
+            {
+                release( true );
+            }
+            super.endElement( uri, localName, name );
+        }
+
+        depth--;
+    }
+
+
+    @Override
+    public void characters( char[] ch, int start, int length ) throws SAXException
+    {
+        if( !open.isEmpty() )
+        {
+            open.get( open.size() - 1 ).addText( ch, start, length );
+        }
+        else if( !held.isEmpty() )
+        {
+            held.add( new String( ch, start, length ) );
+        }
+        else
+        {
+            super.characters( ch, start, length );
+        }
+    }
+
+
+    @Override
+    public void processingInstruction( String target, String data ) throws SAXException
+    {
+        // as the meta-stylesheet, which drops them, would within patterns
+        if( open.isEmpty() && held.isEmpty() )
+        {
+            super.processingInstruction( target, data );
+        }
+    }
+
+
+    /**
+     * Handles a pattern recorded in its entirety.
+     */
+    private void recorded( Element pattern ) throws SAXException
+    {
+        if( pattern.isPattern() && "true".equals( pattern.atts.getValue( "abstract" ) ) )
+        {
+            String id = pattern.atts.getValue( "id" );
+            if( id == null || abstractPatterns.containsKey( id ) )
+            {
+                logger.warn( "Ignoring abstract pattern without a unique id: " + id );
+            }
+            else
+            {
+                abstractPatterns.put( id, pattern );
+            }
+        }
+        else
+        {
+            held.add( pattern );
+        }
+
+        release( false );
+    }
+
+
+    /**
+     * Writes the patterns held back, up to the first whose abstract pattern has yet to be seen
+     * or, at the end of the schema, all of them.
+     */
+    private void release( boolean end ) throws SAXException
+    {
+        while( !held.isEmpty() )
+        {
+            Object item = held.get( 0 );
+
+            if( item instanceof String )
+            {
+                char[] ch = ( ( String )item ).toCharArray();
+                super.characters( ch, 0, ch.length );
+            }
+            else
+            {
+                Element pattern = ( Element )item;
+                String isA = pattern.isPattern() ? pattern.atts.getValue( "is-a" ) : null;
+
+                if( isA == null )
+                {
+                    write( pattern, null );
+                }
+                else if( abstractPatterns.containsKey( isA ) )
+                {
+                    writeInstance( pattern, abstractPatterns.get( isA ) );
+                }
+                else if( end )
+                {
+                    logger.warn( "Dropping pattern " + pattern.atts.getValue( "id" )
+                            + ", as there is no abstract pattern " + isA );
+                }
+                else
+                {
+                    return;
+                }
+            }
+
+            held.remove( 0 );
+        }
+    }
+
+
+    /**
+     * Writes the abstract pattern with the instance's id and parameters substituted.
+     */
+    private void writeInstance( Element instance, Element abstractPattern )
+            throws SAXException
+    {
+        List< String[] > params = new ArrayList< String[] >();
+        for( int i = 0; i < instance.children.size(); i++ )
+        {
+            Object child = instance.children.get( i );
+            if( child instanceof Element && ( ( Element )child ).uri.equals( Utils.SCHEMATRON_NAME )
+                    && ( ( Element )child ).localName.equals( "param" ) )
+            {
+                Attributes atts = ( ( Element )child ).atts;
+                String value = atts.getValue( "value" );
+                if( atts.getValue( "name" ) != null && atts.getValue( "name" ).length() != 0 )
+                {
+                    params.add( new String[] { "$" + atts.getValue( "name" ),
+                            value == null ? "" : value } );
+                }
+            }
+        }
+
+        String id = instance.atts.getValue( "id" );
+        if( id == null )
+        {
+            id = "_probatron_instance_" + ( ++generatedIds ) + "_"
+                    + instance.atts.getValue( "is-a" );
+        }
+        logger.debug( "Expanding pattern " + id + " from abstract pattern "
+                + abstractPattern.atts.getValue( "id" ) );
+
+        // only the id is kept of the pattern's attributes
+        AttributesImpl atts = new AttributesImpl();
+        atts.addAttribute( "", "id", "id", "CDATA", id );
+        Element pattern = new Element( abstractPattern.uri, abstractPattern.localName,
+                abstractPattern.name, atts, abstractPattern.mappings );
+        pattern.children = abstractPattern.children;
+        write( pattern, params );
+    }
+
+
+    /**
+     * Writes a recorded element, substituting the parameters passed, if any.
+     */
+    private void write( Element e, List< String[] > params ) throws SAXException
+    {
+        AttributesImpl atts = e.atts;
+        if( params != null )
+        {
+            atts = new AttributesImpl( atts );
+            for( int i = 0; i < atts.getLength(); i++ )
+            {
+                String attName = atts.getQName( i );
+                if( attName.equals( "test" ) || attName.equals( "context" )
+                        || attName.equals( "select" ) )
+                {
+                    atts.setValue( i, substitute( atts.getValue( i ), params ) );
+                }
+            }
+        }
+
+        for( int i = 0; i < e.mappings.size(); i++ )
+        {
+            super.startPrefixMapping( e.mappings.get( i )[ 0 ], e.mappings.get( i )[ 1 ] );
+        }
+        super.startElement( e.uri, e.localName, e.name, atts );
+
+        for( int i = 0; i < e.children.size(); i++ )
+        {
+            Object child = e.children.get( i );
+            if( child instanceof Element )
+            {
+                write( ( Element )child, params );
+            }
+            else
+            {
+                String text = child.toString();
+                if( params != null )
+                {
+                    text = substitute( text, params );
+                }
+                char[] ch = text.toCharArray();
+                super.characters( ch, 0, ch.length );
+            }
+        }
+
+        super.endElement( e.uri, e.localName, e.name );
+        for( int i = e.mappings.size() - 1; i >= 0; i-- )
+        {
+            super.endPrefixMapping( e.mappings.get( i )[ 0 ] );
+        }
+    }
+
+
+    /**
+     * @return the text with each parameter reference replaced in turn by its value
+     */
+    private static String substitute( String text, List< String[] > params )
+    {
+        for( int i = 0; i < params.size(); i++ )
+        {
+            text = text.replace( params.get( i )[ 0 ], params.get( i )[ 1 ] );
+        }
+        return text;
+    }
+
+
+    private static class Element
+    {
+        final String uri;
+        final String localName;
+        final String name;
+        final AttributesImpl atts;
+        final List< String[] > mappings;
+        // Element or StringBuilder
+        List< Object > children = new ArrayList< Object >();
+
+
+        Element( String uri, String localName, String name, AttributesImpl atts,
+                List< String[] > mappings )
+        {
+            this.uri = uri;
+            this.localName = localName;
+            this.name = name;
+            this.atts = atts;
+            this.mappings = mappings;
+        }
+
+
+        boolean isPattern()
+        {
+            return uri.equals( Utils.SCHEMATRON_NAME ) && localName.equals( "pattern" );
+        }
+
+
+        void addText( char[] ch, int start, int length )
+        {
+            // adjacent text is merged, so that a reference split across calls is still found
+            Object last = children.isEmpty() ? null : children.get( children.size() - 1 );
+            if( last instanceof StringBuilder )
+            {
+                ( ( StringBuilder )last ).append( ch, start, length );
+            }
+            else
+            {
+                children.add( new StringBuilder().append( ch, start, length ) );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Removes the &lt;svrl:active-pattern> literal result elements, with the &lt;xsl:attribute>
+ * instructions which give them their attributes, from the validating XSLT as the skeleton
+ * generates it, keeping the rest of their content. The XSLT then writes a compact report's
+ * SVRL directly, rather than writing elements only for them to be filtered out of the report.
+ */
+public class ActivePatternFilter extends XMLFilterImpl
+{
+    private final static String XSLT_NAME = "http://www.w3.org/1999/XSL/Transform";
+
+    private int depth;
+    // the depth of the active-pattern element being removed, or 0 if there is none
+    private int patternDepth;
+    // the depth of the attribute instruction being removed, or 0 if there is none
+    private int skipDepth;
+
+
+    @Override
+    public void startElement( String uri, String localName, String name, Attributes atts )
+            throws SAXException
+    {
+        depth++;
+
+        if( skipDepth != 0 )
+        {
+            return;
+        }
+        else if( patternDepth == 0 && uri.equals( Utils.SVRL_NAME )
+                && localName.equals( "active-pattern" ) )
+        {
+            patternDepth = depth;
+            return;
+        }
+        else if( patternDepth == depth - 1 && uri.equals( XSLT_NAME )
+                && localName.equals( "attribute" ) )
+        {
+            skipDepth = depth;
+            return;
+        }
+
+        super.startElement( uri, localName, name, atts );
+    }
+
+
+    @Override
+    public void endElement( String uri, String localName, String name ) throws SAXException
+    {
+        boolean skipped = skipDepth != 0 || patternDepth == depth;
+        if( skipDepth == depth )
+        {
+            skipDepth = 0;
+        }
+        else if( patternDepth == depth )
+        {
+            patternDepth = 0;
+        }
+        depth--;
+
+        if( !skipped )
+        {
+            super.endElement( uri, localName, name );
+        }
+    }
+
+
+    @Override
+    public void characters( char[] ch, int start, int length ) throws SAXException
+    {
+        if( skipDepth == 0 )
+        {
+            super.characters( ch, start, length );
+        }
+    }
+
+}
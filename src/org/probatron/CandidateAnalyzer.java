@@ -19,147 +19,342 @@
 
 package org.probatron;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.ContentHandler;
-import org.xml.sax.Locator;
-import org.xml.sax.SAXException;
-import org.xml.sax.ext.LexicalHandler;
-
-public class CandidateAnalyzer implements LexicalHandler, ContentHandler
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads the identifiers of a candidate's DTD from its document type declaration. Only the
+ * prolog is read, and no more than {@link #MAX_PROLOG_LENGTH} characters of it: the
+ * declaration must come before the root element, so reading stops at the root's start tag, or
+ * at the declaration's external identifier.
+ */
+public class CandidateAnalyzer
 {
-    private ValidationContext validationContext;
-
-
-    public CandidateAnalyzer( ValidationContext vc )
-    {
-        this.validationContext = vc;
-    }
-
-
-    public void comment( char[] ch, int start, int length ) throws SAXException
-    {
-    // TODO Auto-generated method stub
-
-    }
-
-
-    public void endCDATA() throws SAXException
-    {
-    // TODO Auto-generated method stub
-
-    }
-
-
-    public void endDTD() throws SAXException
-    {
-    // TODO Auto-generated method stub
-
-    }
+    static Logger logger = LogManager.getLogger( CandidateAnalyzer.class.getName() );
 
+    /** the most characters of prolog read in search of the document type declaration */
+    public final static int MAX_PROLOG_LENGTH = 64 * 1024;
 
-    public void endEntity( String name ) throws SAXException
-    {
-    // TODO Auto-generated method stub
-
-    }
-
-
-    public void startCDATA() throws SAXException
-    {
-    // TODO Auto-generated method stub
+    private final static Pattern ENCODING = Pattern
+            .compile( "encoding\\s*=\\s*[\"']([A-Za-z][A-Za-z0-9._\\-]*)[\"']" );
 
-    }
+    private ValidationContext validationContext;
+    private Reader reader;
+    private int read;
+    private int pushedBack = -1;
 
 
-    public void startDTD( String name, String publicId, String systemId ) throws SAXException
+    public CandidateAnalyzer( ValidationContext vc )
     {
-        validationContext.setDtdPublicId( publicId );
-        validationContext.setDtdSystemId( systemId );
+        this.validationContext = vc;
     }
 
 
-    public void startEntity( String name ) throws SAXException
+    /**
+     * Reads the prolog of the document located at the passed URL.
+     */
+    public void analyze( URL url ) throws IOException
     {
-    // TODO Auto-generated method stub
-
+        CandidateSource source = new CandidateSource( url );
+        InputStream is = source.openStream();
+        try
+        {
+            analyze( is );
+        }
+        finally
+        {
+            Utils.streamClose( is );
+            source.close();
+        }
     }
 
 
-    public void characters( char[] ch, int start, int length ) throws SAXException
+    /**
+     * Reads the prolog of the document of the passed stream, which is left open, and partly
+     * read.
+     */
+    public void analyze( InputStream is ) throws IOException
     {
-    // TODO Auto-generated method stub
-
-    }
-
+        long start = System.currentTimeMillis();
+        BufferedInputStream in = new BufferedInputStream( is );
+        this.reader = new InputStreamReader( in, detectEncoding( in ) );
+        this.read = 0;
 
-    public void endDocument() throws SAXException
-    {
-    // TODO Auto-generated method stub
+        scanProlog();
 
+        logger.debug( "Read " + read + " characters of prolog in (ms): "
+                + ( System.currentTimeMillis() - start ) );
     }
 
 
-    public void endElement( String uri, String localName, String qName ) throws SAXException
+    /**
+     * Determines the encoding of a document from its byte order mark or its first characters,
+     * and then from its XML declaration, as the XML Recommendation (appendix F) describes,
+     * leaving the stream after the byte order mark.
+     */
+    private static Charset detectEncoding( BufferedInputStream in ) throws IOException
     {
-    // TODO Auto-generated method stub
-
+        in.mark( 4 );
+        byte[] b = new byte[ 4 ];
+        int n = 0;
+        for( int r; n < 4 && ( r = in.read( b, n, 4 - n ) ) != -1; )
+        {
+            n += r;
+        }
+        in.reset();
+
+        if( n >= 2 && ( b[ 0 ] & 0xff ) == 0xfe && ( b[ 1 ] & 0xff ) == 0xff )
+        {
+            in.skip( 2 );
+            return StandardCharsets.UTF_16BE;
+        }
+        if( n >= 2 && ( b[ 0 ] & 0xff ) == 0xff && ( b[ 1 ] & 0xff ) == 0xfe )
+        {
+            in.skip( 2 );
+            return StandardCharsets.UTF_16LE;
+        }
+        if( n >= 3 && ( b[ 0 ] & 0xff ) == 0xef && ( b[ 1 ] & 0xff ) == 0xbb
+                && ( b[ 2 ] & 0xff ) == 0xbf )
+        {
+            in.skip( 3 );
+            return StandardCharsets.UTF_8;
+        }
+        if( n == 4 && b[ 0 ] == 0 && b[ 1 ] == '<' && b[ 2 ] == 0 && b[ 3 ] == '?' )
+        {
+            return StandardCharsets.UTF_16BE;
+        }
+        if( n == 4 && b[ 0 ] == '<' && b[ 1 ] == 0 && b[ 2 ] == '?' && b[ 3 ] == 0 )
+        {
+            return StandardCharsets.UTF_16LE;
+        }
+
+        // an encoding compatible with ASCII, which the XML declaration, if any, names
+        in.mark( 1024 );
+        byte[] decl = new byte[ 1024 ];
+        n = 0;
+        for( int r; n < decl.length && ( r = in.read( decl, n, decl.length - n ) ) != -1; )
+        {
+            n += r;
+        }
+        in.reset();
+
+        String s = new String( decl, 0, n, StandardCharsets.ISO_8859_1 );
+        int end = s.indexOf( "?>" );
+        if( s.startsWith( "<?xml" ) && end != -1 )
+        {
+            Matcher m = ENCODING.matcher( s.substring( 0, end ) );
+            if( m.find() && Charset.isSupported( m.group( 1 ) )
+                    && !m.group( 1 ).toUpperCase().startsWith( "UTF-16" ) )
+            {
+                return Charset.forName( m.group( 1 ) );
+            }
+        }
+        return StandardCharsets.UTF_8;
     }
 
 
-    public void endPrefixMapping( String prefix ) throws SAXException
+    /**
+     * Skips the XML declaration, comments, processing instructions and whitespace up to the
+     * document type declaration, whose identifiers are recorded, or the root element.
+     */
+    private void scanProlog() throws IOException
     {
-    // TODO Auto-generated method stub
-
+        while( true )
+        {
+            skipWhitespace();
+            if( next() != '<' )
+            {
+                return;
+            }
+
+            int c = next();
+            if( c == '?' )
+            {
+                skipPast( "?>" );
+            }
+            else if( c == '!' && lookingAt( "--" ) )
+            {
+                skipPast( "-->" );
+            }
+            else if( c == '!' && lookingAt( "DOCTYPE" ) )
+            {
+                scanDoctype();
+                return;
+            }
+            else
+            {
+                // the root element, or not well-formed
+                return;
+            }
+        }
     }
 
 
-    public void ignorableWhitespace( char[] ch, int start, int length ) throws SAXException
+    private void scanDoctype() throws IOException
     {
-    // TODO Auto-generated method stub
-
+        if( !skipWhitespace() )
+        {
+            return;
+        }
+        for( int c = next(); c != -1 && !isWhitespace( c ); c = next() )
+        {
+            if( c == '[' || c == '>' )
+            {
+                return;
+            }
+        }
+        skipWhitespace();
+
+        String publicId = null;
+        if( lookingAt( "PUBLIC" ) )
+        {
+            skipWhitespace();
+            publicId = readLiteral();
+            if( publicId == null || !skipWhitespace() )
+            {
+                return;
+            }
+        }
+        else if( !lookingAt( "SYSTEM" ) || !skipWhitespace() )
+        {
+            return;
+        }
+
+        String systemId = readLiteral();
+        if( systemId != null )
+        {
+            // public identifiers are normalized, as a parser reports them
+            validationContext.setDtdPublicId( publicId == null ? null : publicId.trim()
+                    .replaceAll( "\\s+", " " ) );
+            validationContext.setDtdSystemId( systemId );
+        }
     }
 
 
-    public void processingInstruction( String target, String data ) throws SAXException
+    /**
+     * @return the content of the quoted literal next in the prolog, or null if there is none
+     */
+    private String readLiteral() throws IOException
     {
-    // TODO Auto-generated method stub
-
+        int quote = next();
+        if( quote != '"' && quote != '\'' )
+        {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for( int c = next(); c != quote; c = next() )
+        {
+            if( c == -1 )
+            {
+                return null;
+            }
+            sb.append( ( char )c );
+        }
+        return sb.toString();
     }
 
 
-    public void setDocumentLocator( Locator locator )
+    /**
+     * @return whether the passed string is next in the prolog, which is consumed if so
+     */
+    private boolean lookingAt( String s ) throws IOException
     {
-    // TODO Auto-generated method stub
-
+        for( int i = 0; i < s.length(); i++ )
+        {
+            int c = next();
+            if( c != s.charAt( i ) )
+            {
+                // only the first character can be read again; a mismatch after it is not
+                // well-formed anyway
+                if( i == 0 )
+                {
+                    pushedBack = c;
+                }
+                return false;
+            }
+        }
+        return true;
     }
 
 
-    public void skippedEntity( String name ) throws SAXException
+    private void skipPast( String s ) throws IOException
     {
-    // TODO Auto-generated method stub
-
+        int matched = 0;
+        for( int c = next(); c != -1; c = next() )
+        {
+            if( c == s.charAt( matched ) )
+            {
+                if( ++matched == s.length() )
+                {
+                    return;
+                }
+            }
+            else
+            {
+                matched = c == s.charAt( 0 ) ? 1 : 0;
+            }
+        }
     }
 
 
-    public void startDocument() throws SAXException
+    /**
+     * @return whether any whitespace was skipped
+     */
+    private boolean skipWhitespace() throws IOException
     {
-    // TODO Auto-generated method stub
-
+        boolean skipped = false;
+        int c = next();
+        while( isWhitespace( c ) )
+        {
+            skipped = true;
+            c = next();
+        }
+        pushedBack = c;
+        return skipped;
     }
 
 
-    public void startElement( String uri, String localName, String qName, Attributes atts )
-            throws SAXException
+    private static boolean isWhitespace( int c )
     {
-    // TODO Auto-generated method stub
-
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
     }
 
 
-    public void startPrefixMapping( String prefix, String uri ) throws SAXException
+    /**
+     * @return the next character of the prolog, or -1 at the end of the document or of the
+     *         characters which may be read
+     */
+    private int next() throws IOException
     {
-    // TODO Auto-generated method stub
-
+        if( pushedBack != -1 )
+        {
+            int c = pushedBack;
+            pushedBack = -1;
+            return c;
+        }
+        if( read >= MAX_PROLOG_LENGTH )
+        {
+            if( read++ == MAX_PROLOG_LENGTH )
+            {
+                logger.debug( "No document type declaration in the first "
+                        + MAX_PROLOG_LENGTH + " characters" );
+            }
+            return -1;
+        }
+        read++;
+        return reader.read();
     }
 
 }
@@ -0,0 +1,272 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The bytes of a candidate document, which every pass over it reads from. A local file is read
+ * through a {@link FileChannel} rather than a {@link URLConnection}: in one read if small, and
+ * otherwise by mapping it into memory, so that the operating system's page cache is read
+ * directly, and each pass shares the mapping rather than reading the file again. Documents at
+ * other URLs are streamed from a connection opened for each pass.
+ */
+public class CandidateSource implements Closeable
+{
+    static Logger logger = LogManager.getLogger( CandidateSource.class.getName() );
+
+    /** the size, in bytes, from which a local file is mapped rather than read */
+    public final static long MAP_THRESHOLD = 1024 * 1024;
+
+    // the largest region one buffer can map
+    private final static long MAX_REGION = Integer.MAX_VALUE;
+
+    private final URL url;
+    private FileChannel channel;
+    private ByteBuffer[] buffers;
+
+
+    /**
+     * Opens the candidate at the passed URL, which is read at once if it is a local file.
+     */
+    public CandidateSource( URL url ) throws IOException
+    {
+        this.url = url;
+
+        File file = toFile( url );
+        if( file != null )
+        {
+            open( file.toPath() );
+        }
+    }
+
+
+    /**
+     * Opens the candidate in the passed local file.
+     */
+    public CandidateSource( Path path ) throws IOException
+    {
+        this.url = path.toUri().toURL();
+        open( path );
+    }
+
+
+    private void open( Path path ) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        this.channel = FileChannel.open( path, StandardOpenOption.READ );
+        long size = channel.size();
+
+        if( size < MAP_THRESHOLD )
+        {
+            ByteBuffer buffer = ByteBuffer.allocate( ( int )size );
+            while( buffer.hasRemaining() && channel.read( buffer ) != -1 )
+            {
+                // read on
+            }
+            buffer.flip();
+            this.buffers = new ByteBuffer[] { buffer };
+            channel.close();
+            this.channel = null;
+        }
+        else
+        {
+            // a buffer can hold no more than 2GB, so larger files are mapped region by region
+            int regions = ( int )( ( size + MAX_REGION - 1 ) / MAX_REGION );
+            this.buffers = new ByteBuffer[ regions ];
+            for( int i = 0; i < regions; i++ )
+            {
+                long position = i * MAX_REGION;
+                buffers[ i ] = channel.map( FileChannel.MapMode.READ_ONLY, position, Math.min(
+                        MAX_REGION, size - position ) );
+            }
+        }
+
+        logger.debug( ( channel == null ? "Read " : "Mapped " ) + size + " bytes in (ms): "
+                + ( System.currentTimeMillis() - start ) + " " + path );
+    }
+
+
+    /**
+     * @return the local file the passed URL locates, or null if it does not locate one
+     */
+    static File toFile( URL url )
+    {
+        if( !url.getProtocol().equals( "file" )
+                || ( url.getHost() != null && url.getHost().length() != 0 ) )
+        {
+            return null;
+        }
+
+        try
+        {
+            File file = new File( url.toURI() );
+            return file.isFile() ? file : null;
+        }
+        catch( URISyntaxException e )
+        {
+            return null;
+        }
+        catch( IllegalArgumentException e )
+        {
+            return null;
+        }
+    }
+
+
+    public URL getUrl()
+    {
+        return url;
+    }
+
+
+    /**
+     * @return whether the candidate's bytes are held, or mapped, by this source, rather than
+     *         read from a connection for each pass
+     */
+    public boolean isShared()
+    {
+        return buffers != null;
+    }
+
+
+    /**
+     * @return a stream of the candidate's bytes from the start, for one pass
+     */
+    public InputStream openStream() throws IOException
+    {
+        if( buffers == null )
+        {
+            URLConnection conn = url.openConnection();
+            conn.connect();
+            return conn.getInputStream();
+        }
+
+        ByteBuffer[] views = new ByteBuffer[ buffers.length ];
+        for( int i = 0; i < buffers.length; i++ )
+        {
+            views[ i ] = buffers[ i ].duplicate();
+        }
+        return new BufferInputStream( views );
+    }
+
+
+    /**
+     * Releases the file; the memory mapped is released once no stream reads it.
+     */
+    public void close() throws IOException
+    {
+        if( channel != null )
+        {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Reads a sequence of buffers as one stream.
+     */
+    private static class BufferInputStream extends InputStream
+    {
+        private ByteBuffer[] buffers;
+        private int current;
+
+
+        BufferInputStream( ByteBuffer[] buffers )
+        {
+            this.buffers = buffers;
+        }
+
+
+        /**
+         * @return the buffer read from next, or null at the end of the last
+         */
+        private ByteBuffer buffer()
+        {
+            while( current < buffers.length && !buffers[ current ].hasRemaining() )
+            {
+                current++;
+            }
+            return current < buffers.length ? buffers[ current ] : null;
+        }
+
+
+        @Override
+        public int read()
+        {
+            ByteBuffer buffer = buffer();
+            return buffer == null ? -1 : buffer.get() & 0xff;
+        }
+
+
+        @Override
+        public int read( byte[] b, int off, int len )
+        {
+            if( len == 0 )
+            {
+                return 0;
+            }
+            ByteBuffer buffer = buffer();
+            if( buffer == null )
+            {
+                return -1;
+            }
+            int n = Math.min( len, buffer.remaining() );
+            buffer.get( b, off, n );
+            return n;
+        }
+
+
+        @Override
+        public long skip( long n )
+        {
+            long skipped = 0;
+            for( ByteBuffer buffer = buffer(); buffer != null && skipped < n; buffer = buffer() )
+            {
+                int step = ( int )Math.min( n - skipped, buffer.remaining() );
+                buffer.position( buffer.position() + step );
+                skipped += step;
+            }
+            return skipped;
+        }
+
+
+        @Override
+        public int available()
+        {
+            ByteBuffer buffer = buffer();
+            return buffer == null ? 0 : buffer.remaining();
+        }
+    }
+
+}
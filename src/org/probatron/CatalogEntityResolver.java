@@ -0,0 +1,213 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.EntityResolver2;
+import org.xmlresolver.CatalogResolver;
+import org.xmlresolver.ResolvedResource;
+import org.xmlresolver.ResolverFeature;
+import org.xmlresolver.XMLResolverConfiguration;
+
+/**
+ * Resolves the external DTD subsets and parameter entities of the documents parsed, first
+ * against XML catalogs, so that DTDs with public identifiers can be read from local copies
+ * rather than over the network, and then from their system identifiers. Each DTD is read once
+ * per process: its bytes are cached in memory and shared by every parse, whichever session it
+ * belongs to. Other external entities are left to the parser.
+ */
+public class CatalogEntityResolver implements EntityResolver2
+{
+    static Logger logger = LogManager.getLogger( CatalogEntityResolver.class.getName() );
+
+    /** the feature by which a parser is told not to read the external DTD subset */
+    public final static String FEATURE_LOAD_EXTERNAL_DTD = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+
+    private final CatalogResolver catalogResolver;
+    // the DTDs read, by public and absolute system identifier
+    private final HashMap< String, CachedEntity > cache = new HashMap< String, CachedEntity >();
+
+
+    /**
+     * @param catalogFiles
+     *            the catalogs to resolve against, or null for those named by the
+     *            <tt>xml.catalog.files</tt> system property
+     */
+    public CatalogEntityResolver( List< String > catalogFiles )
+    {
+        XMLResolverConfiguration config = new XMLResolverConfiguration();
+        if( catalogFiles != null )
+        {
+            config.setFeature( ResolverFeature.CATALOG_FILES, catalogFiles );
+        }
+        // only entities in the catalogs are resolved by it; it fetches nothing itself
+        config.setFeature( ResolverFeature.ALWAYS_RESOLVE, Boolean.FALSE );
+        this.catalogResolver = new CatalogResolver( config );
+        logger.debug( "Resolving against catalogs: "
+                + config.getFeature( ResolverFeature.CATALOG_FILES ) );
+    }
+
+
+    public InputSource resolveEntity( String publicId, String systemId ) throws SAXException,
+            IOException
+    {
+        // called only as a plain EntityResolver, through a filter, when the name is unknown
+        return resolveEntity( "[dtd]", publicId, null, systemId );
+    }
+
+
+    public InputSource resolveEntity( String name, String publicId, String baseURI,
+            String systemId ) throws SAXException, IOException
+    {
+        // the JDK's parser names the external subset null, rather than "[dtd]"
+        if( name == null )
+        {
+            name = "[dtd]";
+        }
+        else if( !name.equals( "[dtd]" ) && !name.startsWith( "%" ) )
+        {
+            return null;
+        }
+
+        String absolute = absolutize( baseURI, systemId );
+        String key = publicId + " " + absolute;
+
+        CachedEntity entity;
+        synchronized( cache )
+        {
+            entity = cache.get( key );
+        }
+
+        if( entity == null )
+        {
+            entity = read( name, publicId, baseURI, systemId, absolute );
+            if( entity == null )
+            {
+                return null;
+            }
+            synchronized( cache )
+            {
+                cache.put( key, entity );
+            }
+        }
+
+        InputSource is = new InputSource( new ByteArrayInputStream( entity.bytes ) );
+        is.setPublicId( publicId );
+        is.setSystemId( entity.systemId );
+        return is;
+    }
+
+
+    public InputSource getExternalSubset( String name, String baseURI ) throws SAXException,
+            IOException
+    {
+        return null;
+    }
+
+
+    /**
+     * Reads an entity from the catalogs' copy, or from its system identifier.
+     * 
+     * @return the entity read, or null if it should be left to the parser
+     */
+    private CachedEntity read( String name, String publicId, String baseURI, String systemId,
+            String absolute ) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        InputStream in = null;
+        String resolvedId = absolute;
+
+        ResolvedResource resolved = catalogResolver.resolveEntity( name, publicId, baseURI,
+                systemId );
+        if( resolved != null && resolved.getInputStream() != null )
+        {
+            in = resolved.getInputStream();
+            if( resolved.getResolvedURI() != null )
+            {
+                resolvedId = resolved.getResolvedURI().toString();
+            }
+        }
+        else if( absolute != null )
+        {
+            in = new URL( absolute ).openStream();
+        }
+        else
+        {
+            return null;
+        }
+
+        byte[] bytes = Utils.getBytesToEndOfStream( in, true );
+        logger.debug( "Read " + ( resolved == null ? "" : "catalogued " ) + "entity " + name
+                + " in (ms): " + ( System.currentTimeMillis() - start ) + " " + resolvedId );
+        return new CachedEntity( resolvedId, bytes );
+    }
+
+
+    /**
+     * @return the system identifier made absolute against the base URI, if it can be
+     */
+    private static String absolutize( String baseURI, String systemId )
+    {
+        if( systemId == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            URI uri = new URI( systemId );
+            if( uri.isAbsolute() || baseURI == null )
+            {
+                return uri.isAbsolute() ? systemId : null;
+            }
+            return new URI( baseURI ).resolve( uri ).toString();
+        }
+        catch( URISyntaxException e )
+        {
+            return null;
+        }
+    }
+
+    private static class CachedEntity
+    {
+        final String systemId;
+        final byte[] bytes;
+
+
+        CachedEntity( String systemId, byte[] bytes )
+        {
+            this.systemId = systemId;
+            this.bytes = bytes;
+        }
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import net.sf.saxon.s9api.XsltExecutable;
+
+/**
+ * The end product of compiling a Schematron schema: the XSLT executable (or the native form)
+ * that is applied to candidates, together with facts about the schema gathered while compiling
+ * it. Instances are immutable and may be shared between threads and sessions.
+ */
+public class CompiledSchema
+{
+    /** metadata property holding the schema's default phase */
+    public final static String PROPERTY_DEFAULT_PHASE = "default-phase";
+    /** prefix of the metadata properties listing the patterns active in each phase */
+    public final static String PROPERTY_PHASE_PREFIX = "phase.";
+    /** metadata property listing the names of the schema-level variables */
+    public final static String PROPERTY_PARAMETERS = "parameters";
+    /** metadata property recording whether the schema uses the candidate's DTD identifiers */
+    public final static String PROPERTY_USES_DTD_IDENTIFIERS = "uses-dtd-identifiers";
+    /** metadata property holding the number of groups the schema's patterns are compiled in */
+    public final static String PROPERTY_PATTERN_GROUPS = "pattern-groups";
+
+    private final String key;
+    private final List< XsltExecutable > executables;
+    private final NativeSchema nativeSchema;
+    private final long compileTime;
+    private final Properties metadata;
+
+
+    public CompiledSchema( String key, XsltExecutable executable, long compileTime,
+            Properties metadata )
+    {
+        this.key = key;
+        this.executables = Collections.singletonList( executable );
+        this.nativeSchema = null;
+        this.compileTime = compileTime;
+        this.metadata = metadata;
+    }
+
+
+    /**
+     * @param executables
+     *            the XSLT executables for the groups of the schema's patterns, in schema order,
+     *            which are applied to a candidate concurrently
+     */
+    public CompiledSchema( String key, List< XsltExecutable > executables, long compileTime,
+            Properties metadata )
+    {
+        this.key = key;
+        this.executables = Collections.unmodifiableList( new ArrayList< XsltExecutable >(
+                executables ) );
+        this.nativeSchema = null;
+        this.compileTime = compileTime;
+        this.metadata = metadata;
+    }
+
+
+    public CompiledSchema( String key, NativeSchema nativeSchema, long compileTime,
+            Properties metadata )
+    {
+        this.key = key;
+        this.executables = null;
+        this.nativeSchema = nativeSchema;
+        this.compileTime = compileTime;
+        this.metadata = metadata;
+    }
+
+
+    /**
+     * @return the key under which this schema is cached
+     */
+    public String getKey()
+    {
+        return key;
+    }
+
+
+    /**
+     * @return the XSLT executable, or null if the schema was compiled for the native engine or
+     *         in groups of patterns
+     */
+    public XsltExecutable getExecutable()
+    {
+        return executables == null || executables.size() != 1 ? null : executables.get( 0 );
+    }
+
+
+    /**
+     * @return the XSLT executables, one for each group of patterns in schema order, or null if
+     *         the schema was compiled for the native engine
+     */
+    public List< XsltExecutable > getExecutables()
+    {
+        return executables;
+    }
+
+
+    /**
+     * @return the natively evaluated form of the schema, or null if it was compiled to XSLT
+     */
+    public NativeSchema getNativeSchema()
+    {
+        return nativeSchema;
+    }
+
+
+    /**
+     * @return the time (ms) it took to compile this schema
+     */
+    public long getCompileTime()
+    {
+        return compileTime;
+    }
+
+
+    /**
+     * @return the value of the named metadata property, or null if it is not set
+     */
+    public String getMetadata( String name )
+    {
+        return metadata.getProperty( name );
+    }
+
+
+    /**
+     * @return the ids of the patterns active in the passed phase, or null if every pattern is
+     *         active in it. The schema's default phase is used if <tt>phase</tt> is null or
+     *         empty.
+     */
+    public Set< String > getActivePatterns( String phase )
+    {
+        if( phase == null || phase.trim().length() == 0 )
+        {
+            phase = metadata.getProperty( PROPERTY_DEFAULT_PHASE, PhaseFilter.ALL_PHASES );
+        }
+
+        if( phase.trim().equals( PhaseFilter.ALL_PHASES ) )
+        {
+            return null;
+        }
+
+        String ids = metadata.getProperty( PROPERTY_PHASE_PREFIX + phase.trim(), "" ).trim();
+        return new LinkedHashSet< String >( ids.length() == 0 ? Arrays.asList( new String[ 0 ] )
+                : Arrays.asList( ids.split( " " ) ) );
+    }
+
+
+    /**
+     * @return the names of the schema-level variables, whose values may be supplied when
+     *         validating in place of those the schema gives them
+     * @see Session#setSchemaParameter(String, net.sf.saxon.s9api.XdmValue)
+     */
+    public Set< String > getParameters()
+    {
+        String names = metadata.getProperty( PROPERTY_PARAMETERS, "" ).trim();
+        return new LinkedHashSet< String >( names.length() == 0 ? Arrays.asList( new String[ 0 ] )
+                : Arrays.asList( names.split( " " ) ) );
+    }
+
+
+    /**
+     * @return whether the schema calls the functions which return the identifiers of the
+     *         candidate's DTD, so that they must be read from its prolog. Schemas compiled
+     *         before this was recorded are assumed to.
+     */
+    public boolean usesDtdIdentifiers()
+    {
+        return !"false".equals( metadata.getProperty( PROPERTY_USES_DTD_IDENTIFIERS ) );
+    }
+
+
+    /**
+     * @return a description of each lookup rewritten to use a key when this schema was
+     *         compiled, in schema order
+     * @see KeyAccelerationFilter
+     */
+    public List< String > getAccelerated()
+    {
+        List< String > list = new ArrayList< String >();
+        for( int i = 1; metadata
+                .getProperty( KeyAccelerationFilter.PROPERTY_ACCELERATED_PREFIX + i ) != null; i++ )
+        {
+            list.add( metadata.getProperty( KeyAccelerationFilter.PROPERTY_ACCELERATED_PREFIX
+                    + i ) );
+        }
+        return list;
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A process-wide, size-bounded cache of compiled schemas. Entries are evicted in
+ * least-recently-used order. Compilation is single-flight: when several threads ask for the
+ * same uncached key at once, only the first compiles and the others wait for its result.
+ * <p>
+ * A listener may be told the key of each entry leaving the cache, however it leaves; it is
+ * called holding no lock of the cache's.
+ */
+public class CompiledSchemaCache
+{
+    static Logger logger = LogManager.getLogger( CompiledSchemaCache.class.getName());
+
+    private final int maxEntries;
+    private final LinkedHashMap< String, FutureTask< CompiledSchema >> entries;
+    // the keys evicted by the last insertion, to be passed to the listener
+    private final List< String > evicted = new ArrayList< String >();
+    private volatile Consumer< String > removalListener;
+
+
+    @SuppressWarnings("serial")
+    public CompiledSchemaCache( int maxEntries )
+    {
+        this.maxEntries = maxEntries;
+
+        // access-ordered, so the eldest entry is the least recently used
+        this.entries = new LinkedHashMap< String, FutureTask< CompiledSchema >>( 16, 0.75f, true ) {
+            protected boolean removeEldestEntry(
+                    Map.Entry< String, FutureTask< CompiledSchema >> eldest )
+            {
+                boolean evict = size() > CompiledSchemaCache.this.maxEntries;
+                if( evict )
+                {
+                    logger.debug( "Evicting compiled schema: " + eldest.getKey() );
+                    evicted.add( eldest.getKey() );
+                }
+                return evict;
+            }
+        };
+    }
+
+
+    /**
+     * Returns the compiled schema cached under <tt>key</tt>, using <tt>compiler</tt> to create
+     * it if there is none. A failed compilation is not cached.
+     *
+     * @throws ExecutionException
+     *             wrapping whatever <tt>compiler</tt> threw
+     */
+    public CompiledSchema get( String key, Callable< CompiledSchema > compiler )
+            throws ExecutionException
+    {
+        FutureTask< CompiledSchema > task;
+        boolean owner = false;
+        List< String > removed = null;
+
+        synchronized( entries )
+        {
+            task = entries.get( key );
+            if( task == null )
+            {
+                task = new FutureTask< CompiledSchema >( compiler );
+                entries.put( key, task );
+                owner = true;
+                removed = new ArrayList< String >( evicted );
+                evicted.clear();
+            }
+        }
+        notifyRemoved( removed );
+
+        if( owner )
+        {
+            logger.debug( "Compiled schema cache miss: " + key );
+            task.run(); // compile on this thread
+        }
+        else
+        {
+            logger.debug( "Compiled schema cache hit: " + key );
+        }
+
+        try
+        {
+            return task.get();
+        }
+        catch( ExecutionException e )
+        {
+            remove( key, task );
+            throw e;
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException( "Interrupted awaiting schema compilation", e );
+        }
+    }
+
+
+    private void remove( String key, FutureTask< CompiledSchema > task )
+    {
+        boolean removed = false;
+        synchronized( entries )
+        {
+            // only if it has not been replaced in the meantime
+            if( entries.get( key ) == task )
+            {
+                entries.remove( key );
+                removed = true;
+            }
+        }
+
+        if( removed )
+        {
+            notifyRemoved( Collections.singletonList( key ) );
+        }
+    }
+
+
+    /**
+     * Discards the entry for <tt>key</tt>, if there is one.
+     */
+    public void remove( String key )
+    {
+        boolean removed;
+        synchronized( entries )
+        {
+            removed = entries.remove( key ) != null;
+        }
+
+        if( removed )
+        {
+            notifyRemoved( Collections.singletonList( key ) );
+        }
+    }
+
+
+    public void clear()
+    {
+        List< String > removed;
+        synchronized( entries )
+        {
+            removed = new ArrayList< String >( entries.keySet() );
+            entries.clear();
+        }
+        notifyRemoved( removed );
+    }
+
+
+    /**
+     * Sets the listener told the key of each entry leaving the cache, or none if null.
+     */
+    public void setRemovalListener( Consumer< String > removalListener )
+    {
+        this.removalListener = removalListener;
+    }
+
+
+    private void notifyRemoved( List< String > keys )
+    {
+        Consumer< String > listener = removalListener;
+        if( listener == null || keys == null )
+        {
+            return;
+        }
+
+        Iterator< String > iter = keys.iterator();
+        while( iter.hasNext() )
+        {
+            listener.accept( iter.next() );
+        }
+    }
+
+
+    /**
+     * @return whether there is an entry for <tt>key</tt>, compiled or being compiled
+     */
+    public boolean contains( String key )
+    {
+        synchronized( entries )
+        {
+            return entries.containsKey( key );
+        }
+    }
+
+
+    public int size()
+    {
+        synchronized( entries )
+        {
+            return entries.size();
+        }
+    }
+
+
+    public int getMaxEntries()
+    {
+        return maxEntries;
+    }
+
+}
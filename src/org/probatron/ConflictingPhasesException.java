@@ -0,0 +1,54 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Thrown when phases cannot be validated together, because two of them declare a variable of
+ * the same name with different values.
+ */
+@SuppressWarnings("serial")
+public class ConflictingPhasesException extends SAXException
+{
+
+    ConflictingPhasesException( String msg )
+    {
+        super( msg );
+    }
+
+
+    /**
+     * @return whether the passed exception was caused, at whatever remove, by a conflict
+     *         between phases
+     */
+    public static boolean causes( Throwable t )
+    {
+        for( ; t != null; t = t.getCause() )
+        {
+            if( t instanceof ConflictingPhasesException )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
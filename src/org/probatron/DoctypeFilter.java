@@ -0,0 +1,163 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.io.IOException;
+
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.ext.EntityResolver2;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Records the identifiers of a document's DTD in a {@link ValidationContext} as the document
+ * is parsed. The lexical handler set on the filter, as Saxon sets one when building a tree, is
+ * passed the parser's lexical events in turn, and an {@link EntityResolver2} set on it is
+ * passed the names of the entities it resolves.
+ */
+public class DoctypeFilter extends XMLFilterImpl implements LexicalHandler, EntityResolver2
+{
+    private final static String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
+
+    private ValidationContext validationContext;
+    private LexicalHandler lexicalHandler;
+
+
+    public DoctypeFilter( ValidationContext vc )
+    {
+        this.validationContext = vc;
+    }
+
+
+    @Override
+    public void setProperty( String name, Object value ) throws SAXNotRecognizedException,
+            SAXNotSupportedException
+    {
+        if( name.equals( LEXICAL_HANDLER ) )
+        {
+            this.lexicalHandler = ( LexicalHandler )value;
+            super.setProperty( name, this );
+        }
+        else
+        {
+            super.setProperty( name, value );
+        }
+    }
+
+
+    @Override
+    public Object getProperty( String name ) throws SAXNotRecognizedException,
+            SAXNotSupportedException
+    {
+        return name.equals( LEXICAL_HANDLER ) ? lexicalHandler : super.getProperty( name );
+    }
+
+
+    public InputSource resolveEntity( String name, String publicId, String baseURI,
+            String systemId ) throws SAXException, IOException
+    {
+        EntityResolver resolver = getEntityResolver();
+        if( resolver instanceof EntityResolver2 )
+        {
+            return ( ( EntityResolver2 )resolver ).resolveEntity( name, publicId, baseURI,
+                    systemId );
+        }
+        return resolver == null ? null : resolver.resolveEntity( publicId, systemId );
+    }
+
+
+    public InputSource getExternalSubset( String name, String baseURI ) throws SAXException,
+            IOException
+    {
+        EntityResolver resolver = getEntityResolver();
+        return resolver instanceof EntityResolver2 ? ( ( EntityResolver2 )resolver )
+                .getExternalSubset( name, baseURI ) : null;
+    }
+
+
+    public void startDTD( String name, String publicId, String systemId ) throws SAXException
+    {
+        validationContext.setDtdPublicId( publicId );
+        validationContext.setDtdSystemId( systemId );
+        if( lexicalHandler != null )
+        {
+            lexicalHandler.startDTD( name, publicId, systemId );
+        }
+    }
+
+
+    public void endDTD() throws SAXException
+    {
+        if( lexicalHandler != null )
+        {
+            lexicalHandler.endDTD();
+        }
+    }
+
+
+    public void startEntity( String name ) throws SAXException
+    {
+        if( lexicalHandler != null )
+        {
+            lexicalHandler.startEntity( name );
+        }
+    }
+
+
+    public void endEntity( String name ) throws SAXException
+    {
+        if( lexicalHandler != null )
+        {
+            lexicalHandler.endEntity( name );
+        }
+    }
+
+
+    public void startCDATA() throws SAXException
+    {
+        if( lexicalHandler != null )
+        {
+            lexicalHandler.startCDATA();
+        }
+    }
+
+
+    public void endCDATA() throws SAXException
+    {
+        if( lexicalHandler != null )
+        {
+            lexicalHandler.endCDATA();
+        }
+    }
+
+
+    public void comment( char[] ch, int start, int length ) throws SAXException
+    {
+        if( lexicalHandler != null )
+        {
+            lexicalHandler.comment( ch, start, length );
+        }
+    }
+
+}
@@ -19,6 +19,10 @@
 
 package org.probatron;
 
+import net.sf.saxon.s9api.ItemType;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmAtomicValue;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.xml.sax.SAXException;
@@ -26,6 +30,8 @@ import org.xml.sax.SAXException;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -39,6 +45,7 @@ public class Driver
     static int APP_EXIT_FAIL = -1;
     static int APP_EXIT_OKAY = 0;
     static Session theSession;
+    static List< String > catalogFiles = new ArrayList< String >();
 
     static
     {
@@ -58,9 +65,21 @@ public class Driver
     public static void showUsage()
     {
         System.err.println( "Usage: probatron.jar [options] candidate-doc schema-doc" );
+        System.err.println( "       probatron.jar precompile [options] schema-doc..." );
+        System.err.println( "       probatron.jar analyze schema-doc..." );
         System.err.println( "Options:" );
+        System.err.println( "-c<dir>   Keep compiled schemas in the directory <dir>, across runs" );
+        System.err.println( "-d0|1     Do not [or do] read the candidate's external DTD" );
+        System.err.println( "-e0|1     Do not [or do] evaluate schemas natively, without XSLT" );
+        System.err.println( "          (in one walk of the candidate for all patterns; schemas"
+                + " with XSLT keys or" );
+        System.err.println( "          functions, rule properties or pattern documents are run"
+                + " as XSLT, a walk per pattern)" );
+        System.err.println( "-k<file>  Resolve DTDs against the XML catalog <file> (repeatable)" );
+        System.err.println( "-l<name>=<value> Supply <value> for the schema-level variable <name>" );
         System.err.println( "-n0|1     Do not [or do] emit line/col numbers in report" );
-        System.err.println( "-p<phase> Validate using the phase named <phase>" );
+        System.err.println( "-p<phase> Validate using the phase named <phase> (when precompiling,"
+                + " may be repeated)" );
         // TODO
         // System.err.println( "-q0|1     Do not [or do] validate the Schematron schema itself"
         // );
@@ -68,6 +87,7 @@ public class Driver
         System.err.println( "-r1       Output report as verbose SVRL" );
         // System.err.println(
         // "-r2       Output report as the original instance with SVRL merged in situ" );
+        System.err.println( "-t<n>     Apply the patterns of the schema on up to <n> threads" );
         System.err.println( "-v        Show version info and halt" );
     }
 
@@ -79,6 +99,54 @@ public class Driver
         {
             theSession.setUsePhysicalLocators( arg.equals( "-n1" ) );
         }
+        else if( arg.equals( "-e1" ) || arg.equals( "-e0" ) )
+        {
+            theSession.setUseNativeEngine( arg.equals( "-e1" ) );
+        }
+        else if( arg.equals( "-d1" ) || arg.equals( "-d0" ) )
+        {
+            theSession.setLoadExternalDtd( arg.equals( "-d1" ) );
+        }
+        else if( arg.startsWith( "-k" ) && arg.length() > 2 )
+        {
+            catalogFiles.add( new File( arg.substring( 2 ) ).toURI().toString() );
+            Runtime.setCatalogFiles( catalogFiles );
+        }
+        else if( arg.startsWith( "-l" ) && arg.indexOf( '=' ) > 2 )
+        {
+            int eq = arg.indexOf( '=' );
+            try
+            {
+                // untyped, as a value read from the candidate would be
+                theSession.setSchemaParameter( arg.substring( 2, eq ), new XdmAtomicValue( arg
+                        .substring( eq + 1 ), ItemType.UNTYPED_ATOMIC ) );
+            }
+            catch( SaxonApiException e )
+            {
+                logger.fatal( "Cannot use schema parameter value: " + e.getMessage() );
+                System.exit( APP_EXIT_FAIL );
+            }
+        }
+        else if( arg.startsWith( "-t" ) )
+        {
+            int threads = 0;
+            try
+            {
+                threads = Integer.parseInt( arg.substring( 2 ) );
+            }
+            catch( NumberFormatException e )
+            {
+                // reported below
+            }
+            if( threads < 1 )
+            {
+                logger.fatal( "Pattern threads must be a number of at least 1: \"" + arg
+                        + "\". Aborting." );
+                showUsage();
+                System.exit( APP_EXIT_FAIL );
+            }
+            theSession.setPatternThreads( threads );
+        }
         else if( arg.startsWith( "-r" ) )
         {
             theSession.setReportFormat( new Integer( arg.substring( 2, arg.length() ) )
@@ -88,6 +156,19 @@ public class Driver
         {
             theSession.setPhase( arg.substring( 2, arg.length() ) );
         }
+        else if( arg.startsWith( "-c" ) )
+        {
+            try
+            {
+                Runtime.setDiskCache( new SchemaDiskCache( new File( arg.substring( 2, arg
+                        .length() ) ) ) );
+            }
+            catch( IOException e )
+            {
+                logger.fatal( "Cannot use schema cache directory: " + e.getMessage() );
+                System.exit( APP_EXIT_FAIL );
+            }
+        }
         else
         {
             logger.fatal( "Unrecognized command-line option \"" + arg + "\". Aborting." );
@@ -96,6 +177,109 @@ public class Driver
     }
 
 
+    /**
+     * Compiles the schemas named on the command line, for each phase named, and reports the
+     * time each took. With -c, this warms the schema cache directory for later runs.
+     */
+    private static void precompile( String[] args )
+    {
+        ArrayList< String > phases = new ArrayList< String >();
+        ArrayList< String > schemas = new ArrayList< String >();
+
+        for( int i = 1; i < args.length; i++ )
+        {
+            String arg = args[ i ];
+            if( arg.startsWith( "-p" ) )
+            {
+                phases.add( arg.substring( 2, arg.length() ) );
+            }
+            else if( arg.startsWith( "-" ) )
+            {
+                handleCommandLineArg( arg );
+            }
+            else
+            {
+                schemas.add( fixArg( arg ) );
+            }
+        }
+
+        if( phases.isEmpty() )
+        {
+            phases.add( null ); // the default phase
+        }
+
+        ArrayList< Session > sessions = new ArrayList< Session >();
+        for( int i = 0; i < schemas.size(); i++ )
+        {
+            for( int j = 0; j < phases.size(); j++ )
+            {
+                Session session = new Session();
+                session.setSchemaSysId( schemas.get( i ) );
+                session.setPhase( phases.get( j ) );
+                session.setReportFormat( theSession.getReportFormat() );
+                sessions.add( session );
+            }
+        }
+
+        List< CompiledSchema > compiled = Runtime.precompile( sessions );
+
+        boolean failed = false;
+        for( int i = 0; i < sessions.size(); i++ )
+        {
+            CompiledSchema cs = compiled.get( i );
+            String phase = sessions.get( i ).getPhase();
+            System.out.println( ( cs == null ? "FAILED" : cs.getCompileTime() + "ms" ) + "\t"
+                    + ( phase == null || phase.length() == 0 ? "(default)" : phase ) + "\t"
+                    + sessions.get( i ).getSchemaSysId() );
+            failed |= cs == null;
+
+            if( cs != null )
+            {
+                List< String > accelerated = cs.getAccelerated();
+                for( int j = 0; j < accelerated.size(); j++ )
+                {
+                    System.out.println( "\taccelerated " + accelerated.get( j ) );
+                }
+            }
+        }
+
+        System.exit( failed ? APP_EXIT_FAIL : APP_EXIT_OKAY );
+    }
+
+
+    /**
+     * Writes a report of the costly constructs in each schema named on the command line.
+     */
+    private static void analyze( String[] args )
+    {
+        boolean failed = false;
+
+        for( int i = 1; i < args.length; i++ )
+        {
+            String schema = fixArg( args[ i ] );
+            try
+            {
+                Session session = new Session();
+                session.setSchemaSysId( schema );
+                new SchemaCostAnalyzer( new SchematronSchema( session ).getExpandedSchema() )
+                        .writeReport( System.out, schema );
+            }
+            catch( MalformedURLException e )
+            {
+                logger.fatal( "Bad schema URL: " + e.getMessage() );
+                failed = true;
+            }
+            catch( RuntimeException e )
+            {
+                logger.fatal( "Cannot analyze " + schema + ": " + e.getMessage() );
+                failed = true;
+            }
+        }
+
+        System.exit( failed ? APP_EXIT_FAIL : APP_EXIT_OKAY );
+    }
+
+
     static private String fixArg( String arg )
     {
         // user concession, if no URL scheme assume these are files
@@ -121,6 +305,15 @@ public class Driver
             System.exit( APP_EXIT_OKAY );
         }
 
+        if( args.length > 0 && args[ 0 ].equals( "precompile" ) )
+        {
+            precompile( args );
+        }
+        else if( args.length > 0 && args[ 0 ].equals( "analyze" ) )
+        {
+            analyze( args );
+        }
+
         if( args.length < 2 )
         {
             showUsage();
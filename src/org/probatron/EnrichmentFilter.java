@@ -84,6 +84,7 @@ public class EnrichmentFilter extends XMLFilterImpl
                 && isSvrlElement
                 && ( localName.equals( "fired-rule" ) || localName.equals( "active-pattern" ) ) )
         {
+            // only reports split by phase still have these: compact executables do not emit them
             return; // having done nothing
         }
 
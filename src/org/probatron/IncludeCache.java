@@ -0,0 +1,645 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+/**
+ * A process-wide cache of the documents referenced by Schematron's &lt;include> element,
+ * together with the dependency graph linking them to the compiled schemas which include them.
+ * <p>
+ * A cached document read from a <tt>file:</tt> URL is re-read only when its modification time
+ * changes; one read from any other kind of URL is re-read once it has been cached for longer
+ * than the remote time-to-live. A document which could not be read is not kept, so the next
+ * request for it tries again. When a re-read document turns out to have different content,
+ * every compiled schema which included it is evicted from the {@link CompiledSchemaCache}, and
+ * no other.
+ * <p>
+ * Documents and dependency records are kept in least-recently-used order up to a maximum
+ * number of each; one dropped is simply read or worked out again when next needed. The
+ * dependents of a compiled schema are forgotten as soon as the schema cache lets it go.
+ * <p>
+ * When a document is fetched, the documents it includes in turn are fetched concurrently in
+ * the background, so that by the time inclusion reaches them they are usually to hand.
+ */
+public class IncludeCache
+{
+    static Logger logger = LogManager.getLogger( IncludeCache.class.getName());
+
+    /** the default number of documents, and of dependency records, kept */
+    public final static int DEFAULT_MAX_ENTRIES = 256;
+    /** the default time, in milliseconds, for which a document not read from a file is kept */
+    public final static long DEFAULT_REMOTE_TTL = 60000;
+
+    private final CompiledSchemaCache schemaCache;
+    private final ExecutorService prefetcher;
+    private final int maxEntries;
+    private volatile long remoteTtl = DEFAULT_REMOTE_TTL;
+
+    // URL -> document, guarded by itself
+    private final LinkedHashMap< String, Future< Fragment >> fragments;
+
+    // URL and digest of schema document -> URLs and digests of the documents it includes
+    private final LinkedHashMap< String, Map< String, String >> schemaDependencies;
+    // included document URL -> keys of the compiled schemas which depend on it; guards
+    // schemaDependencies too
+    private final HashMap< String, Set< String >> dependents = new HashMap< String, Set< String >>();
+
+    /**
+     * A document included by a schema.
+     */
+    public static class Fragment
+    {
+        private final URL url;
+        private final byte[] bytes;
+        private final String digest;
+        private final long lastModified;
+        private final long loadedAt;
+        private final List< URL > includes;
+
+
+        Fragment( URL url, byte[] bytes, long lastModified, List< URL > includes )
+        {
+            this.url = url;
+            this.bytes = bytes;
+            this.digest = bytes == null ? "" : Utils.digest( bytes );
+            this.lastModified = lastModified;
+            this.loadedAt = System.currentTimeMillis();
+            this.includes = includes;
+        }
+
+
+        public URL getUrl()
+        {
+            return url;
+        }
+
+
+        /**
+         * @return the content of the document, or null if it could not be read
+         */
+        public byte[] getBytes()
+        {
+            return bytes;
+        }
+
+
+        /**
+         * @return the digest of the document's content, or the empty string if it could not
+         *         be read
+         */
+        public String getDigest()
+        {
+            return digest;
+        }
+
+
+        /**
+         * @return the modification time of the document when it was read, or 0 if unknown
+         */
+        public long getLastModified()
+        {
+            return lastModified;
+        }
+
+
+        /**
+         * @return the locations of the documents this document includes directly
+         */
+        public List< URL > getIncludes()
+        {
+            return includes;
+        }
+    }
+
+
+    public IncludeCache( CompiledSchemaCache schemaCache, int prefetchThreads )
+    {
+        this( schemaCache, prefetchThreads, DEFAULT_MAX_ENTRIES );
+    }
+
+
+    @SuppressWarnings("serial")
+    public IncludeCache( CompiledSchemaCache schemaCache, int prefetchThreads, int maxEntries )
+    {
+        this.schemaCache = schemaCache;
+        this.maxEntries = maxEntries;
+        this.prefetcher = Executors.newFixedThreadPool( prefetchThreads, r -> {
+            Thread t = new Thread( r, "probatron-include-prefetch" );
+            t.setDaemon( true );
+            return t;
+        } );
+
+        // access-ordered, so the eldest entries are the least recently used
+        this.fragments = new LinkedHashMap< String, Future< Fragment >>( 16, 0.75f, true ) {
+            protected boolean removeEldestEntry( Map.Entry< String, Future< Fragment >> eldest )
+            {
+                return size() > IncludeCache.this.maxEntries;
+            }
+        };
+        this.schemaDependencies = new LinkedHashMap< String, Map< String, String >>( 16,
+                0.75f, true ) {
+            protected boolean removeEldestEntry( Map.Entry< String, Map< String, String >> eldest )
+            {
+                return size() > IncludeCache.this.maxEntries;
+            }
+        };
+
+        schemaCache.setRemovalListener( key -> removeDependent( key ) );
+    }
+
+
+    /**
+     * Sets the time, in milliseconds, for which a document read from other than a file is used
+     * before it is read again. A negative time means it is never read again.
+     */
+    public void setRemoteTtl( long remoteTtl )
+    {
+        this.remoteTtl = remoteTtl;
+    }
+
+
+    public long getRemoteTtl()
+    {
+        return remoteTtl;
+    }
+
+
+    public int getMaxEntries()
+    {
+        return maxEntries;
+    }
+
+
+    /**
+     * Returns the document at the passed location, reading it if it is not cached or may have
+     * changed since it was.
+     */
+    public Fragment get( URL url )
+    {
+        String key = url.toExternalForm();
+        Future< Fragment > future;
+        FutureTask< Fragment > task = null;
+
+        synchronized( fragments )
+        {
+            future = fragments.get( key );
+            if( future == null )
+            {
+                task = new FutureTask< Fragment >( () -> load( url ) );
+                fragments.put( key, task );
+                future = task;
+            }
+        }
+
+        if( task != null )
+        {
+            task.run();
+        }
+
+        Fragment fragment = await( future );
+
+        if( fragment.getBytes() == null )
+        {
+            // try again next time
+            discard( key, future );
+        }
+        else if( isStale( fragment ) )
+        {
+            logger.debug( "Included document may have changed: " + key );
+            task = null;
+            synchronized( fragments )
+            {
+                // unless another thread is already re-reading it
+                if( fragments.get( key ) == future )
+                {
+                    task = new FutureTask< Fragment >( () -> load( url ) );
+                    fragments.put( key, task );
+                }
+            }
+
+            if( task == null )
+            {
+                return get( url );
+            }
+
+            task.run();
+            Fragment fresh = await( task );
+            if( fresh.getBytes() == null )
+            {
+                discard( key, task );
+            }
+
+            if( !fresh.getDigest().equals( fragment.getDigest() ) )
+            {
+                invalidate( key );
+            }
+            fragment = fresh;
+        }
+
+        return fragment;
+    }
+
+
+    /**
+     * @return whether the cached document may no longer match the one at its location
+     */
+    private boolean isStale( Fragment fragment )
+    {
+        URL url = fragment.getUrl();
+        if( url.getProtocol().equals( "file" ) )
+        {
+            return fragment.getLastModified() != lastModified( url );
+        }
+
+        long ttl = remoteTtl;
+        return ttl >= 0 && System.currentTimeMillis() - fragment.loadedAt >= ttl;
+    }
+
+
+    /**
+     * Forgets the document cached under <tt>key</tt>, provided it is still the one passed.
+     */
+    private void discard( String key, Future< Fragment > future )
+    {
+        synchronized( fragments )
+        {
+            if( fragments.get( key ) == future )
+            {
+                fragments.remove( key );
+            }
+        }
+    }
+
+
+    /**
+     * Starts fetching, in the background, the documents included by the passed schema
+     * document.
+     */
+    public void prefetchIncludes( URL base, byte[] schema )
+    {
+        Iterator< URL > iter = scanIncludes( base, schema ).iterator();
+        while( iter.hasNext() )
+        {
+            prefetch( iter.next() );
+        }
+    }
+
+
+    private void prefetch( URL url )
+    {
+        String key = url.toExternalForm();
+        FutureTask< Fragment > task = null;
+
+        synchronized( fragments )
+        {
+            if( !fragments.containsKey( key ) )
+            {
+                task = new FutureTask< Fragment >( () -> load( url ) );
+                fragments.put( key, task );
+            }
+        }
+
+        if( task != null )
+        {
+            logger.debug( "Prefetching included document: " + key );
+            prefetcher.execute( task );
+        }
+    }
+
+
+    /**
+     * Reads a document and starts fetching those it includes.
+     */
+    private Fragment load( URL url )
+    {
+        long lastModified = lastModified( url );
+        byte[] ba = Utils.derefUrl( url );
+        List< URL > includes = scanIncludes( url, ba );
+
+        Iterator< URL > iter = includes.iterator();
+        while( iter.hasNext() )
+        {
+            prefetch( iter.next() );
+        }
+
+        return new Fragment( url, ba, lastModified, includes );
+    }
+
+
+    /**
+     * @return the locations referenced by the &lt;include> elements of a document
+     */
+    private static List< URL > scanIncludes( final URL base, byte[] ba )
+    {
+        final List< URL > includes = new ArrayList< URL >();
+        if( ba == null )
+        {
+            return includes;
+        }
+
+        try
+        {
+            XMLReader reader = XMLReaderFactory.createXMLReader();
+            reader.setEntityResolver( Runtime.getEntityResolver() );
+            reader.setContentHandler( new DefaultHandler() {
+                public void startElement( String uri, String localName, String name,
+                        Attributes atts )
+                {
+                    String href = atts.getValue( "href" );
+                    if( localName.equals( "include" ) && uri.equals( Utils.SCHEMATRON_NAME )
+                            && href != null )
+                    {
+                        try
+                        {
+                            includes.add( new URL( base, href ) );
+                        }
+                        catch( MalformedURLException e )
+                        {
+                            // reported when the inclusion is performed
+                        }
+                    }
+                }
+            } );
+            reader.parse( new InputSource( new ByteArrayInputStream( ba ) ) );
+        }
+        catch( Exception e )
+        {
+            // reported when the inclusion is performed
+            logger.debug( "Cannot scan for inclusions in " + base + ": " + e.getMessage() );
+        }
+
+        return includes;
+    }
+
+
+    /**
+     * @return the modification time of the document at the passed location if it is a file, or
+     *         0
+     */
+    private static long lastModified( URL url )
+    {
+        if( !url.getProtocol().equals( "file" ) )
+        {
+            return 0;
+        }
+
+        try
+        {
+            return new File( url.toURI() ).lastModified();
+        }
+        catch( URISyntaxException e )
+        {
+            return new File( url.getPath() ).lastModified();
+        }
+        catch( IllegalArgumentException e )
+        {
+            return 0;
+        }
+    }
+
+
+    /**
+     * Returns the documents recorded as included by a schema document, provided none has
+     * changed since.
+     *
+     * @return the URLs of the included documents mapped to their digests, or null if there is
+     *         no record or any included document has changed
+     */
+    public Map< String, String > getDependencies( URL schemaUrl, String schemaDigest )
+    {
+        Map< String, String > deps;
+        synchronized( dependents )
+        {
+            deps = schemaDependencies.get( schemaId( schemaUrl, schemaDigest ) );
+        }
+
+        if( deps == null || !isCurrent( deps ) )
+        {
+            return null;
+        }
+
+        return deps;
+    }
+
+
+    /**
+     * Records the documents included by a schema document.
+     */
+    public void putDependencies( URL schemaUrl, String schemaDigest, Map< String, String > deps )
+    {
+        synchronized( dependents )
+        {
+            schemaDependencies.put( schemaId( schemaUrl, schemaDigest ),
+                    new HashMap< String, String >( deps ) );
+        }
+    }
+
+
+    /**
+     * @return whether every one of the passed documents still has the digest recorded for it
+     */
+    public boolean isCurrent( Map< String, String > deps )
+    {
+        Iterator< Map.Entry< String, String >> iter = deps.entrySet().iterator();
+        while( iter.hasNext() )
+        {
+            Map.Entry< String, String > dep = iter.next();
+            try
+            {
+                if( !get( new URL( dep.getKey() ) ).getDigest().equals( dep.getValue() ) )
+                {
+                    return false;
+                }
+            }
+            catch( MalformedURLException e )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Records that the compiled schema cached under <tt>schemaKey</tt> includes the passed
+     * documents, so that it is evicted should any of them change. Nothing is recorded if the
+     * schema cache does not hold the key.
+     */
+    public void addDependent( String schemaKey, Set< String > urls )
+    {
+        synchronized( dependents )
+        {
+            Iterator< String > iter = urls.iterator();
+            while( iter.hasNext() )
+            {
+                String url = iter.next();
+                Set< String > keys = dependents.get( url );
+                if( keys == null )
+                {
+                    keys = new HashSet< String >();
+                    dependents.put( url, keys );
+                }
+                keys.add( schemaKey );
+            }
+        }
+
+        // it may have been evicted before being recorded, when the removal would have been
+        // missed
+        if( !schemaCache.contains( schemaKey ) )
+        {
+            removeDependent( schemaKey );
+        }
+    }
+
+
+    /**
+     * Forgets that the compiled schema cached under <tt>schemaKey</tt> includes anything.
+     */
+    private void removeDependent( String schemaKey )
+    {
+        synchronized( dependents )
+        {
+            Iterator< Set< String >> iter = dependents.values().iterator();
+            while( iter.hasNext() )
+            {
+                Set< String > keys = iter.next();
+                if( keys.remove( schemaKey ) && keys.isEmpty() )
+                {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return the number of included documents with dependent compiled schemas recorded
+     */
+    int dependentsSize()
+    {
+        synchronized( dependents )
+        {
+            return dependents.size();
+        }
+    }
+
+
+    /**
+     * Evicts everything which depends on the document at the passed URL.
+     */
+    private void invalidate( String url )
+    {
+        Set< String > keys;
+        synchronized( dependents )
+        {
+            keys = dependents.remove( url );
+
+            Iterator< Map< String, String >> deps = schemaDependencies.values().iterator();
+            while( deps.hasNext() )
+            {
+                if( deps.next().containsKey( url ) )
+                {
+                    deps.remove();
+                }
+            }
+        }
+
+        // outside the lock, as the schema cache calls back to removeDependent
+        if( keys != null )
+        {
+            Iterator< String > iter = keys.iterator();
+            while( iter.hasNext() )
+            {
+                String key = iter.next();
+                logger.debug( "Evicting compiled schema dependent on " + url + ": " + key );
+                schemaCache.remove( key );
+            }
+        }
+    }
+
+
+    private static String schemaId( URL schemaUrl, String schemaDigest )
+    {
+        return schemaUrl.toExternalForm() + "\n" + schemaDigest;
+    }
+
+
+    private static Fragment await( Future< Fragment > future )
+    {
+        try
+        {
+            return future.get();
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Interrupted awaiting included document", e );
+        }
+        catch( ExecutionException e )
+        {
+            throw new RuntimeException( "Cannot read included document: " + e.getCause(), e
+                    .getCause() );
+        }
+    }
+
+
+    /**
+     * Discards all cached documents and dependency records.
+     */
+    public void clear()
+    {
+        synchronized( fragments )
+        {
+            fragments.clear();
+        }
+        synchronized( dependents )
+        {
+            schemaDependencies.clear();
+            dependents.clear();
+        }
+    }
+
+}
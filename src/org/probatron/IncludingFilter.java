@@ -21,29 +21,58 @@ package org.probatron;
 
 import java.io.ByteArrayInputStream;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
 import org.xml.sax.helpers.XMLFilterImpl;
 import org.xml.sax.helpers.XMLReaderFactory;
 
 /**
  * Processed Schematron's &lt;include> element. This filter processes an instance and performs
  * inclusion of documents referenced by Schematron's &lt;include> element. Also strips out p
- * elements.
+ * elements. Included documents are obtained from the shared {@link IncludeCache}. The URL and
+ * digest of every document included, at whatever depth, is recorded so that a cached
+ * compilation of the schema can be checked for staleness.
+ * <p>
+ * Where packaging is enabled, an include marked as a library (with
+ * <tt>package="true"</tt> in the {@link Utils#PROBATRON_SCHEMA_NAME} namespace) whose
+ * document is a single self-contained pattern is not expanded. A placeholder pattern with
+ * the library's id and title, and one rule whose context identifies it, takes its place, and
+ * the library is recorded to be compiled as a package of its own.
  */
 public class IncludingFilter extends XMLFilterImpl
 {
 
     static Logger logger = LogManager.getLogger( IncludingFilter.class.getName());
+
+    /** context of a placeholder's rule, followed by the (1-based) index of the library */
+    public final static String PLACEHOLDER_CONTEXT = "/ | /_probatron_package_";
+
     private boolean outermost;
     private URL base;
-    boolean foundAbstractPatterns;
     boolean suspend;
+    private Map< String, String > dependencies = new LinkedHashMap< String, String >();
+    private boolean packaging;
+    private List< XdmNode > libraries = new ArrayList< XdmNode >();
 
 
     public IncludingFilter( URL base, boolean outermost )
@@ -65,6 +94,26 @@ public class IncludingFilter extends XMLFilterImpl
     }
 
 
+    @Override
+    public void endDocument() throws SAXException
+    {
+        if( this.outermost )
+        {
+            super.endDocument(); // an included document does not end the including one
+        }
+    }
+
+
+    @Override
+    public void setDocumentLocator( Locator locator )
+    {
+        if( this.outermost )
+        {
+            super.setDocumentLocator( locator );
+        }
+    }
+
+
     @Override
     public void endElement( String uri, String localName, String name ) throws SAXException
     {
@@ -93,15 +142,6 @@ public class IncludingFilter extends XMLFilterImpl
         boolean isIncludeElement = localName.equals( "include" )
                 && uri.equals( Utils.SCHEMATRON_NAME );
 
-        boolean isAbstractPattern = localName.equals( "pattern" )
-                && uri.equals( Utils.SCHEMATRON_NAME ) && atts != null
-                && atts.getValue( "abstract" ) != null;
-
-        if( isAbstractPattern )
-        {
-            this.foundAbstractPatterns = true;
-        }
-
         if( uri.equals( Utils.SCHEMATRON_NAME ) && localName.equals( "p" ) )
         {
             suspend = true;
@@ -117,14 +157,25 @@ public class IncludingFilter extends XMLFilterImpl
 
                 logger.debug( "Expanding inclusion at: " + url.toExternalForm() );
 
+                IncludeCache.Fragment fragment = Runtime.getIncludeCache().get( url );
+                dependencies.put( url.toExternalForm(), fragment.getDigest() );
+
+                if( packaging && "true".equals( atts.getValue( Utils.PROBATRON_SCHEMA_NAME,
+                        "package" ) ) && includeAsPackage( url, fragment ) )
+                {
+                    return;
+                }
+
                 // do the inclusion
                 XMLReader reader = XMLReaderFactory.createXMLReader();
                 IncludingFilter filter = new IncludingFilter( url, false );
+                filter.dependencies = this.dependencies;
+                filter.packaging = this.packaging;
+                filter.libraries = this.libraries;
                 filter.setParent( reader );
+                filter.setEntityResolver( Runtime.getEntityResolver() );
                 filter.setContentHandler( this.getContentHandler() );
-                filter
-                        .parse( new InputSource(
-                                new ByteArrayInputStream( Utils.derefUrl( url ) ) ) );
+                filter.parse( new InputSource( new ByteArrayInputStream( fragment.getBytes() ) ) );
 
             }
             catch( Exception e )
@@ -141,6 +192,105 @@ public class IncludingFilter extends XMLFilterImpl
     }
 
 
+    /**
+     * Writes a placeholder pattern for the library at the passed URL, if it can be compiled as
+     * a package.
+     * 
+     * @return whether it was, or false if the library is to be included as usual
+     */
+    private boolean includeAsPackage( URL url, IncludeCache.Fragment fragment )
+            throws SaxonApiException, SAXException
+    {
+        XdmNode library = Runtime.getSaxonProcessor().newDocumentBuilder().build(
+                new StreamSource( new ByteArrayInputStream( fragment.getBytes() ), url
+                        .toExternalForm() ) );
+        String reason = LibraryPackage.checkLibrary( library );
+        if( reason != null )
+        {
+            logger.info( "Including library as it cannot be packaged (" + reason + "): " + url );
+            return false;
+        }
+
+        libraries.add( library );
+        logger.debug( "Including library as package " + libraries.size() + ": " + url );
+
+        XdmNode pattern = null;
+        XdmSequenceIterator< XdmNode > iter = library.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( child.getNodeKind() == XdmNodeKind.ELEMENT )
+            {
+                pattern = child;
+            }
+        }
+
+        super.startPrefixMapping( "iso", Utils.SCHEMATRON_NAME );
+        AttributesImpl atts = new AttributesImpl();
+        XdmSequenceIterator< XdmNode > attIter = pattern.axisIterator( Axis.ATTRIBUTE );
+        while( attIter.hasNext() )
+        {
+            XdmNode att = attIter.next();
+            QName attName = att.getNodeName();
+            atts.addAttribute( attName.getNamespaceURI(), attName.getLocalName(), attName
+                    .getNamespaceURI().equals( "http://www.w3.org/XML/1998/namespace" ) ? "xml:"
+                    + attName.getLocalName() : attName.getLocalName(), "CDATA", att
+                    .getStringValue() );
+        }
+        super.startElement( Utils.SCHEMATRON_NAME, "pattern", "iso:pattern", atts );
+
+        iter = pattern.axisIterator( Axis.CHILD, new QName( Utils.SCHEMATRON_NAME, "title" ) );
+        while( iter.hasNext() )
+        {
+            char[] title = iter.next().getStringValue().toCharArray();
+            super.startElement( Utils.SCHEMATRON_NAME, "title", "iso:title",
+                    new AttributesImpl() );
+            super.characters( title, 0, title.length );
+            super.endElement( Utils.SCHEMATRON_NAME, "title", "iso:title" );
+        }
+
+        atts = new AttributesImpl();
+        atts.addAttribute( "", "context", "context", "CDATA", PLACEHOLDER_CONTEXT
+                + libraries.size() );
+        super.startElement( Utils.SCHEMATRON_NAME, "rule", "iso:rule", atts );
+        super.endElement( Utils.SCHEMATRON_NAME, "rule", "iso:rule" );
+
+        super.endElement( Utils.SCHEMATRON_NAME, "pattern", "iso:pattern" );
+        super.endPrefixMapping( "iso" );
+        return true;
+    }
+
+
+    /**
+     * Sets whether includes marked as libraries are replaced by placeholders, for the
+     * libraries to be compiled as packages.
+     */
+    public void setPackaging( boolean packaging )
+    {
+        this.packaging = packaging;
+    }
+
+
+    /**
+     * @return the library documents replaced by placeholders, in the order of the
+     *         placeholders' indexes
+     */
+    public List< XdmNode > getLibraries()
+    {
+        return libraries;
+    }
+
+
+    /**
+     * @return the URLs of all documents included, mapped to the digests of their content (or
+     *         to the empty string for those that could not be read)
+     */
+    public Map< String, String > getDependencies()
+    {
+        return dependencies;
+    }
+
+
     @Override
     public void characters( char[] arg0, int arg1, int arg2 ) throws SAXException
     {
@@ -27,18 +27,48 @@ import javax.xml.transform.Source;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.URIResolver;
 import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Resolves stylesheet URIs to the stylesheets bundled in the jar. Each stylesheet is read from
+ * the jar once and held in memory thereafter.
+ */
 public class JarUriResolver implements URIResolver
 {
     static Logger logger = LogManager.getRootLogger();
 
+    private static ConcurrentHashMap< String, byte[] > resources = new ConcurrentHashMap< String, byte[] >();
+
     public Source resolve( String href, String base ) throws TransformerException
     {
         logger.debug( "Resolving stylesheet URI: " + href );
-        InputStream is = JarUriResolver.class.getResourceAsStream( "/resource/stylesheet/"
-                + href );
-        return new StreamSource( is );        
+        byte[] ba = resources.get( href );
+
+        if( ba == null )
+        {
+            InputStream is = JarUriResolver.class.getResourceAsStream( "/resource/stylesheet/"
+                    + href );
+            if( is == null )
+            {
+                throw new TransformerException( "No bundled stylesheet: " + href );
+            }
+
+            try
+            {
+                ba = Utils.getBytesToEndOfStream( is, true );
+            }
+            catch( IOException e )
+            {
+                throw new TransformerException( "Cannot read bundled stylesheet: " + href, e );
+            }
+
+            resources.putIfAbsent( href, ba );
+        }
+
+        return new StreamSource( new ByteArrayInputStream( ba ) );
     }
 
 }
@@ -0,0 +1,244 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Rewrites cross-reference lookups such as <tt>//target[@id = current()/@ref]</tt>, which
+ * scan the whole candidate every time they are evaluated, to calls of <tt>key()</tt>, adding
+ * the &lt;xsl:key> declarations they use. It filters the validating XSLT as the skeleton
+ * generates it, so that each lookup costs one index probe instead of a traversal while the
+ * SVRL still reports the test as the schema wrote it.
+ * <p>
+ * Only the tests of asserts and reports (&lt;xsl:when> and &lt;xsl:if>) and rule-level
+ * variables within templates are rewritten, and then only where the lookup starts from the
+ * root, compares a simple relative path with a path from <tt>current()</tt>, and has no other
+ * predicate, before or after, so that the key returns exactly the nodes the path would have: a
+ * positional predicate such as the <tt>[1]</tt> of <tt>//item[@id = current()/@ref][1]</tt>
+ * applies among siblings, not to the document-ordered nodes of the key.
+ */
+public class KeyAccelerationFilter extends XMLFilterImpl
+{
+    static Logger logger = LogManager.getLogger( KeyAccelerationFilter.class.getName());
+
+    /** prefix of the metadata properties listing the expressions rewritten */
+    public final static String PROPERTY_ACCELERATED_PREFIX = "accelerated.";
+
+    private final static String XSLT_NAME = "http://www.w3.org/1999/XSL/Transform";
+    private final static String KEY_NAME_PREFIX = "_probatron_key_";
+
+    private final static String QNAME = "[A-Za-z_][\\w.-]*(?::[A-Za-z_][\\w.-]*)?";
+    private final static String STEP = "@?" + QNAME;
+    private final static String LOCAL_PATH = STEP + "(?:/" + STEP + ")*";
+    private final static String CURRENT_PATH = "current\\(\\)(?:/(?:" + STEP + "|\\.\\.))*";
+
+    private final static Pattern LOOKUP = Pattern.compile( "//(" + QNAME + "|\\*)\\[\\s*(?:("
+            + LOCAL_PATH + ")\\s*=\\s*(" + CURRENT_PATH + ")|(" + CURRENT_PATH + ")\\s*=\\s*("
+            + LOCAL_PATH + "))\\s*\\](?!\\s*\\[)" );
+
+    // match + " " + use -> key name
+    private LinkedHashMap< String, String > keys = new LinkedHashMap< String, String >();
+    private List< String > accelerated = new ArrayList< String >();
+    private String rule;
+    private int depth;
+
+
+    @Override
+    public void startElement( String uri, String localName, String name, Attributes atts )
+            throws SAXException
+    {
+        depth++;
+
+        if( uri.equals( XSLT_NAME ) )
+        {
+            if( depth == 2 && localName.equals( "template" ) )
+            {
+                rule = atts.getValue( "match" );
+            }
+            else if( rule != null && localName.equals( "when" ) )
+            {
+                atts = rewrite( atts, "test", "assert" );
+            }
+            else if( rule != null && localName.equals( "if" ) )
+            {
+                atts = rewrite( atts, "test", "report" );
+            }
+            else if( rule != null && localName.equals( "variable" ) )
+            {
+                atts = rewrite( atts, "select", "let $" + atts.getValue( "name" ) );
+            }
+        }
+
+        super.startElement( uri, localName, name, atts );
+    }
+
+
+    @Override
+    public void endElement( String uri, String localName, String name ) throws SAXException
+    {
+        if( depth == 2 )
+        {
+            rule = null;
+        }
+        else if( depth == 1 )
+        {
+            writeKeys();
+        }
+
+        depth--;
+        super.endElement( uri, localName, name );
+    }
+
+
+    /**
+     * @return the attributes, with the named one rewritten if it contains any lookup which can
+     *         be accelerated
+     */
+    private Attributes rewrite( Attributes atts, String attName, String where )
+    {
+        String expr = atts.getValue( attName );
+        if( expr == null || expr.indexOf( "//" ) == -1 )
+        {
+            return atts;
+        }
+
+        // matched against a copy without literals, so that their content cannot match
+        String stripped = SchemaCostAnalyzer.stripLiterals( expr );
+        Matcher m = LOOKUP.matcher( stripped );
+        StringBuilder sb = new StringBuilder();
+        int last = 0;
+
+        while( m.find() )
+        {
+            if( !SchemaCostAnalyzer.startsFromRoot( stripped, m.start() ) )
+            {
+                continue;
+            }
+
+            String match = m.group( 1 );
+            String use = m.group( 2 ) != null ? m.group( 2 ) : m.group( 5 );
+            String value = m.group( 3 ) != null ? m.group( 3 ) : m.group( 4 );
+
+            sb.append( expr, last, m.start() );
+            sb.append( "key('" ).append( keyName( match, use ) ).append( "', " ).append(
+                    value ).append( ")" );
+            last = m.end();
+        }
+
+        if( last == 0 )
+        {
+            return atts;
+        }
+
+        sb.append( expr.substring( last ) );
+        String rewritten = sb.toString();
+        String entry = where + " in rule '" + rule + "': " + expr + " -> " + rewritten;
+        logger.debug( "Accelerated " + entry );
+        accelerated.add( entry );
+
+        AttributesImpl newAtts = new AttributesImpl( atts );
+        newAtts.setValue( newAtts.getIndex( attName ), rewritten );
+        return newAtts;
+    }
+
+
+    private String keyName( String match, String use )
+    {
+        String id = match + " " + use;
+        String keyName = keys.get( id );
+        if( keyName == null )
+        {
+            keyName = KEY_NAME_PREFIX + ( keys.size() + 1 );
+            keys.put( id, keyName );
+        }
+        return keyName;
+    }
+
+
+    /**
+     * Writes the key declarations as the last children of the stylesheet element.
+     */
+    private void writeKeys() throws SAXException
+    {
+        if( keys.isEmpty() )
+        {
+            return;
+        }
+
+        super.startPrefixMapping( "xsl", XSLT_NAME );
+        Iterator< String > iter = keys.keySet().iterator();
+        while( iter.hasNext() )
+        {
+            String id = iter.next();
+            int space = id.indexOf( ' ' );
+            AttributesImpl atts = new AttributesImpl();
+            atts.addAttribute( "", "name", "name", "CDATA", keys.get( id ) );
+            atts.addAttribute( "", "match", "match", "CDATA", id.substring( 0, space ) );
+            atts.addAttribute( "", "use", "use", "CDATA", id.substring( space + 1 ) );
+            super.startElement( XSLT_NAME, "key", "xsl:key", atts );
+            super.endElement( XSLT_NAME, "key", "xsl:key" );
+        }
+        super.endPrefixMapping( "xsl" );
+    }
+
+
+    /**
+     * @return a description of each expression rewritten, in schema order
+     */
+    public List< String > getAccelerated()
+    {
+        return accelerated;
+    }
+
+
+    /**
+     * Records the expressions rewritten in the passed properties, in the form understood by
+     * {@link CompiledSchema#getAccelerated()}, after any recorded there already.
+     */
+    public void recordAccelerated( Properties p )
+    {
+        int recorded = 0;
+        while( p.getProperty( PROPERTY_ACCELERATED_PREFIX + ( recorded + 1 ) ) != null )
+        {
+            recorded++;
+        }
+
+        for( int i = 0; i < accelerated.size(); i++ )
+        {
+            p.setProperty( PROPERTY_ACCELERATED_PREFIX + ( recorded + i + 1 ), accelerated
+                    .get( i ) );
+        }
+    }
+
+}
@@ -0,0 +1,451 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Moves rule-level variables (Schematron's &lt;let> within a &lt;rule>) whose values do not
+ * depend on the node the rule fires on, such as <tt>count(//fig)</tt>, out of the rule's
+ * template into global variables, which Saxon evaluates lazily, once per candidate, on first
+ * reference. The rule-level variable is kept, bound to the global, so no reference to it
+ * needs changing. Rule-level variables with the same value share one global.
+ * <p>
+ * It filters the validating XSLT as the skeleton generates it. Whether a value depends on the
+ * context is decided lexically and conservatively: one is moved only if, outside predicates,
+ * every path in it starts from the root, a variable or a function call (not a kind test such
+ * as <tt>text()</tt>, which is a step), it makes no use of <tt>current()</tt> or of functions
+ * which take the context node by default, and every variable it references is global.
+ */
+public class LetHoistingFilter extends XMLFilterImpl
+{
+    static Logger logger = LogManager.getLogger( LetHoistingFilter.class.getName());
+
+    private final static String XSLT_NAME = "http://www.w3.org/1999/XSL/Transform";
+    private final static String DEFAULT_GLOBAL_NAME_PREFIX = "_probatron_let_";
+
+    // functions which, called without arguments, apply to the context item
+    private final static Set< String > CONTEXT_FUNCTIONS = new HashSet< String >( Arrays.asList(
+            "position", "last", "name", "local-name", "namespace-uri", "string", "number",
+            "normalize-space", "string-length", "data", "root", "base-uri", "document-uri",
+            "node-name", "nilled", "generate-id", "path", "has-children", "element-with-id" ) );
+
+    // functions which use the context node whatever their arguments
+    private final static Set< String > CONTEXT_ALWAYS = new HashSet< String >( Arrays.asList(
+            "current", "lang", "context-item" ) );
+
+    // node tests which look like function calls, but are steps relative to the context
+    private final static Set< String > KIND_TESTS = new HashSet< String >( Arrays.asList(
+            "node", "text", "comment", "processing-instruction", "element", "attribute",
+            "document-node", "schema-element", "schema-attribute", "namespace-node" ) );
+
+    // keywords after which the rest of the expression cannot be analyzed simply
+    private final static Set< String > TYPE_OPERATORS = new HashSet< String >( Arrays.asList(
+            "instance", "treat", "cast", "castable" ) );
+
+    // value -> name of the global variable holding it, in order of discovery
+    private LinkedHashMap< String, String > globals = new LinkedHashMap< String, String >();
+    private Set< String > globalNames = new HashSet< String >();
+    // the variables and parameters declared so far within the current template
+    private Set< String > locals = new HashSet< String >();
+    private boolean inRule;
+    private int depth;
+    private final String globalNamePrefix;
+
+
+    public LetHoistingFilter()
+    {
+        this( DEFAULT_GLOBAL_NAME_PREFIX );
+    }
+
+
+    /**
+     * @param globalNamePrefix
+     *            the prefix of the names of the global variables created, which are numbered
+     */
+    public LetHoistingFilter( String globalNamePrefix )
+    {
+        this.globalNamePrefix = globalNamePrefix;
+    }
+
+
+    @Override
+    public void startElement( String uri, String localName, String name, Attributes atts )
+            throws SAXException
+    {
+        depth++;
+
+        if( uri.equals( XSLT_NAME ) )
+        {
+            if( depth == 2 && ( localName.equals( "variable" ) || localName.equals( "param" ) ) )
+            {
+                globalNames.add( atts.getValue( "name" ) );
+            }
+            else if( depth == 2 && localName.equals( "template" ) )
+            {
+                inRule = isRuleTemplate( atts );
+                locals.clear();
+            }
+            else if( depth > 2
+                    && ( localName.equals( "variable" ) || localName.equals( "param" ) ) )
+            {
+                if( depth == 3 && inRule && localName.equals( "variable" ) )
+                {
+                    atts = hoist( atts );
+                }
+                locals.add( atts.getValue( "name" ) );
+            }
+        }
+
+        super.startElement( uri, localName, name, atts );
+    }
+
+
+    @Override
+    public void endElement( String uri, String localName, String name ) throws SAXException
+    {
+        if( depth == 2 )
+        {
+            inRule = false;
+        }
+        else if( depth == 1 )
+        {
+            writeGlobals();
+        }
+
+        depth--;
+        super.endElement( uri, localName, name );
+    }
+
+
+    /**
+     * @return whether the template's attributes are those the skeleton gives the template for
+     *         a rule
+     */
+    private static boolean isRuleTemplate( Attributes atts )
+    {
+        String mode = atts.getValue( "mode" );
+        return mode != null && mode.matches( "M\\d+" ) && atts.getValue( "priority" ) != null;
+    }
+
+
+    /**
+     * @return the attributes of the rule-level variable, rebound to a global if its value does
+     *         not depend on the context
+     */
+    private Attributes hoist( Attributes atts )
+    {
+        String localName = atts.getValue( "name" );
+        String select = atts.getValue( "select" );
+        if( localName == null || select == null || atts.getLength() != 2
+                || !isContextFree( select ) )
+        {
+            return atts;
+        }
+
+        String globalName = globals.get( select );
+        if( globalName == null )
+        {
+            globalName = globalNamePrefix + ( globals.size() + 1 );
+            globals.put( select, globalName );
+            logger.debug( "Hoisting let $" + localName + " to global $" + globalName + ": "
+                    + select );
+        }
+
+        AttributesImpl newAtts = new AttributesImpl( atts );
+        newAtts.setValue( newAtts.getIndex( "select" ), "$" + globalName );
+        return newAtts;
+    }
+
+
+    /**
+     * Writes the global variables as the last children of the stylesheet element.
+     */
+    private void writeGlobals() throws SAXException
+    {
+        Iterator< String > iter = globals.keySet().iterator();
+        while( iter.hasNext() )
+        {
+            String select = iter.next();
+            AttributesImpl atts = new AttributesImpl();
+            atts.addAttribute( "", "name", "name", "CDATA", globals.get( select ) );
+            atts.addAttribute( "", "select", "select", "CDATA", select );
+            super.startPrefixMapping( "xsl", XSLT_NAME );
+            super.startElement( XSLT_NAME, "variable", "xsl:variable", atts );
+            super.endElement( XSLT_NAME, "variable", "xsl:variable" );
+            super.endPrefixMapping( "xsl" );
+        }
+    }
+
+
+    /**
+     * @return whether the value of the XPath expression is certainly the same whichever node
+     *         of the candidate is the context
+     */
+    boolean isContextFree( String expr )
+    {
+        List< String > tokens = tokenize( expr );
+        if( tokens == null )
+        {
+            return false;
+        }
+
+        // variables bound within the expression itself, by for, some, every or let
+        Set< String > bound = new HashSet< String >();
+        for( int i = 0; i + 1 < tokens.size(); i++ )
+        {
+            String next = tokens.get( i + 1 );
+            if( tokens.get( i ).startsWith( "$" )
+                    && ( next.equals( "in" ) || next.equals( ":=" ) ) )
+            {
+                bound.add( tokens.get( i ).substring( 1 ) );
+            }
+        }
+
+        int predicates = 0;
+        List< String > brackets = new ArrayList< String >();
+        boolean operand = false; // whether the previous token ended an operand
+        String prev = "";
+
+        for( int i = 0; i < tokens.size(); i++ )
+        {
+            String t = tokens.get( i );
+            String next = i + 1 < tokens.size() ? tokens.get( i + 1 ) : "";
+            boolean continuesPath = prev.equals( "/" ) || prev.equals( "//" )
+                    || prev.equals( "::" ) || prev.equals( "@" );
+
+            if( t.equals( "[" ) || t.equals( "(" ) )
+            {
+                brackets.add( t );
+                predicates += t.equals( "[" ) ? 1 : 0;
+                operand = false;
+            }
+            else if( t.equals( "]" ) || t.equals( ")" ) )
+            {
+                if( brackets.isEmpty() )
+                {
+                    return false;
+                }
+                predicates -= brackets.remove( brackets.size() - 1 ).equals( "[" ) ? 1 : 0;
+                operand = true;
+            }
+            else if( t.startsWith( "$" ) )
+            {
+                String var = t.substring( 1 );
+                if( !bound.contains( var )
+                        && ( !globalNames.contains( var ) || locals.contains( var ) ) )
+                {
+                    return false;
+                }
+                operand = true;
+            }
+            else if( t.startsWith( "'" ) || t.startsWith( "\"" )
+                    || Character.isDigit( t.charAt( 0 ) ) )
+            {
+                operand = true;
+            }
+            else if( KIND_TESTS.contains( t ) && !operand && next.equals( "(" ) )
+            {
+                if( predicates == 0 && !continuesPath )
+                {
+                    return false; // a relative path, such as text()
+                }
+                operand = false;
+            }
+            else if( isName( t ) && !operand && next.equals( "(" ) )
+            {
+                String local = t.substring( t.indexOf( ':' ) + 1 );
+                boolean noArgs = i + 2 < tokens.size() && tokens.get( i + 2 ).equals( ")" );
+                if( CONTEXT_ALWAYS.contains( local )
+                        || ( predicates == 0 && noArgs && CONTEXT_FUNCTIONS.contains( local ) ) )
+                {
+                    return false;
+                }
+                operand = false;
+            }
+            else if( isName( t ) && operand )
+            {
+                // an operator such as "and" or "div"
+                if( TYPE_OPERATORS.contains( t ) )
+                {
+                    return false;
+                }
+                operand = false;
+            }
+            else if( isName( t ) && next.startsWith( "$" ) )
+            {
+                operand = false; // for, some, every or let
+            }
+            else if( isName( t ) && next.equals( "::" ) )
+            {
+                if( predicates == 0 && !continuesPath )
+                {
+                    return false; // a relative path
+                }
+                operand = false;
+            }
+            else if( isName( t ) || t.equals( "*" ) && !operand || t.equals( "." )
+                    || t.equals( ".." ) )
+            {
+                if( predicates == 0 && !continuesPath )
+                {
+                    return false; // a relative path
+                }
+                operand = true;
+            }
+            else if( t.equals( "@" ) )
+            {
+                if( predicates == 0 && !continuesPath )
+                {
+                    return false;
+                }
+                operand = false;
+            }
+            else
+            {
+                // an operator or path separator
+                operand = false;
+            }
+
+            prev = t;
+        }
+
+        return brackets.isEmpty();
+    }
+
+
+    private static boolean isName( String t )
+    {
+        char c = t.charAt( 0 );
+        return Character.isLetter( c ) || c == '_';
+    }
+
+
+    /**
+     * Splits an XPath expression into tokens, dropping comments.
+     *
+     * @return the tokens, or null if the expression cannot be tokenized
+     */
+    private static List< String > tokenize( String expr )
+    {
+        List< String > tokens = new ArrayList< String >();
+        int i = 0;
+        int n = expr.length();
+
+        while( i < n )
+        {
+            char c = expr.charAt( i );
+            if( Character.isWhitespace( c ) )
+            {
+                i++;
+            }
+            else if( expr.startsWith( "(:", i ) )
+            {
+                int end = expr.indexOf( ":)", i + 2 );
+                if( end == -1 )
+                {
+                    return null;
+                }
+                i = end + 2;
+            }
+            else if( c == '\'' || c == '"' )
+            {
+                int end = expr.indexOf( c, i + 1 );
+                if( end == -1 )
+                {
+                    return null;
+                }
+                tokens.add( expr.substring( i, end + 1 ) );
+                i = end + 1;
+            }
+            else if( Character.isDigit( c ) || c == '.' && i + 1 < n
+                    && Character.isDigit( expr.charAt( i + 1 ) ) )
+            {
+                int start = i;
+                while( i < n && ( Character.isLetterOrDigit( expr.charAt( i ) )
+                        || expr.charAt( i ) == '.' ) )
+                {
+                    i++;
+                }
+                tokens.add( expr.substring( start, i ) );
+            }
+            else if( c == '$' || Character.isLetter( c ) || c == '_' )
+            {
+                int start = i++;
+                while( i < n && isNameChar( expr.charAt( i ) ) )
+                {
+                    i++;
+                }
+                // a prefixed name, or a wildcard such as prefix:*
+                if( i + 1 < n && expr.charAt( i ) == ':' && expr.charAt( i + 1 ) != ':'
+                        && expr.charAt( i + 1 ) != '=' )
+                {
+                    i++;
+                    if( expr.charAt( i ) == '*' )
+                    {
+                        i++;
+                    }
+                    while( i < n && isNameChar( expr.charAt( i ) ) )
+                    {
+                        i++;
+                    }
+                }
+                tokens.add( expr.substring( start, i ) );
+            }
+            else
+            {
+                String[] symbols = { "//", "::", "..", ":=", "!=", "<=", ">=", "||", "=>" };
+                String symbol = String.valueOf( c );
+                for( int j = 0; j < symbols.length; j++ )
+                {
+                    if( expr.startsWith( symbols[ j ], i ) )
+                    {
+                        symbol = symbols[ j ];
+                        break;
+                    }
+                }
+                tokens.add( symbol );
+                i += symbol.length();
+            }
+        }
+
+        return tokens;
+    }
+
+
+    private static boolean isNameChar( char c )
+    {
+        return Character.isLetterOrDigit( c ) || c == '_' || c == '-' || c == '.';
+    }
+
+}
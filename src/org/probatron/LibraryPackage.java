@@ -0,0 +1,173 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+import net.sf.saxon.s9api.XsltPackage;
+
+/**
+ * A library pattern compiled once into an XSLT package, which the executables of every
+ * schema including it link against. Instances are immutable and shared by all schemas
+ * including the same library with the same namespace declarations.
+ * 
+ * @see IncludingFilter
+ */
+public class LibraryPackage
+{
+    /** prefix of the names given to library packages, which end with the library's digest */
+    public final static String PACKAGE_NAME_PREFIX = "http://www.probatron.org/package/";
+
+    private final String name;
+    private final XsltPackage xsltPackage;
+    private final List< String[] > overrides;
+
+
+    public LibraryPackage( String name, XsltPackage xsltPackage, List< String[] > overrides )
+    {
+        this.name = name;
+        this.xsltPackage = xsltPackage;
+        this.overrides = overrides;
+    }
+
+
+    /**
+     * @return the name of the package, as used by <tt>xsl:use-package</tt>
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+
+    /**
+     * @return the name of the package's public mode, applied to the candidate's root to apply
+     *         the library pattern
+     */
+    public String getModeName()
+    {
+        return modeName( name );
+    }
+
+
+    public XsltPackage getXsltPackage()
+    {
+        return xsltPackage;
+    }
+
+
+    /**
+     * @return the name, select expression and type (or null) of each variable the package
+     *         declares abstract
+     * @see PackagingFilter#getOverrides()
+     */
+    public List< String[] > getOverrides()
+    {
+        return overrides;
+    }
+
+
+    /**
+     * @return the EQName of the public mode of the package with the passed name
+     */
+    public static String modeName( String packageName )
+    {
+        return "Q{" + packageName + "}pattern";
+    }
+
+
+    /**
+     * @return why the passed library document cannot be compiled into a package of its own, or
+     *         null if it can: it must be a single concrete pattern, checking the candidate
+     *         itself, which neither includes other documents nor extends rules it does not
+     *         contain
+     */
+    public static String checkLibrary( XdmNode library )
+    {
+        XdmNode pattern = null;
+        XdmSequenceIterator< XdmNode > iter = library.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( child.getNodeKind() == XdmNodeKind.ELEMENT )
+            {
+                pattern = child;
+            }
+        }
+
+        if( pattern == null || !isSchematron( pattern, "pattern" ) )
+        {
+            return "not a pattern";
+        }
+        if( pattern.getAttributeValue( new QName( "abstract" ) ) != null
+                || pattern.getAttributeValue( new QName( "is-a" ) ) != null )
+        {
+            return "abstract pattern or instance";
+        }
+        if( pattern.getAttributeValue( new QName( "documents" ) ) != null )
+        {
+            return "pattern documents";
+        }
+
+        Set< String > abstractRules = new HashSet< String >();
+        Set< String > extended = new HashSet< String >();
+        iter = pattern.axisIterator( Axis.DESCENDANT );
+        while( iter.hasNext() )
+        {
+            XdmNode node = iter.next();
+            if( isSchematron( node, "include" ) )
+            {
+                return "includes";
+            }
+            else if( isSchematron( node, "rule" )
+                    && "true".equals( node.getAttributeValue( new QName( "abstract" ) ) ) )
+            {
+                abstractRules.add( node.getAttributeValue( new QName( "id" ) ) );
+            }
+            else if( isSchematron( node, "extends" )
+                    && node.getAttributeValue( new QName( "rule" ) ) != null )
+            {
+                extended.add( node.getAttributeValue( new QName( "rule" ) ) );
+            }
+        }
+
+        if( !abstractRules.containsAll( extended ) )
+        {
+            return "extends rules outside the library";
+        }
+        return null;
+    }
+
+
+    private static boolean isSchematron( XdmNode node, String localName )
+    {
+        return node.getNodeKind() == XdmNodeKind.ELEMENT
+                && node.getNodeName().getNamespaceURI().equals( Utils.SCHEMATRON_NAME )
+                && node.getNodeName().getLocalName().equals( localName );
+    }
+
+}
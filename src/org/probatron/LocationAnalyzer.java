@@ -20,6 +20,12 @@
 
 package org.probatron;
 
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.xml.sax.Attributes;
@@ -27,6 +33,7 @@ import org.xml.sax.ContentHandler;
 import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
 import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.LocatorImpl;
 
 public class LocationAnalyzer implements ContentHandler, LexicalHandler
 {
@@ -45,6 +52,46 @@ public class LocationAnalyzer implements ContentHandler, LexicalHandler
     }
 
 
+    /**
+     * Maps the locations of the elements of an already-built candidate, which must have been
+     * built with line numbering on, rather than those of a parse.
+     */
+    public void analyze( XdmNode doc ) throws SAXException
+    {
+        LocatorImpl nodeLoc = new LocatorImpl();
+        setDocumentLocator( nodeLoc );
+        startDocument();
+        XdmSequenceIterator< XdmNode > iter = doc.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            analyzeElement( iter.next(), nodeLoc );
+        }
+        endDocument();
+    }
+
+
+    private void analyzeElement( XdmNode node, LocatorImpl nodeLoc ) throws SAXException
+    {
+        if( node.getNodeKind() != XdmNodeKind.ELEMENT )
+        {
+            return;
+        }
+
+        // as a parser reports it: where the start tag ends
+        nodeLoc.setLineNumber( node.getLineNumber() );
+        nodeLoc.setColumnNumber( node.getColumnNumber() );
+        QName name = node.getNodeName();
+        startElement( name.getNamespaceURI(), name.getLocalName(), name.toString(), null );
+
+        XdmSequenceIterator< XdmNode > iter = node.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            analyzeElement( iter.next(), nodeLoc );
+        }
+        endElement( name.getNamespaceURI(), name.getLocalName(), name.toString() );
+    }
+
+
     public void characters( char[] arg0, int arg1, int arg2 ) throws SAXException
     {
     // do nothing
@@ -0,0 +1,1630 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmEmptySequence;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+import net.sf.saxon.s9api.XdmValue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * A Schematron schema compiled for evaluation directly over s9api XPath, without generating
+ * XSLT: rule contexts are compiled as match patterns, and tests, variables and the expressions
+ * in messages as XPath expressions. Validation walks the candidate once, dispatching each node
+ * to the first rule whose context matches it in every active pattern, and writes the SVRL the
+ * skeleton's XSLT would have written, where each pattern has a walk of its own. Where the
+ * session allows more than one thread, the patterns are divided into groups which walk the
+ * candidate concurrently, as its tree is immutable, and their SVRL is merged in schema order.
+ * <p>
+ * Only schemas with the <tt>xslt2</tt> query binding whose expressions are plain XPath (with
+ * <tt>current()</tt>) can be compiled this way. The constructor throws
+ * {@link UnsupportedOperationException} for anything else, such as XSLT keys or functions,
+ * properties, <tt>position()</tt> or <tt>last()</tt> outside a predicate, or an expression
+ * which does not compile, so that the caller can fall back to XSLT. Instances are immutable and may be shared between threads.
+ */
+public class NativeSchema
+{
+    static Logger logger = LogManager.getLogger( NativeSchema.class.getName());
+
+    private final static String XSLT_NAME = "http://www.w3.org/1999/XSL/Transform";
+    private final static String XML_NAME = "http://www.w3.org/XML/1998/namespace";
+    private final static String XSD_NAME = "http://www.w3.org/2001/XMLSchema";
+    private final static String OLD_SCHEMATRON_NAME = "http://www.ascc.net/xml/schematron";
+
+    // the variable to which current() is rewritten, as XPath outside XSLT has no such function
+    private final static QName CURRENT = new QName( "http://www.probatron.org/native", "current" );
+    private final static Pattern CURRENT_CALL = Pattern
+            .compile( "(?<![\\w.:$-])current\\s*\\(\\s*\\)" );
+    // the focus functions, whose value outside a predicate depends on the position the
+    // skeleton's apply-templates gives the node, which a walk of single nodes does not have
+    private final static Pattern FOCUS_CALL = Pattern
+            .compile( "(?<![\\w.:$-])(position|last)\\s*\\(\\s*\\)" );
+    private final static Pattern VARIABLE_REFERENCE = Pattern
+            .compile( "\\$\\s*([A-Za-z_][\\w.-]*)" );
+
+    // the text of the comment at the start of the SVRL, which the skeleton fills with the
+    // (unset) archive and file name parameters
+    private final static String PROLOG_COMMENT = " \u00a0  \u00a0 \n        \u00a0 ";
+
+    private final static String ASSERT = "assert";
+    private final static String REPORT = "report";
+    private final static String TITLE = "title";
+
+    private LinkedHashMap< String, String > namespaces = new LinkedHashMap< String, String >();
+    private TreeMap< String, String > outputNamespaces = new TreeMap< String, String >();
+    private URI baseUri;
+    private HashMap< String, List< XdmNode >> diagnostics = new HashMap< String, List< XdmNode >>();
+    private HashMap< String, List< XdmNode >> abstractRules = new HashMap< String, List< XdmNode >>();
+
+    private String title;
+    private String schemaVersion;
+    private String phase;
+    private List< Message > schemaParagraphs = new ArrayList< Message >();
+    private List< Object > contents = new ArrayList< Object >();
+    private List< NativePattern > patterns = new ArrayList< NativePattern >();
+    private List< Let > globals = new ArrayList< Let >();
+    private List< QName > globalNames = new ArrayList< QName >();
+    // the names of the schema-level variables, whose values may be supplied by the session
+    private Set< String > parameterNames = new HashSet< String >();
+    private int expressionCount;
+
+    // which nodes each pattern visits, which the skeleton decides from the text of the rule
+    // contexts: attributes if any might match one, and comments and processing instructions
+    // only if none has a parenthesis (so, perversely, not if any is comment())
+    private boolean visitAttributes;
+    private boolean onlyChildElements;
+    // whether the fired-rule and active-pattern elements are left out of the SVRL
+    private boolean compact;
+
+
+    /**
+     * Compiles the passed schema, which must already have had its inclusions performed and its
+     * abstract patterns expanded.
+     *
+     * @param phase
+     *            the phase to validate, or null or empty for the schema's default phase
+     * @param compact
+     *            whether to leave out the fired-rule and active-pattern elements, as compact
+     *            reports do not include them
+     * @throws UnsupportedOperationException
+     *             if the schema uses something this engine cannot evaluate
+     */
+    public NativeSchema( XdmNode schemaDoc, String phase, boolean compact )
+    {
+        XdmNode schema = firstChildElement( schemaDoc );
+        if( schema == null || !isSchematron( schema, "schema" ) )
+        {
+            throw new UnsupportedOperationException( "not an ISO Schematron schema" );
+        }
+        if( !"xslt2".equals( attribute( schema, "queryBinding" ) ) )
+        {
+            throw new UnsupportedOperationException( "query binding is not xslt2" );
+        }
+
+        this.baseUri = schemaDoc.getBaseURI();
+        // as the skeleton's phase parameter defaults
+        String defaultPhase = schema.getAttributeValue( new QName( "defaultPhase" ) );
+        if( phase == null || phase.length() == 0 )
+        {
+            phase = defaultPhase == null ? PhaseFilter.ALL_PHASES : defaultPhase;
+        }
+        this.phase = phase;
+        this.compact = compact;
+        this.title = lastOf( attribute( schema, "id" ), children( schema, "title" ) );
+        this.schemaVersion = attribute( schema, "schemaVersion" );
+
+        try
+        {
+            compileSchema( schema );
+        }
+        catch( SaxonApiException e )
+        {
+            throw new UnsupportedOperationException( "cannot compile as XPath: " + e.getMessage(),
+                    e );
+        }
+    }
+
+
+    private void compileSchema( XdmNode schema ) throws SaxonApiException
+    {
+        // the namespaces in scope in the stylesheet the skeleton would have generated
+        namespaces.put( "xsl", XSLT_NAME );
+        namespaces.put( "iso", Utils.SCHEMATRON_NAME );
+        namespaces.put( "schold", OLD_SCHEMATRON_NAME );
+        namespaces.put( "svrl", Utils.SVRL_NAME );
+        namespaces.put( "xhtml", "http://www.w3.org/1999/xhtml" );
+        namespaces.put( "xs", XSD_NAME );
+        namespaces.put( "xsd", XSD_NAME );
+        namespaces.put( "saxon", "http://saxon.sf.net/" );
+
+        List< XdmNode > lets = new ArrayList< XdmNode >();
+        Iterator< XdmNode > iter = childElements( schema ).iterator();
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( XSLT_NAME.equals( child.getNodeName().getNamespaceURI() ) )
+            {
+                throw new UnsupportedOperationException( "XSLT declaration "
+                        + child.getNodeName() );
+            }
+            if( !isSchematron( child, null ) )
+            {
+                continue;
+            }
+
+            String name = child.getNodeName().getLocalName();
+            if( name.equals( "ns" ) )
+            {
+                String prefix = attribute( child, "prefix" );
+                String uri = attribute( child, "uri" );
+                if( prefix.equals( "svrl" ) && !uri.equals( Utils.SVRL_NAME ) )
+                {
+                    throw new UnsupportedOperationException( "svrl prefix redeclared" );
+                }
+                namespaces.put( prefix, uri );
+                contents.add( new String[] { uri, prefix } );
+            }
+            else if( name.equals( "let" ) )
+            {
+                lets.add( child );
+                parameterNames.add( attribute( child, "name" ) );
+            }
+            else if( name.equals( "phase" ) )
+            {
+                lets.addAll( children( child, "let" ) );
+            }
+            else if( name.equals( "pattern" ) && isActive( schema, child ) )
+            {
+                if( child.getAttributeValue( new QName( "documents" ) ) != null )
+                {
+                    throw new UnsupportedOperationException( "pattern documents" );
+                }
+                lets.addAll( children( child, "let" ) );
+                contents.add( child );
+            }
+            else if( name.equals( "diagnostics" ) )
+            {
+                Iterator< XdmNode > diagIter = children( child, "diagnostic" ).iterator();
+                while( diagIter.hasNext() )
+                {
+                    XdmNode diag = diagIter.next();
+                    listFor( diagnostics, attribute( diag, "id" ) ).add( diag );
+                }
+            }
+            else if( name.equals( "properties" ) || name.equals( "key" )
+                    || name.equals( "function" ) )
+            {
+                throw new UnsupportedOperationException( "schema-level " + name );
+            }
+        }
+
+        outputNamespaces.putAll( namespaces );
+        outputNamespaces.remove( "xsl" );
+        collectRules( schema );
+        compileGlobals( lets );
+
+        Scope global = new Scope();
+        Iterator< XdmNode > pIter = children( schema, "p" ).iterator();
+        while( pIter.hasNext() )
+        {
+            schemaParagraphs.add( compileMessage( pIter.next(), "", global ) );
+        }
+
+        // the patterns replace themselves in the contents
+        for( int i = 0; i < contents.size(); i++ )
+        {
+            if( contents.get( i ) instanceof XdmNode )
+            {
+                NativePattern p = compilePattern( ( XdmNode )contents.get( i ), global );
+                p.index = patterns.size();
+                patterns.add( p );
+                contents.set( i, p );
+            }
+        }
+    }
+
+
+    /**
+     * @return whether the skeleton would generate the passed pattern for this schema's phase
+     */
+    private boolean isActive( XdmNode schema, XdmNode pattern )
+    {
+        if( phase.equals( PhaseFilter.ALL_PHASES ) )
+        {
+            return true;
+        }
+
+        // a pattern with no id cannot be made active by a phase
+        String id = attribute( pattern, "id" );
+        if( id.length() == 0 )
+        {
+            return false;
+        }
+
+        Iterator< XdmNode > iter = children( schema, "phase" ).iterator();
+        while( iter.hasNext() )
+        {
+            XdmNode p = iter.next();
+            if( phase.equals( attribute( p, "id" ) ) )
+            {
+                Iterator< XdmNode > activeIter = children( p, "active" ).iterator();
+                while( activeIter.hasNext() )
+                {
+                    if( id.equals( attribute( activeIter.next(), "pattern" ) ) )
+                    {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Records the rules which can be extended, and which nodes the rule contexts require
+     * visiting.
+     */
+    private void collectRules( XdmNode node )
+    {
+        Iterator< XdmNode > iter = childElements( node ).iterator();
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( isSchematron( child, "rule" ) )
+            {
+                String context = attribute( child, "context" );
+                visitAttributes |= context.indexOf( '@' ) != -1
+                        || context.indexOf( "attribute" ) != -1;
+                onlyChildElements |= context.indexOf( '(' ) != -1;
+
+                // a concrete rule is recorded as null: the skeleton would copy its text into
+                // any rule extending it
+                if( child.getAttributeValue( new QName( "id" ) ) != null )
+                {
+                    listFor( abstractRules, attribute( child, "id" ) ).add(
+                            "true".equals( attribute( child, "abstract" ) ) ? child : null );
+                }
+            }
+            else
+            {
+                collectRules( child );
+            }
+        }
+    }
+
+
+    /**
+     * Compiles the variables declared at the top level of the stylesheet the skeleton would
+     * generate, ordering them so that each is evaluated after those it refers to.
+     */
+    private void compileGlobals( List< XdmNode > lets ) throws SaxonApiException
+    {
+        LinkedHashMap< String, XdmNode > byName = new LinkedHashMap< String, XdmNode >();
+        Iterator< XdmNode > iter = lets.iterator();
+        while( iter.hasNext() )
+        {
+            XdmNode let = iter.next();
+            String name = letName( let );
+            if( byName.put( name, let ) != null )
+            {
+                throw new UnsupportedOperationException( "variable declared twice: " + name );
+            }
+            globalNames.add( new QName( name ) );
+        }
+
+        Scope scope = new Scope();
+        List< String > ordered = new ArrayList< String >();
+        Iterator< String > nameIter = byName.keySet().iterator();
+        while( nameIter.hasNext() )
+        {
+            order( nameIter.next(), byName, ordered, new HashSet< String >() );
+        }
+
+        nameIter = ordered.iterator();
+        while( nameIter.hasNext() )
+        {
+            String name = nameIter.next();
+            globals.add( new Let( new QName( name ), scope.compile( attribute( byName.get( name ),
+                    "value" ), false ) ) );
+        }
+    }
+
+
+    private static void order( String name, Map< String, XdmNode > byName, List< String > ordered,
+            Set< String > visiting )
+    {
+        if( ordered.contains( name ) )
+        {
+            return;
+        }
+        if( !visiting.add( name ) )
+        {
+            throw new UnsupportedOperationException( "circular variable: " + name );
+        }
+
+        Matcher m = VARIABLE_REFERENCE.matcher( SchemaCostAnalyzer.stripLiterals( attribute(
+                byName.get( name ), "value" ) ) );
+        while( m.find() )
+        {
+            if( byName.containsKey( m.group( 1 ) ) && !m.group( 1 ).equals( name ) )
+            {
+                order( m.group( 1 ), byName, ordered, visiting );
+            }
+        }
+        ordered.add( name );
+    }
+
+
+    private NativePattern compilePattern( XdmNode pattern, Scope global ) throws SaxonApiException
+    {
+        NativePattern p = new NativePattern();
+        p.id = attribute( pattern, "id" );
+        p.name = lastOf( p.id, children( pattern, "title" ) );
+        p.space = pattern.getAttributeValue( new QName( XML_NAME, "space" ) );
+        p.lang = pattern.getAttributeValue( new QName( XML_NAME, "lang" ) );
+
+        Iterator< XdmNode > iter = childElements( pattern ).iterator();
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( isSchematron( child, "p" ) )
+            {
+                p.paragraphs.add( compileMessage( child, "", global ) );
+            }
+            else if( isSchematron( child, "rule" ) && !"true".equals( attribute( child, "abstract" ) ) )
+            {
+                p.rules.add( compileRule( child ) );
+            }
+        }
+        return p;
+    }
+
+
+    private Rule compileRule( XdmNode rule ) throws SaxonApiException
+    {
+        if( rule.getAttributeValue( new QName( "properties" ) ) != null )
+        {
+            throw new UnsupportedOperationException( "rule properties" );
+        }
+
+        Rule r = new Rule();
+        Scope scope = new Scope();
+        r.contextText = attribute( rule, "context" );
+        r.context = scope.compile( r.contextText, true );
+        r.id = attribute( rule, "id" );
+        r.role = attribute( rule, "role" );
+        r.space = rule.getAttributeValue( new QName( XML_NAME, "space" ) );
+        r.lang = rule.getAttributeValue( new QName( XML_NAME, "lang" ) );
+        compileRuleBody( rule, r, scope, new HashSet< XdmNode >() );
+        return r;
+    }
+
+
+    /**
+     * Compiles the lets, asserts and reports of a rule, and of the abstract rules it extends,
+     * into the body of the passed rule, in the order the skeleton would generate them.
+     */
+    private void compileRuleBody( XdmNode rule, Rule r, Scope scope, Set< XdmNode > extending )
+            throws SaxonApiException
+    {
+        if( !extending.add( rule ) )
+        {
+            throw new UnsupportedOperationException( "circular extends" );
+        }
+
+        Iterator< XdmNode > iter = childElements( rule ).iterator();
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( !isSchematron( child, null ) )
+            {
+                continue;
+            }
+
+            String name = child.getNodeName().getLocalName();
+            if( name.equals( "let" ) )
+            {
+                QName var = new QName( letName( child ) );
+                r.body.add( new Let( var, scope.compile( attribute( child, "value" ), false ) ) );
+                scope.declare( var );
+            }
+            else if( name.equals( "assert" ) || name.equals( "report" ) )
+            {
+                r.body.add( compileCheck( child, name, scope ) );
+            }
+            else if( name.equals( "title" ) )
+            {
+                r.body.add( compileCheck( child, TITLE, scope ) );
+            }
+            else if( name.equals( "extends" ) )
+            {
+                if( child.getAttributeValue( new QName( "rule" ) ) == null )
+                {
+                    throw new UnsupportedOperationException( "extends without rule" );
+                }
+                List< XdmNode > targets = abstractRules.get( attribute( child, "rule" ) );
+                for( int i = 0; targets != null && i < targets.size(); i++ )
+                {
+                    if( targets.get( i ) == null )
+                    {
+                        throw new UnsupportedOperationException( "extends a concrete rule" );
+                    }
+                    compileRuleBody( targets.get( i ), r, scope, extending );
+                }
+            }
+        }
+
+        extending.remove( rule );
+    }
+
+
+    private Check compileCheck( XdmNode node, String kind, Scope scope ) throws SaxonApiException
+    {
+        if( node.getAttributeValue( new QName( "properties" ) ) != null )
+        {
+            throw new UnsupportedOperationException( kind + " properties" );
+        }
+
+        Check c = new Check();
+        c.kind = kind;
+        c.message = compileMessage( node, "", scope );
+        if( kind == TITLE )
+        {
+            return c;
+        }
+
+        String test = attribute( node, "test" );
+        c.test = scope.compile( test, false );
+        c.testText = normalizeSpace( test );
+        c.id = attribute( node, "id" );
+        c.flag = attribute( node, "flag" );
+        c.role = attribute( node, "role" );
+        c.space = node.getAttributeValue( new QName( XML_NAME, "space" ) );
+        c.lang = node.getAttributeValue( new QName( XML_NAME, "lang" ) );
+
+        // as the skeleton's diagnosticsSplit does, split on single spaces
+        String[] refs = attribute( node, "diagnostics" ).split( " " );
+        for( int i = 0; i < refs.length; i++ )
+        {
+            if( normalizeSpace( refs[ i ] ).length() == 0 || !diagnostics.containsKey( refs[ i ] ) )
+            {
+                continue;
+            }
+
+            Iterator< XdmNode > iter = diagnostics.get( refs[ i ] ).iterator();
+            while( iter.hasNext() )
+            {
+                XdmNode diag = iter.next();
+                Diagnostic d = new Diagnostic();
+                d.id = attribute( diag, "id" );
+                d.space = diag.getAttributeValue( new QName( XML_NAME, "space" ) );
+                d.lang = diag.getAttributeValue( new QName( XML_NAME, "lang" ) );
+                d.message = compileMessage( diag, "\n", scope );
+                c.diagnostics.add( d );
+            }
+        }
+        return c;
+    }
+
+
+    /**
+     * Compiles the mixed content of an assert, report, diagnostic, title or paragraph. The
+     * parts are split where the skeleton would have generated an instruction, and a literal
+     * part consisting only of whitespace is dropped, as the XSLT processor would have stripped
+     * it from the generated stylesheet.
+     *
+     * @param prefix
+     *            text the skeleton writes before the content
+     */
+    private Message compileMessage( XdmNode node, String prefix, Scope scope )
+            throws SaxonApiException
+    {
+        Message m = new Message();
+        StringBuilder text = new StringBuilder( prefix );
+
+        XdmSequenceIterator< XdmNode > iter = node.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( child.getNodeKind() == XdmNodeKind.TEXT )
+            {
+                text.append( child.getStringValue() );
+            }
+            else if( child.getNodeKind() != XdmNodeKind.ELEMENT || !isSchematron( child, null ) )
+            {
+                continue;
+            }
+            else if( isSchematron( child, "name" ) )
+            {
+                m.addText( text );
+                String path = child.getAttributeValue( new QName( "path" ) );
+                m.parts.add( scope.compile( "name(" + ( path == null ? "." : path ) + ")", false ) );
+            }
+            else if( isSchematron( child, "value-of" ) )
+            {
+                m.addText( text );
+                String select = child.getAttributeValue( new QName( "select" ) );
+                m.parts.add( scope.compile( select == null ? "." : select, false ) );
+            }
+            else if( isSchematron( child, "emph" ) || isSchematron( child, "dir" )
+                    || isSchematron( child, "span" ) )
+            {
+                m.addText( text );
+                appendDescendantText( child, text );
+                m.addText( text );
+            }
+        }
+
+        m.addText( text );
+        return m;
+    }
+
+
+    private static void appendDescendantText( XdmNode node, StringBuilder text )
+    {
+        XdmSequenceIterator< XdmNode > iter = node.axisIterator( Axis.DESCENDANT );
+        while( iter.hasNext() )
+        {
+            XdmNode n = iter.next();
+            if( n.getNodeKind() == XdmNodeKind.TEXT )
+            {
+                text.append( n.getStringValue() );
+            }
+        }
+    }
+
+
+    /**
+     * Applies this schema to the passed document.
+     *
+     * @return the SVRL report, serialized as the skeleton's XSLT would have serialized it
+     */
+    public byte[] validate( XdmNode candidate, Session session ) throws SaxonApiException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Serializer ser = Runtime.getSaxonProcessor().newSerializer( baos );
+        ser.setOutputProperty( Serializer.Property.METHOD, "xml" );
+        ser.setOutputProperty( Serializer.Property.OMIT_XML_DECLARATION, "no" );
+        ser.setOutputProperty( Serializer.Property.STANDALONE, "yes" );
+        ser.setOutputProperty( Serializer.Property.INDENT, "yes" );
+
+        Session previous = Session.setThreadSession( session );
+        try
+        {
+            new Evaluation( candidate, ser.getContentHandler(), session ).run();
+        }
+        catch( SAXException e )
+        {
+            throw new SaxonApiException( e );
+        }
+        finally
+        {
+            Session.setThreadSession( previous );
+        }
+
+        return baos.toByteArray();
+    }
+
+    /**
+     * The state of one validation.
+     */
+    private final class Evaluation
+    {
+        private final XdmNode document;
+        private final Session session;
+        private final ContentHandler result;
+        // where SVRL is being written: the result, or the buffer of the pattern being applied
+        private ContentHandler out;
+        private final XPathSelector[] selectors = new XPathSelector[ expressionCount ];
+        private final HashMap< QName, XdmValue > globalValues;
+        private final HashMap< XdmNode, String > paths = new HashMap< XdmNode, String >();
+        private final String documentUri;
+
+
+        Evaluation( XdmNode document, ContentHandler out, Session session )
+        {
+            this.document = document;
+            this.session = session;
+            this.result = out;
+            this.out = out;
+            this.globalValues = new HashMap< QName, XdmValue >();
+            String systemId = document.getUnderlyingNode().getSystemId();
+            this.documentUri = systemId == null ? "" : systemId;
+        }
+
+
+        /**
+         * Creates an evaluation for another thread, sharing the document and the (by then
+         * evaluated) globals of the passed one but none of its selectors.
+         */
+        Evaluation( Evaluation parent )
+        {
+            this.document = parent.document;
+            this.session = parent.session;
+            this.result = null;
+            this.out = null;
+            this.globalValues = parent.globalValues;
+            this.documentUri = parent.documentUri;
+        }
+
+
+        void run() throws SaxonApiException, SAXException
+        {
+            Iterator< Let > letIter = globals.iterator();
+            while( letIter.hasNext() )
+            {
+                Let let = letIter.next();
+                XdmValue supplied = parameterNames.contains( let.name.getLocalName() ) ? session
+                        .getSchemaParameters().get( let.name.getLocalName() ) : null;
+                globalValues.put( let.name, supplied != null ? supplied : evaluate( let.value,
+                        document, globalValues ) );
+            }
+
+            int threads = Math.min( session.getPatternThreads(), patterns.size() );
+            EventBuffer[] buffers = threads > 1 ? applyPatternGroups( threads )
+                    : applyPatterns( patterns );
+            out = result;
+
+            out.startDocument();
+            Iterator< Map.Entry< String, String >> nsIter = outputNamespaces.entrySet().iterator();
+            while( nsIter.hasNext() )
+            {
+                Map.Entry< String, String > ns = nsIter.next();
+                out.startPrefixMapping( ns.getKey(), ns.getValue() );
+            }
+
+            AttributesImpl atts = new AttributesImpl();
+            addAttribute( atts, "title", title );
+            addAttribute( atts, "schemaVersion", schemaVersion );
+            if( normalizeSpace( phase ).length() != 0
+                    && !normalizeSpace( phase ).equals( PhaseFilter.ALL_PHASES ) )
+            {
+                addAttribute( atts, "phase", phase );
+            }
+            startElement( "schematron-output", atts );
+            ( ( LexicalHandler )out ).comment( PROLOG_COMMENT.toCharArray(), 0, PROLOG_COMMENT
+                    .length() );
+
+            Iterator< Message > pIter = schemaParagraphs.iterator();
+            while( pIter.hasNext() )
+            {
+                writeText( pIter.next(), document, globalValues );
+            }
+
+            Iterator< Object > iter = contents.iterator();
+            while( iter.hasNext() )
+            {
+                Object part = iter.next();
+                if( part instanceof String[] )
+                {
+                    atts = new AttributesImpl();
+                    addAttribute( atts, "uri", ( ( String[] )part )[ 0 ] );
+                    addAttribute( atts, "prefix", ( ( String[] )part )[ 1 ] );
+                    startElement( "ns-prefix-in-attribute-values", atts );
+                    endElement( "ns-prefix-in-attribute-values" );
+                }
+                else
+                {
+                    buffers[ ( ( NativePattern )part ).index ].replay( out );
+                }
+            }
+
+            endElement( "schematron-output" );
+            nsIter = outputNamespaces.entrySet().iterator();
+            while( nsIter.hasNext() )
+            {
+                out.endPrefixMapping( nsIter.next().getKey() );
+            }
+            out.endDocument();
+        }
+
+
+        /**
+         * Applies the passed patterns in a single walk of the candidate.
+         *
+         * @return the SVRL each pattern writes, indexed by the pattern's position in the schema
+         */
+        private EventBuffer[] applyPatterns( List< NativePattern > ps ) throws SaxonApiException,
+                SAXException
+        {
+            EventBuffer[] buffers = new EventBuffer[ patterns.size() ];
+            Iterator< NativePattern > iter = ps.iterator();
+            while( iter.hasNext() )
+            {
+                NativePattern p = iter.next();
+                buffers[ p.index ] = new EventBuffer();
+                out = buffers[ p.index ];
+                writeActivePattern( p );
+            }
+
+            visit( ps, buffers, document );
+            return buffers;
+        }
+
+
+        /**
+         * Divides the patterns into the passed number of groups and applies each group on a
+         * thread of its own, in an evaluation of its own. The threads belong to a pool of this
+         * validation's, so that the number set for the session is the number used, and the
+         * validation neither waits on nor holds up other work on the common pool.
+         *
+         * @return the SVRL each pattern writes, indexed by the pattern's position in the schema
+         */
+        private EventBuffer[] applyPatternGroups( int groupCount ) throws SaxonApiException,
+                SAXException
+        {
+            List< PatternGroup > groups = new ArrayList< PatternGroup >();
+            for( int i = 0; i < groupCount; i++ )
+            {
+                groups.add( new PatternGroup( new Evaluation( this ) ) );
+            }
+            for( int i = 0; i < patterns.size(); i++ )
+            {
+                groups.get( i % groupCount ).patterns.add( patterns.get( i ) );
+            }
+
+            logger.debug( "Applying " + patterns.size() + " patterns in " + groupCount
+                    + " groups" );
+            List< Future< EventBuffer[] >> futures;
+            ForkJoinPool pool = new ForkJoinPool( groupCount );
+            try
+            {
+                futures = pool.invokeAll( groups );
+            }
+            finally
+            {
+                pool.shutdown();
+            }
+
+            EventBuffer[] buffers = new EventBuffer[ patterns.size() ];
+            for( int i = 0; i < futures.size(); i++ )
+            {
+                EventBuffer[] groupBuffers;
+                try
+                {
+                    groupBuffers = futures.get( i ).get();
+                }
+                catch( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new SaxonApiException( e );
+                }
+                catch( ExecutionException e )
+                {
+                    if( e.getCause() instanceof SaxonApiException )
+                    {
+                        throw ( SaxonApiException )e.getCause();
+                    }
+                    else if( e.getCause() instanceof SAXException )
+                    {
+                        throw ( SAXException )e.getCause();
+                    }
+                    throw new SaxonApiException( e.getCause() );
+                }
+
+                for( int j = 0; j < groupBuffers.length; j++ )
+                {
+                    if( groupBuffers[ j ] != null )
+                    {
+                        buffers[ j ] = groupBuffers[ j ];
+                    }
+                }
+            }
+            return buffers;
+        }
+
+
+        /**
+         * Writes the active-pattern element for the passed pattern, or in a compact report only
+         * the text of its paragraphs, which the element would have contained.
+         */
+        private void writeActivePattern( NativePattern p ) throws SaxonApiException, SAXException
+        {
+            if( !compact )
+            {
+                AttributesImpl atts = new AttributesImpl();
+                addAttribute( atts, "document", documentUri );
+                addNonEmpty( atts, "id", p.id );
+                addNonEmpty( atts, "name", p.name );
+                addRich( atts, p.space, p.lang );
+                startElement( "active-pattern", atts );
+            }
+            Iterator< Message > iter = p.paragraphs.iterator();
+            while( iter.hasNext() )
+            {
+                writeText( iter.next(), document, globalValues );
+            }
+            if( !compact )
+            {
+                endElement( "active-pattern" );
+            }
+        }
+
+
+        /**
+         * Fires the first rule of each pattern matching the passed node, if any, then visits
+         * its attributes and children as the skeleton's templates for each pattern do.
+         */
+        private void visit( List< NativePattern > ps, EventBuffer[] buffers, XdmNode node )
+                throws SaxonApiException, SAXException
+        {
+            for( int i = 0; i < ps.size(); i++ )
+            {
+                NativePattern p = ps.get( i );
+                for( int j = 0; j < p.rules.size(); j++ )
+                {
+                    Rule r = p.rules.get( j );
+                    if( select( r.context, node, globalValues ).effectiveBooleanValue() )
+                    {
+                        out = buffers[ p.index ];
+                        fire( r, node );
+                        break;
+                    }
+                }
+            }
+
+            if( visitAttributes && node.getNodeKind() == XdmNodeKind.ELEMENT )
+            {
+                XdmSequenceIterator< XdmNode > iter = node.axisIterator( Axis.ATTRIBUTE );
+                while( iter.hasNext() )
+                {
+                    visit( ps, buffers, iter.next() );
+                }
+            }
+
+            XdmSequenceIterator< XdmNode > iter = node.axisIterator( Axis.CHILD );
+            while( iter.hasNext() )
+            {
+                XdmNode child = iter.next();
+                XdmNodeKind kind = child.getNodeKind();
+                if( kind == XdmNodeKind.ELEMENT
+                        || ( !onlyChildElements && ( kind == XdmNodeKind.COMMENT
+                                || kind == XdmNodeKind.PROCESSING_INSTRUCTION ) ) )
+                {
+                    visit( ps, buffers, child );
+                }
+            }
+        }
+
+
+        private void fire( Rule r, XdmNode node ) throws SaxonApiException, SAXException
+        {
+            if( !compact )
+            {
+                AttributesImpl atts = new AttributesImpl();
+                addAttribute( atts, "context", r.contextText );
+                addNonEmpty( atts, "id", r.id );
+                addNonEmpty( atts, "role", r.role );
+                addRich( atts, r.space, r.lang );
+                startElement( "fired-rule", atts );
+                endElement( "fired-rule" );
+            }
+
+            Map< QName, XdmValue > env = globalValues;
+            Iterator< Object > iter = r.body.iterator();
+            while( iter.hasNext() )
+            {
+                Object item = iter.next();
+                if( item instanceof Let )
+                {
+                    if( env == globalValues )
+                    {
+                        env = new HashMap< QName, XdmValue >( globalValues );
+                    }
+                    Let let = ( Let )item;
+                    env.put( let.name, evaluate( let.value, node, env ) );
+                }
+                else
+                {
+                    check( ( Check )item, node, env );
+                }
+            }
+        }
+
+
+        private void check( Check c, XdmNode node, Map< QName, XdmValue > env )
+                throws SaxonApiException, SAXException
+        {
+            if( c.kind == TITLE )
+            {
+                writeText( c.message, node, env );
+                return;
+            }
+
+            boolean result = select( c.test, node, env ).effectiveBooleanValue();
+            if( result == ( c.kind == ASSERT ) )
+            {
+                return;
+            }
+
+            String element = c.kind == ASSERT ? "failed-assert" : "successful-report";
+            AttributesImpl atts = new AttributesImpl();
+            addAttribute( atts, "test", c.testText );
+            addNonEmpty( atts, "id", c.id );
+            addNonEmpty( atts, "flag", c.flag );
+            addRich( atts, c.space, c.lang );
+            addNonEmpty( atts, "role", c.role );
+            addAttribute( atts, "location", location( node ) );
+            startElement( element, atts );
+            writeText( c.message, node, env );
+
+            Iterator< Diagnostic > iter = c.diagnostics.iterator();
+            while( iter.hasNext() )
+            {
+                Diagnostic d = iter.next();
+                atts = new AttributesImpl();
+                addAttribute( atts, "diagnostic", d.id );
+                addRich( atts, d.space, d.lang );
+                startElement( "diagnostic-reference", atts );
+                writeMessage( d.message, node, env );
+                endElement( "diagnostic-reference" );
+            }
+            endElement( element );
+        }
+
+
+        private void writeText( Message m, XdmNode node, Map< QName, XdmValue > env )
+                throws SaxonApiException, SAXException
+        {
+            startElement( "text", new AttributesImpl() );
+            writeMessage( m, node, env );
+            endElement( "text" );
+        }
+
+
+        private void writeMessage( Message m, XdmNode node, Map< QName, XdmValue > env )
+                throws SaxonApiException, SAXException
+        {
+            StringBuilder sb = new StringBuilder();
+            Iterator< Object > iter = m.parts.iterator();
+            while( iter.hasNext() )
+            {
+                Object part = iter.next();
+                if( part instanceof String )
+                {
+                    sb.append( ( String )part );
+                }
+                else
+                {
+                    appendValueOf( evaluate( ( Expr )part, node, env ), sb );
+                }
+            }
+
+            if( sb.length() != 0 )
+            {
+                char[] ch = sb.toString().toCharArray();
+                out.characters( ch, 0, ch.length );
+            }
+        }
+
+
+        private XdmValue evaluate( Expr e, XdmItem context, Map< QName, XdmValue > env )
+                throws SaxonApiException
+        {
+            return select( e, context, env ).evaluate();
+        }
+
+
+        private XPathSelector select( Expr e, XdmItem context, Map< QName, XdmValue > env )
+                throws SaxonApiException
+        {
+            XPathSelector sel = selectors[ e.index ];
+            if( sel == null )
+            {
+                sel = e.executable.load();
+                selectors[ e.index ] = sel;
+            }
+
+            sel.setContextItem( context );
+            sel.setVariable( CURRENT, context );
+            for( int i = 0; i < e.variables.length; i++ )
+            {
+                // globals not yet evaluated are not referred to by the one being evaluated, but
+                // must still be given a value
+                XdmValue value = env.get( e.variables[ i ] );
+                sel.setVariable( e.variables[ i ], value == null ? XdmEmptySequence
+                        .getInstance() : value );
+            }
+            return sel;
+        }
+
+
+        /**
+         * @return the location of the passed node, in the notation of the skeleton's
+         *         schematron-get-full-path mode for XSLT 2. As the skeleton only applies that
+         *         to elements, an attribute's location is its value.
+         */
+        private String location( XdmNode node )
+        {
+            if( node.getNodeKind() == XdmNodeKind.ELEMENT )
+            {
+                return path( node );
+            }
+            else if( node.getNodeKind() == XdmNodeKind.ATTRIBUTE )
+            {
+                return node.getStringValue();
+            }
+            else if( node.getNodeKind() == XdmNodeKind.DOCUMENT )
+            {
+                StringBuilder sb = new StringBuilder();
+                XdmSequenceIterator< XdmNode > iter = node.axisIterator( Axis.CHILD );
+                while( iter.hasNext() )
+                {
+                    XdmNode child = iter.next();
+                    if( child.getNodeKind() == XdmNodeKind.ELEMENT )
+                    {
+                        sb.append( path( child ) );
+                    }
+                }
+                return sb.toString();
+            }
+            return "";
+        }
+
+
+        private String path( XdmNode element )
+        {
+            String path = paths.get( element );
+            if( path != null )
+            {
+                return path;
+            }
+
+            QName name = element.getNodeName();
+            StringBuilder sb = new StringBuilder();
+            XdmNode parent = element.getParent();
+            if( parent != null && parent.getNodeKind() == XdmNodeKind.ELEMENT )
+            {
+                sb.append( path( parent ) );
+            }
+
+            sb.append( '/' );
+            if( name.getNamespaceURI().length() == 0 )
+            {
+                sb.append( name.getLocalName() );
+            }
+            else
+            {
+                sb.append( "*:" ).append( name.getLocalName() ).append( "[namespace-uri()='" )
+                        .append( name.getNamespaceURI() ).append( "']" );
+            }
+
+            int position = 1;
+            XdmSequenceIterator< XdmNode > iter = element.axisIterator( Axis.PRECEDING_SIBLING );
+            while( iter.hasNext() )
+            {
+                XdmNode sibling = iter.next();
+                if( sibling.getNodeKind() == XdmNodeKind.ELEMENT
+                        && sibling.getNodeName().equals( name ) )
+                {
+                    position++;
+                }
+            }
+            sb.append( '[' ).append( position ).append( ']' );
+
+            path = sb.toString();
+            paths.put( element, path );
+            return path;
+        }
+
+
+        private void startElement( String localName, AttributesImpl atts ) throws SAXException
+        {
+            out.startElement( Utils.SVRL_NAME, localName, "svrl:" + localName, atts );
+        }
+
+
+        private void endElement( String localName ) throws SAXException
+        {
+            out.endElement( Utils.SVRL_NAME, localName, "svrl:" + localName );
+        }
+    }
+
+
+    /**
+     * Some of the patterns, applied on a thread of their own.
+     */
+    private final class PatternGroup implements Callable< EventBuffer[] >
+    {
+        private final Evaluation evaluation;
+        private final List< NativePattern > patterns = new ArrayList< NativePattern >();
+
+
+        PatternGroup( Evaluation evaluation )
+        {
+            this.evaluation = evaluation;
+        }
+
+
+        public EventBuffer[] call() throws SaxonApiException, SAXException
+        {
+            Session previous = Session.setThreadSession( evaluation.session );
+            try
+            {
+                return evaluation.applyPatterns( patterns );
+            }
+            finally
+            {
+                Session.setThreadSession( previous );
+            }
+        }
+    }
+
+
+    /**
+     * Records the SVRL written for one pattern, so that the patterns can be applied in a single
+     * walk and their output still written in schema order. Only the events the evaluation
+     * writes within the root element are recorded, and the attributes passed are kept rather
+     * than copied, as each is created for the one element.
+     */
+    private static class EventBuffer extends DefaultHandler
+    {
+        // per event: Attributes for a start tag, null for an end tag, or String text
+        private final List< Object > events = new ArrayList< Object >();
+        private final List< String > names = new ArrayList< String >();
+
+
+        @Override
+        public void startElement( String uri, String localName, String name, Attributes atts )
+        {
+            events.add( atts );
+            names.add( localName );
+        }
+
+
+        @Override
+        public void endElement( String uri, String localName, String name )
+        {
+            events.add( null );
+            names.add( localName );
+        }
+
+
+        @Override
+        public void characters( char[] ch, int start, int length )
+        {
+            events.add( new String( ch, start, length ) );
+            names.add( null );
+        }
+
+
+        void replay( ContentHandler handler ) throws SAXException
+        {
+            for( int i = 0; i < events.size(); i++ )
+            {
+                Object event = events.get( i );
+                String localName = names.get( i );
+                if( event instanceof String )
+                {
+                    char[] ch = ( ( String )event ).toCharArray();
+                    handler.characters( ch, 0, ch.length );
+                }
+                else if( event != null )
+                {
+                    handler.startElement( Utils.SVRL_NAME, localName, "svrl:" + localName,
+                            ( Attributes )event );
+                }
+                else
+                {
+                    handler.endElement( Utils.SVRL_NAME, localName, "svrl:" + localName );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Appends the value of an expression as <tt>xsl:value-of</tt> would write it: adjacent
+     * text nodes are merged, and other items separated by spaces.
+     */
+    private static void appendValueOf( XdmValue value, StringBuilder sb )
+    {
+        boolean first = true;
+        boolean afterText = false;
+        Iterator< XdmItem > iter = value.iterator();
+        while( iter.hasNext() )
+        {
+            XdmItem item = iter.next();
+            boolean isText = item instanceof XdmNode
+                    && ( ( XdmNode )item ).getNodeKind() == XdmNodeKind.TEXT;
+            String s = item.getStringValue();
+            if( isText && s.length() == 0 )
+            {
+                continue;
+            }
+            if( !first && !( isText && afterText ) )
+            {
+                sb.append( ' ' );
+            }
+            sb.append( s );
+            first = false;
+            afterText = isText;
+        }
+    }
+
+    /**
+     * Compiles expressions with the namespaces of the schema and the variables in scope at one
+     * point of it.
+     */
+    private final class Scope
+    {
+        private final XPathCompiler compiler = Runtime.getSaxonProcessor().newXPathCompiler();
+        private final List< QName > variables = new ArrayList< QName >();
+
+
+        /**
+         * Creates a scope in which only the global variables are.
+         */
+        Scope()
+        {
+            if( baseUri != null && baseUri.isAbsolute() )
+            {
+                compiler.setBaseURI( baseUri );
+            }
+
+            Iterator< Map.Entry< String, String >> iter = namespaces.entrySet().iterator();
+            while( iter.hasNext() )
+            {
+                Map.Entry< String, String > ns = iter.next();
+                compiler.declareNamespace( ns.getKey(), ns.getValue() );
+            }
+
+            compiler.declareVariable( CURRENT );
+            Iterator< QName > varIter = globalNames.iterator();
+            while( varIter.hasNext() )
+            {
+                declare( varIter.next() );
+            }
+        }
+
+
+        void declare( QName name )
+        {
+            compiler.declareVariable( name );
+            if( !variables.contains( name ) )
+            {
+                variables.add( name );
+            }
+        }
+
+
+        Expr compile( String expr, boolean pattern ) throws SaxonApiException
+        {
+            if( !pattern && usesFocusPosition( expr ) )
+            {
+                throw new UnsupportedOperationException( "position() or last(): " + expr );
+            }
+
+            String rewritten = rewriteCurrent( expr );
+            Expr e = new Expr();
+            e.index = expressionCount++;
+            e.executable = pattern ? compiler.compilePattern( rewritten ) : compiler
+                    .compile( rewritten );
+            e.variables = variables.toArray( new QName[ variables.size() ] );
+            return e;
+        }
+    }
+
+
+    /**
+     * @return the expression with each call of <tt>current()</tt> replaced by a reference to
+     *         the variable bound to the context item
+     */
+    static String rewriteCurrent( String expr )
+    {
+        if( expr.indexOf( "current" ) == -1 )
+        {
+            return expr;
+        }
+
+        Matcher m = CURRENT_CALL.matcher( SchemaCostAnalyzer.stripLiterals( expr ) );
+        StringBuilder sb = new StringBuilder();
+        int last = 0;
+        while( m.find() )
+        {
+            sb.append( expr, last, m.start() ).append( "$Q{" ).append(
+                    CURRENT.getNamespaceURI() ).append( '}' ).append( CURRENT.getLocalName() );
+            last = m.end();
+        }
+        return sb.append( expr.substring( last ) ).toString();
+    }
+
+
+    /**
+     * @return whether the expression calls <tt>position()</tt> or <tt>last()</tt> outside
+     *         every predicate, where they would be evaluated against the focus of the rule's
+     *         context node
+     */
+    static boolean usesFocusPosition( String expr )
+    {
+        if( expr.indexOf( "position" ) == -1 && expr.indexOf( "last" ) == -1 )
+        {
+            return false;
+        }
+
+        String stripped = SchemaCostAnalyzer.stripLiterals( expr );
+        Matcher m = FOCUS_CALL.matcher( stripped );
+        while( m.find() )
+        {
+            if( !SchemaCostAnalyzer.insidePredicate( stripped, m.start() ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private static String letName( XdmNode let )
+    {
+        String name = attribute( let, "name" );
+        if( name.indexOf( ':' ) != -1 || name.length() == 0 )
+        {
+            throw new UnsupportedOperationException( "variable name: " + name );
+        }
+        return name;
+    }
+
+
+    /**
+     * @return the value of <tt>(@id | title)[last()]</tt>: the last title if there is one, and
+     *         otherwise the id
+     */
+    private static String lastOf( String id, List< XdmNode > titles )
+    {
+        return titles.isEmpty() ? id : titles.get( titles.size() - 1 ).getStringValue();
+    }
+
+
+    private static void addAttribute( AttributesImpl atts, String name, String value )
+    {
+        atts.addAttribute( "", name, name, "CDATA", value );
+    }
+
+
+    private static void addNonEmpty( AttributesImpl atts, String name, String value )
+    {
+        if( value != null && value.length() != 0 )
+        {
+            addAttribute( atts, name, value );
+        }
+    }
+
+
+    private static void addRich( AttributesImpl atts, String space, String lang )
+    {
+        if( space != null && space.length() != 0 )
+        {
+            atts.addAttribute( XML_NAME, "space", "xml:space", "CDATA", space );
+        }
+        if( lang != null && lang.length() != 0 )
+        {
+            atts.addAttribute( XML_NAME, "lang", "xml:lang", "CDATA", lang );
+        }
+    }
+
+
+    /**
+     * @return the value of the named attribute, or the empty string if it is absent
+     */
+    private static String attribute( XdmNode node, String name )
+    {
+        String value = node.getAttributeValue( new QName( name ) );
+        return value == null ? "" : value;
+    }
+
+
+    private static boolean isSchematron( XdmNode node, String localName )
+    {
+        return node.getNodeKind() == XdmNodeKind.ELEMENT
+                && Utils.SCHEMATRON_NAME.equals( node.getNodeName().getNamespaceURI() )
+                && ( localName == null || localName.equals( node.getNodeName().getLocalName() ) );
+    }
+
+
+    private static XdmNode firstChildElement( XdmNode node )
+    {
+        List< XdmNode > list = childElements( node );
+        return list.isEmpty() ? null : list.get( 0 );
+    }
+
+
+    private static List< XdmNode > childElements( XdmNode node )
+    {
+        List< XdmNode > list = new ArrayList< XdmNode >();
+        XdmSequenceIterator< XdmNode > iter = node.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( child.getNodeKind() == XdmNodeKind.ELEMENT )
+            {
+                list.add( child );
+            }
+        }
+        return list;
+    }
+
+
+    private static List< XdmNode > children( XdmNode node, String localName )
+    {
+        List< XdmNode > list = new ArrayList< XdmNode >();
+        Iterator< XdmNode > iter = childElements( node ).iterator();
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( isSchematron( child, localName ) )
+            {
+                list.add( child );
+            }
+        }
+        return list;
+    }
+
+
+    private static List< XdmNode > listFor( Map< String, List< XdmNode >> map, String key )
+    {
+        List< XdmNode > list = map.get( key );
+        if( list == null )
+        {
+            list = new ArrayList< XdmNode >();
+            map.put( key, list );
+        }
+        return list;
+    }
+
+
+    /**
+     * @return the string with leading and trailing whitespace removed, and other runs of it
+     *         replaced by single spaces, as by XPath's <tt>normalize-space()</tt>
+     */
+    private static String normalizeSpace( String s )
+    {
+        return s.replaceAll( "[ \t\r\n]+", " " ).trim();
+    }
+
+    private static class Expr
+    {
+        int index;
+        XPathExecutable executable;
+        QName[] variables;
+    }
+
+    private static class Let
+    {
+        final QName name;
+        final Expr value;
+
+
+        Let( QName name, Expr value )
+        {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Literal text (String) and expressions (Expr), in order.
+     */
+    private static class Message
+    {
+        List< Object > parts = new ArrayList< Object >();
+
+
+        /**
+         * Adds the text accumulated so far as a literal part, unless it is only whitespace,
+         * and clears it.
+         */
+        void addText( StringBuilder text )
+        {
+            if( normalizeSpace( text.toString() ).length() != 0 )
+            {
+                parts.add( text.toString() );
+            }
+            text.setLength( 0 );
+        }
+    }
+
+    private static class Diagnostic
+    {
+        String id;
+        String space;
+        String lang;
+        Message message;
+    }
+
+    /**
+     * An assert, a report, or a rule's title, which is written as SVRL text whenever the rule
+     * fires.
+     */
+    private static class Check
+    {
+        String kind;
+        Expr test;
+        String testText;
+        String id;
+        String flag;
+        String role;
+        String space;
+        String lang;
+        Message message;
+        List< Diagnostic > diagnostics = new ArrayList< Diagnostic >();
+    }
+
+    private static class Rule
+    {
+        Expr context;
+        String contextText;
+        String id;
+        String role;
+        String space;
+        String lang;
+        // Lets and Checks, in order
+        List< Object > body = new ArrayList< Object >();
+    }
+
+    private static class NativePattern
+    {
+        int index;
+        String id;
+        String name;
+        String space;
+        String lang;
+        List< Message > paragraphs = new ArrayList< Message >();
+        List< Rule > rules = new ArrayList< Rule >();
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Links the validating XSLT the skeleton generates for a schema to the packages compiled for
+ * the libraries it includes. Each package is used, with the global variables it declares
+ * abstract overridden, and the template generated for the placeholder pattern standing in
+ * for each library is made to apply the package's mode instead.
+ * 
+ * @see IncludingFilter
+ * @see PackagingFilter
+ */
+public class PackageLinkingFilter extends XMLFilterImpl
+{
+    private final static String XSLT_NAME = "http://www.w3.org/1999/XSL/Transform";
+    private final static Pattern PLACEHOLDER = Pattern.compile( Pattern
+            .quote( IncludingFilter.PLACEHOLDER_CONTEXT )
+            + "(\\d+)" );
+
+    private final List< LibraryPackage > packages;
+    private int depth;
+    // the package whose placeholder template is being replaced, or null
+    private LibraryPackage placeholder;
+
+
+    public PackageLinkingFilter( List< LibraryPackage > packages )
+    {
+        this.packages = packages;
+    }
+
+
+    @Override
+    public void startElement( String uri, String localName, String name, Attributes atts )
+            throws SAXException
+    {
+        depth++;
+
+        if( placeholder != null )
+        {
+            return;
+        }
+
+        if( depth == 2 && uri.equals( XSLT_NAME ) && localName.equals( "template" )
+                && atts.getValue( "match" ) != null )
+        {
+            Matcher m = PLACEHOLDER.matcher( atts.getValue( "match" ) );
+            if( m.matches() )
+            {
+                placeholder = packages.get( Integer.parseInt( m.group( 1 ) ) - 1 );
+            }
+        }
+
+        super.startElement( uri, localName, name, atts );
+
+        if( depth == 1 )
+        {
+            writeUsePackages();
+        }
+    }
+
+
+    @Override
+    public void endElement( String uri, String localName, String name ) throws SAXException
+    {
+        if( placeholder != null && depth == 2 )
+        {
+            AttributesImpl atts = new AttributesImpl();
+            addAttribute( atts, "select", "." );
+            addAttribute( atts, "mode", placeholder.getModeName() );
+            super.startElement( XSLT_NAME, "apply-templates", "xsl:apply-templates", atts );
+            super.endElement( XSLT_NAME, "apply-templates", "xsl:apply-templates" );
+            placeholder = null;
+        }
+
+        if( placeholder == null )
+        {
+            super.endElement( uri, localName, name );
+        }
+        depth--;
+    }
+
+
+    @Override
+    public void characters( char[] ch, int start, int length ) throws SAXException
+    {
+        if( placeholder == null )
+        {
+            super.characters( ch, start, length );
+        }
+    }
+
+
+    /**
+     * Writes an &lt;xsl:use-package> declaration for each package, overriding its abstract
+     * variables, as the first children of the stylesheet element.
+     */
+    private void writeUsePackages() throws SAXException
+    {
+        super.startPrefixMapping( "xsl", XSLT_NAME );
+        Iterator< LibraryPackage > iter = packages.iterator();
+        while( iter.hasNext() )
+        {
+            LibraryPackage lp = iter.next();
+            AttributesImpl atts = new AttributesImpl();
+            addAttribute( atts, "name", lp.getName() );
+            addAttribute( atts, "package-version", "1.0" );
+            super.startElement( XSLT_NAME, "use-package", "xsl:use-package", atts );
+
+            if( !lp.getOverrides().isEmpty() )
+            {
+                super.startElement( XSLT_NAME, "override", "xsl:override", new AttributesImpl() );
+                Iterator< String[] > varIter = lp.getOverrides().iterator();
+                while( varIter.hasNext() )
+                {
+                    String[] var = varIter.next();
+                    atts = new AttributesImpl();
+                    addAttribute( atts, "name", var[ 0 ] );
+                    addAttribute( atts, "select", var[ 1 ] );
+                    if( var[ 2 ] != null )
+                    {
+                        addAttribute( atts, "as", var[ 2 ] );
+                    }
+                    super.startElement( XSLT_NAME, "variable", "xsl:variable", atts );
+                    super.endElement( XSLT_NAME, "variable", "xsl:variable" );
+                }
+                super.endElement( XSLT_NAME, "override", "xsl:override" );
+            }
+
+            super.endElement( XSLT_NAME, "use-package", "xsl:use-package" );
+        }
+        super.endPrefixMapping( "xsl" );
+    }
+
+
+    private static void addAttribute( AttributesImpl atts, String name, String value )
+    {
+        atts.addAttribute( "", name, name, "CDATA", value );
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Turns the validating XSLT the skeleton generates for a library pattern into an XSLT 3.0
+ * package, which schemas including the library link against rather than each compiling the
+ * pattern again. The pattern's mode is renamed to the one public mode of the package, and the
+ * templates of the default mode, which write the report around the patterns, are dropped along
+ * with the global parameters only they use, as global parameters are always public.
+ * <p>
+ * A package used by another has no context item for its global variables, so each global
+ * variable (the pattern's lets, and those hoisted out of its rules) is declared abstract, and
+ * its definition kept, for the using stylesheet to supply with <tt>xsl:override</tt>.
+ */
+public class PackagingFilter extends XMLFilterImpl
+{
+    private final static String XSLT_NAME = "http://www.w3.org/1999/XSL/Transform";
+
+    private final String packageName;
+    private final String modeName;
+    // name, select and as of each global variable declared abstract
+    private List< String[] > overrides = new ArrayList< String[] >();
+    private int depth;
+    // the depth of the element being dropped, or 0 if there is none
+    private int skipDepth;
+    // whether that is a variable declared abstract, which may have no content
+    private boolean abstracted;
+
+
+    public PackagingFilter( String packageName, String modeName )
+    {
+        this.packageName = packageName;
+        this.modeName = modeName;
+    }
+
+
+    @Override
+    public void startElement( String uri, String localName, String name, Attributes atts )
+            throws SAXException
+    {
+        depth++;
+
+        if( skipDepth != 0 )
+        {
+            if( abstracted )
+            {
+                throw new SAXException( "Global variable with content cannot be packaged" );
+            }
+            return;
+        }
+
+        if( depth == 1 && uri.equals( XSLT_NAME ) && localName.equals( "stylesheet" ) )
+        {
+            AttributesImpl newAtts = new AttributesImpl( atts );
+            int version = newAtts.getIndex( "version" );
+            if( version != -1 )
+            {
+                newAtts.removeAttribute( version );
+            }
+            addAttribute( newAtts, "name", packageName );
+            addAttribute( newAtts, "package-version", "1.0" );
+            addAttribute( newAtts, "version", "3.0" );
+            addAttribute( newAtts, "declared-modes", "no" );
+            super.startElement( XSLT_NAME, "package", "xsl:package", newAtts );
+
+            AttributesImpl modeAtts = new AttributesImpl();
+            addAttribute( modeAtts, "name", modeName );
+            addAttribute( modeAtts, "visibility", "public" );
+            super.startElement( XSLT_NAME, "mode", "xsl:mode", modeAtts );
+            super.endElement( XSLT_NAME, "mode", "xsl:mode" );
+            return;
+        }
+
+        if( depth == 2 && uri.equals( XSLT_NAME )
+                && ( localName.equals( "param" ) || localName.equals( "template" )
+                        && atts.getValue( "mode" ) == null ) )
+        {
+            skipDepth = depth;
+            abstracted = false;
+            return;
+        }
+
+        if( depth == 2 && uri.equals( XSLT_NAME ) && localName.equals( "variable" ) )
+        {
+            skipDepth = depth;
+            String varName = atts.getValue( "name" );
+
+            // only used for pattern documents, which are not packaged
+            abstracted = !varName.equals( "document-uri" );
+            if( !abstracted )
+            {
+                return;
+            }
+            if( atts.getValue( "select" ) == null )
+            {
+                throw new SAXException( "Global variable with content cannot be packaged: "
+                        + varName );
+            }
+
+            overrides.add( new String[] { varName, atts.getValue( "select" ),
+                    atts.getValue( "as" ) } );
+            AttributesImpl newAtts = new AttributesImpl();
+            addAttribute( newAtts, "name", varName );
+            if( atts.getValue( "as" ) != null )
+            {
+                addAttribute( newAtts, "as", atts.getValue( "as" ) );
+            }
+            addAttribute( newAtts, "visibility", "abstract" );
+            super.startElement( uri, localName, name, newAtts );
+            super.endElement( uri, localName, name );
+            return;
+        }
+
+        String mode = atts.getValue( "mode" );
+        if( uri.equals( XSLT_NAME ) && mode != null && mode.matches( "M\\d+" ) )
+        {
+            AttributesImpl newAtts = new AttributesImpl( atts );
+            newAtts.setValue( newAtts.getIndex( "mode" ), modeName );
+            atts = newAtts;
+        }
+
+        super.startElement( uri, localName, name, atts );
+    }
+
+
+    @Override
+    public void endElement( String uri, String localName, String name ) throws SAXException
+    {
+        if( skipDepth == depth )
+        {
+            skipDepth = 0;
+        }
+        else if( skipDepth != 0 )
+        {
+            // within the element being dropped
+        }
+        else if( depth == 1 && uri.equals( XSLT_NAME ) && localName.equals( "stylesheet" ) )
+        {
+            super.endElement( XSLT_NAME, "package", "xsl:package" );
+        }
+        else
+        {
+            super.endElement( uri, localName, name );
+        }
+        depth--;
+    }
+
+
+    @Override
+    public void characters( char[] ch, int start, int length ) throws SAXException
+    {
+        if( skipDepth == 0 )
+        {
+            super.characters( ch, start, length );
+        }
+    }
+
+
+    private static void addAttribute( AttributesImpl atts, String name, String value )
+    {
+        atts.addAttribute( "", name, name, "CDATA", value );
+    }
+
+
+    /**
+     * @return the name, select expression and type (or null) of each global variable declared
+     *         abstract, which a stylesheet using the package must override
+     */
+    public List< String[] > getOverrides()
+    {
+        return overrides;
+    }
+
+}
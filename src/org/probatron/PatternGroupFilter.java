@@ -0,0 +1,155 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.util.Set;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Reduces an (included) schema to one group of its patterns, so that each group can be
+ * compiled to XSLT of its own and the groups applied to a candidate concurrently. The patterns
+ * of the other groups are removed, with the &lt;active> elements of the phases which refer to
+ * them, and, unless it is the first group, the schema's paragraphs, which the SVRL of the
+ * first group reports already.
+ */
+public class PatternGroupFilter extends XMLFilterImpl
+{
+    private Set< Integer > removed;
+    private Set< String > removedIds;
+    private boolean first;
+    private int depth;
+    private int patternIndex;
+    private boolean inPhase;
+    // the depth of the element being removed, or 0 if there is none
+    private int skipDepth;
+
+
+    /**
+     * @param removed
+     *            the indexes, among the patterns of the schema, of the patterns to be removed
+     * @param removedIds
+     *            the ids of the patterns to be removed, which phases are to cease referring to
+     * @param first
+     *            whether this is the first group, which keeps the schema's paragraphs
+     */
+    public PatternGroupFilter( Set< Integer > removed, Set< String > removedIds, boolean first )
+    {
+        this.removed = removed;
+        this.removedIds = removedIds;
+        this.first = first;
+    }
+
+
+    @Override
+    public void startElement( String uri, String localName, String name, Attributes atts )
+            throws SAXException
+    {
+        depth++;
+
+        if( skipDepth != 0 )
+        {
+            return;
+        }
+
+        if( uri.equals( Utils.SCHEMATRON_NAME ) )
+        {
+            if( depth == 2 && localName.equals( "pattern" ) )
+            {
+                if( removed.contains( patternIndex++ ) )
+                {
+                    skipDepth = depth;
+                    return;
+                }
+            }
+            else if( depth == 2 && localName.equals( "p" ) && !first )
+            {
+                skipDepth = depth;
+                return;
+            }
+            else if( depth == 2 && localName.equals( "phase" ) )
+            {
+                inPhase = true;
+            }
+            else if( depth == 3 && inPhase && localName.equals( "active" )
+                    && removedIds.contains( atts.getValue( "pattern" ) ) )
+            {
+                skipDepth = depth;
+                return;
+            }
+        }
+
+        super.startElement( uri, localName, name, atts );
+    }
+
+
+    @Override
+    public void endElement( String uri, String localName, String name ) throws SAXException
+    {
+        boolean skipped = skipDepth != 0;
+        if( skipDepth == depth )
+        {
+            skipDepth = 0;
+        }
+        else if( depth == 2 )
+        {
+            inPhase = false;
+        }
+        depth--;
+
+        if( !skipped )
+        {
+            super.endElement( uri, localName, name );
+        }
+    }
+
+
+    @Override
+    public void characters( char[] ch, int start, int length ) throws SAXException
+    {
+        if( skipDepth == 0 )
+        {
+            super.characters( ch, start, length );
+        }
+    }
+
+
+    @Override
+    public void ignorableWhitespace( char[] ch, int start, int length ) throws SAXException
+    {
+        if( skipDepth == 0 )
+        {
+            super.ignorableWhitespace( ch, start, length );
+        }
+    }
+
+
+    @Override
+    public void processingInstruction( String target, String data ) throws SAXException
+    {
+        if( skipDepth == 0 )
+        {
+            super.processingInstruction( target, data );
+        }
+    }
+
+}
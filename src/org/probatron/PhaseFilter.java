@@ -0,0 +1,245 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Records which patterns are active in each phase of an (included) schema. Optionally, also
+ * adds to the schema a phase of its own, {@link #UNION_PHASE}, in which every pattern active
+ * in any of a given set of phases is active, so that all those phases can be validated in one
+ * transformation.
+ */
+public class PhaseFilter extends XMLFilterImpl
+{
+    /** the id of the phase synthesized from the union of other phases */
+    public final static String UNION_PHASE = "_probatron_union_";
+    /** the id which selects every pattern */
+    public final static String ALL_PHASES = "#ALL";
+
+    private List< String > unionOf;
+    private String defaultPhase = ALL_PHASES;
+    private LinkedHashMap< String, LinkedHashSet< String >> phases = new LinkedHashMap< String, LinkedHashSet< String >>();
+    private LinkedHashMap< String, List< AttributesImpl >> phaseLets = new LinkedHashMap< String, List< AttributesImpl >>();
+    private String currentPhase;
+    private String schemaPrefix = "";
+    private int depth;
+
+
+    /**
+     * @param unionOf
+     *            the phases whose union should be added to the schema, or null if none should
+     *            be
+     */
+    public PhaseFilter( List< String > unionOf )
+    {
+        this.unionOf = unionOf;
+    }
+
+
+    @Override
+    public void startElement( String uri, String localName, String name, Attributes atts )
+            throws SAXException
+    {
+        depth++;
+
+        if( uri.equals( Utils.SCHEMATRON_NAME ) )
+        {
+            if( depth == 1 && localName.equals( "schema" ) )
+            {
+                int colon = name.indexOf( ':' );
+                schemaPrefix = colon == -1 ? "" : name.substring( 0, colon + 1 );
+                if( atts.getValue( "defaultPhase" ) != null )
+                {
+                    defaultPhase = atts.getValue( "defaultPhase" ).trim();
+                }
+            }
+            else if( depth == 2 && localName.equals( "phase" ) )
+            {
+                currentPhase = atts.getValue( "id" );
+                if( currentPhase != null )
+                {
+                    phases.put( currentPhase, new LinkedHashSet< String >() );
+                    phaseLets.put( currentPhase, new ArrayList< AttributesImpl >() );
+                }
+            }
+            else if( depth == 3 && currentPhase != null && localName.equals( "active" ) )
+            {
+                phases.get( currentPhase ).add( atts.getValue( "pattern" ) );
+            }
+            else if( depth == 3 && currentPhase != null && localName.equals( "let" ) )
+            {
+                phaseLets.get( currentPhase ).add( new AttributesImpl( atts ) );
+            }
+        }
+
+        super.startElement( uri, localName, name, atts );
+    }
+
+
+    @Override
+    public void endElement( String uri, String localName, String name ) throws SAXException
+    {
+        if( depth == 2 )
+        {
+            currentPhase = null;
+        }
+        else if( depth == 1 && UNION_PHASE.equals( getUnionPhase() ) )
+        {
+            writeUnionPhase();
+        }
+
+        depth--;
+        super.endElement( uri, localName, name );
+    }
+
+
+    /**
+     * Writes the union phase as the last child of the schema element. Where two of the phases
+     * declare a variable of the same name, they must give it the same value.
+     * 
+     * @throws ConflictingPhasesException
+     *             if they do not, when the phases cannot be validated together
+     */
+    private void writeUnionPhase() throws SAXException
+    {
+        LinkedHashSet< String > active = new LinkedHashSet< String >();
+        LinkedHashMap< String, AttributesImpl > lets = new LinkedHashMap< String, AttributesImpl >();
+
+        Iterator< String > iter = unionOf.iterator();
+        while( iter.hasNext() )
+        {
+            String phase = resolve( iter.next() );
+            if( phases.containsKey( phase ) )
+            {
+                active.addAll( phases.get( phase ) );
+                Iterator< AttributesImpl > letIter = phaseLets.get( phase ).iterator();
+                while( letIter.hasNext() )
+                {
+                    AttributesImpl let = letIter.next();
+                    AttributesImpl declared = lets.get( let.getValue( "name" ) );
+                    if( declared == null )
+                    {
+                        lets.put( let.getValue( "name" ), let );
+                    }
+                    else if( !Objects.equals( declared.getValue( "value" ), let
+                            .getValue( "value" ) ) )
+                    {
+                        throw new ConflictingPhasesException( "Phases " + unionOf
+                                + " declare different values of variable "
+                                + let.getValue( "name" ) );
+                    }
+                }
+            }
+        }
+
+        AttributesImpl atts = new AttributesImpl();
+        atts.addAttribute( "", "id", "id", "CDATA", UNION_PHASE );
+        super.startElement( Utils.SCHEMATRON_NAME, "phase", schemaPrefix + "phase", atts );
+
+        Iterator< AttributesImpl > letIter = lets.values().iterator();
+        while( letIter.hasNext() )
+        {
+            super.startElement( Utils.SCHEMATRON_NAME, "let", schemaPrefix + "let", letIter
+                    .next() );
+            super.endElement( Utils.SCHEMATRON_NAME, "let", schemaPrefix + "let" );
+        }
+
+        Iterator< String > patternIter = active.iterator();
+        while( patternIter.hasNext() )
+        {
+            atts = new AttributesImpl();
+            atts.addAttribute( "", "pattern", "pattern", "CDATA", patternIter.next() );
+            super.startElement( Utils.SCHEMATRON_NAME, "active", schemaPrefix + "active", atts );
+            super.endElement( Utils.SCHEMATRON_NAME, "active", schemaPrefix + "active" );
+        }
+
+        super.endElement( Utils.SCHEMATRON_NAME, "phase", schemaPrefix + "phase" );
+    }
+
+
+    /**
+     * @return the phase named, or the schema's default phase if none is
+     */
+    private String resolve( String phase )
+    {
+        return phase == null || phase.trim().length() == 0 ? defaultPhase : phase.trim();
+    }
+
+
+    /**
+     * @return the phase with which the schema should be compiled in order to validate the union
+     *         of the phases passed to the constructor: {@link #ALL_PHASES} if any of them is,
+     *         and {@link #UNION_PHASE} otherwise. Only meaningful once the schema has been
+     *         parsed.
+     */
+    public String getUnionPhase()
+    {
+        if( unionOf == null )
+        {
+            return null;
+        }
+
+        Iterator< String > iter = unionOf.iterator();
+        while( iter.hasNext() )
+        {
+            if( resolve( iter.next() ).equals( ALL_PHASES ) )
+            {
+                return ALL_PHASES;
+            }
+        }
+        return UNION_PHASE;
+    }
+
+
+    /**
+     * Records the default phase, and the patterns active in each phase, in the passed
+     * properties, in the form understood by {@link CompiledSchema#getActivePatterns(String)}.
+     */
+    public void recordPhases( Properties p )
+    {
+        p.setProperty( CompiledSchema.PROPERTY_DEFAULT_PHASE, defaultPhase );
+
+        Iterator< String > iter = phases.keySet().iterator();
+        while( iter.hasNext() )
+        {
+            String phase = iter.next();
+            StringBuilder sb = new StringBuilder();
+            Iterator< String > patternIter = phases.get( phase ).iterator();
+            while( patternIter.hasNext() )
+            {
+                sb.append( patternIter.next() ).append( ' ' );
+            }
+            p.setProperty( CompiledSchema.PROPERTY_PHASE_PREFIX + phase, sb.toString().trim() );
+        }
+    }
+
+}
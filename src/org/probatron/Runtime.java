@@ -19,9 +19,28 @@
 
 package org.probatron;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.transform.TransformerException;
 
 import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -39,8 +58,44 @@ public class Runtime
 {
     static Logger logger = LogManager.getLogger( Runtime.class.getName());
 
+    /** the meta-stylesheet that compiles a Schematron schema to SVRL-generating XSLT */
+    public final static String SVRL_META_STYLESHEET = "iso_svrl_for_xslt2.xsl";
+
+    private final static String PROPERTY_SCHEMA_CACHE_SIZE = "property://probatron.org/schema-cache-size";
+    private final static int DEFAULT_SCHEMA_CACHE_SIZE = 64;
+    private final static String PROPERTY_LIBRARY_CACHE_SIZE = "property://probatron.org/library-cache-size";
+    private final static int DEFAULT_LIBRARY_CACHE_SIZE = 64;
+    private final static String PROPERTY_INCLUDE_CACHE_SIZE = "property://probatron.org/include-cache-size";
+    private final static String PROPERTY_INCLUDE_TTL = "property://probatron.org/include-ttl";
+    private final static String PROPERTY_SCHEMA_CACHE_DIR = "property://probatron.org/schema-cache-dir";
+    private final static String PROPERTY_CATALOG_FILES = "property://probatron.org/catalog-files";
+
     private static Processor processor;
     private static HashMap< String, Session > sessionMap = new HashMap< String, Session >();
+    private static CompiledSchemaCache schemaCache;
+    private static volatile SchemaDiskCache diskCache;
+    private static IncludeCache includeCache;
+    private static List< String > catalogFiles;
+    private static volatile CatalogEntityResolver entityResolver;
+    // guards the resolver's creation
+    private final static Object resolverLock = new Object();
+    private static HashMap< String, FutureTask< XsltExecutable >> metaStylesheets = new HashMap< String, FutureTask< XsltExecutable >>();
+    private static int maxLibraryPackages;
+    // access-ordered, so that the least recently used package is evicted beyond the bound
+    @SuppressWarnings("serial")
+    private static LinkedHashMap< String, FutureTask< LibraryPackage >> libraryPackages = new LinkedHashMap< String, FutureTask< LibraryPackage >>(
+            16, 0.75f, true ) {
+        protected boolean removeEldestEntry(
+                Map.Entry< String, FutureTask< LibraryPackage >> eldest )
+        {
+            boolean evict = size() > maxLibraryPackages;
+            if( evict )
+            {
+                logger.debug( "Evicting library package: " + eldest.getKey() );
+            }
+            return evict;
+        }
+    };
 
     static
     {
@@ -57,6 +112,40 @@ public class Runtime
         processor.registerExtensionFunction( new GoverningDtdPublicIdentifier() );
         processor.registerExtensionFunction( new RomanNumeralToDecimal() );
 
+        String cacheSize = System.getProperty( PROPERTY_SCHEMA_CACHE_SIZE );
+        schemaCache = new CompiledSchemaCache( cacheSize == null ? DEFAULT_SCHEMA_CACHE_SIZE
+                : Integer.parseInt( cacheSize ) );
+        logger.debug( "Compiled schema cache size is " + schemaCache.getMaxEntries() );
+
+        String libraryCacheSize = System.getProperty( PROPERTY_LIBRARY_CACHE_SIZE );
+        maxLibraryPackages = libraryCacheSize == null ? DEFAULT_LIBRARY_CACHE_SIZE : Integer
+                .parseInt( libraryCacheSize );
+
+        String includeCacheSize = System.getProperty( PROPERTY_INCLUDE_CACHE_SIZE );
+        includeCache = new IncludeCache( schemaCache, Math.max( 2, java.lang.Runtime
+                .getRuntime().availableProcessors() ),
+                includeCacheSize == null ? IncludeCache.DEFAULT_MAX_ENTRIES : Integer
+                        .parseInt( includeCacheSize ) );
+
+        String includeTtl = System.getProperty( PROPERTY_INCLUDE_TTL );
+        if( includeTtl != null )
+        {
+            includeCache.setRemoteTtl( Long.parseLong( includeTtl ) );
+        }
+
+        String cacheDir = System.getProperty( PROPERTY_SCHEMA_CACHE_DIR );
+        if( cacheDir != null )
+        {
+            try
+            {
+                diskCache = new SchemaDiskCache( new File( cacheDir ) );
+            }
+            catch( IOException e )
+            {
+                logger.warn( "Schema disk cache disabled: " + e.getMessage() );
+            }
+        }
+
     }
 
 
@@ -83,4 +172,242 @@ public class Runtime
         return processor;
     }
 
+
+    /**
+     * Returns one of the bundled meta-stylesheets (such as {@link #SVRL_META_STYLESHEET}),
+     * compiled. Each is compiled at most once per processor; executables are thread-safe, so
+     * the same instance is shared by all schema compilations.
+     */
+    public static XsltExecutable getMetaStylesheet( final String name ) throws SaxonApiException
+    {
+        return getOnce( metaStylesheets, name, () -> {
+            JarUriResolver jur = new JarUriResolver();
+            XsltCompiler comp = processor.newXsltCompiler();
+            comp.setURIResolver( jur );
+            try
+            {
+                return comp.compile( jur.resolve( name, null ) );
+            }
+            catch( TransformerException e )
+            {
+                throw new SaxonApiException( e );
+            }
+        }, "meta-stylesheet" );
+    }
+
+
+    /**
+     * Returns the library package cached under <tt>key</tt>, a digest of the library, using
+     * <tt>compiler</tt> to create it if there is none, so that each library is compiled once
+     * per processor however many schemas include it. The number of packages kept is bounded;
+     * the least recently used is evicted first.
+     */
+    public static LibraryPackage getLibraryPackage( String key,
+            Callable< LibraryPackage > compiler ) throws SaxonApiException
+    {
+        return getOnce( libraryPackages, key, compiler, "library package" );
+    }
+
+
+    /**
+     * @return the number of library packages kept
+     */
+    static int getMaxLibraryPackages()
+    {
+        return maxLibraryPackages;
+    }
+
+
+    /**
+     * Returns the value in <tt>map</tt> under <tt>key</tt>, using <tt>compiler</tt> to create
+     * it if there is none. Creation is single-flight, and holds no lock: threads asking for the
+     * same key wait for the first to create the value, and others go on. The map is only
+     * accessed holding its own monitor. A failed creation is not kept.
+     */
+    private static < T > T getOnce( Map< String, FutureTask< T >> map, String key,
+            Callable< T > compiler, String what ) throws SaxonApiException
+    {
+        FutureTask< T > task;
+        boolean owner = false;
+        synchronized( map )
+        {
+            task = map.get( key );
+            if( task == null )
+            {
+                task = new FutureTask< T >( compiler );
+                map.put( key, task );
+                owner = true;
+            }
+        }
+
+        if( owner )
+        {
+            logger.debug( "Compiling " + what + ": " + key );
+            task.run(); // compile on this thread
+        }
+
+        try
+        {
+            return task.get();
+        }
+        catch( ExecutionException e )
+        {
+            synchronized( map )
+            {
+                map.remove( key, task );
+            }
+            if( e.getCause() instanceof SaxonApiException )
+            {
+                throw ( SaxonApiException )e.getCause();
+            }
+            throw new SaxonApiException( e.getCause() );
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new SaxonApiException( e );
+        }
+    }
+
+
+    /**
+     * @return the process-wide cache of compiled schemas
+     */
+    public static CompiledSchemaCache getSchemaCache()
+    {
+        return schemaCache;
+    }
+
+
+    /**
+     * Compiles the schemas of the passed sessions in parallel into the compiled-schema cache
+     * (and the disk cache, if one is in use), so that validations using them later do not pay
+     * for compilation. Each session's phase and report format are respected.
+     * 
+     * @return the compiled schemas, in the order of the sessions; null where compilation failed
+     */
+    public static List< CompiledSchema > precompile( List< Session > sessions )
+    {
+        List< CompiledSchema > compiled = new ArrayList< CompiledSchema >();
+        if( sessions.isEmpty() )
+        {
+            return compiled;
+        }
+
+        int threads = Math.min( sessions.size(), java.lang.Runtime.getRuntime()
+                .availableProcessors() );
+        ExecutorService pool = Executors.newFixedThreadPool( threads );
+
+        try
+        {
+            List< Future< CompiledSchema >> futures = new ArrayList< Future< CompiledSchema >>();
+            Iterator< Session > iter = sessions.iterator();
+            while( iter.hasNext() )
+            {
+                final Session session = iter.next();
+                futures.add( pool.submit( () -> new SchematronSchema( session )
+                        .getCompiledSchema( null ) ) );
+            }
+
+            for( int i = 0; i < futures.size(); i++ )
+            {
+                try
+                {
+                    compiled.add( futures.get( i ).get() );
+                }
+                catch( ExecutionException e )
+                {
+                    logger.error( "Cannot precompile " + sessions.get( i ).getSchemaSysId()
+                            + ": " + e.getCause().getMessage() );
+                    compiled.add( null );
+                }
+                catch( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    compiled.add( null );
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        return compiled;
+    }
+
+
+    /**
+     * Returns the entity resolver set on every parser reading candidates or schemas, so that
+     * DTDs resolve against the catalogs in use and each is read once per process. The catalogs
+     * are those set by {@link #setCatalogFiles(List)}, else those listed (separated by
+     * semicolons) in the <tt>property://probatron.org/catalog-files</tt> system property, else
+     * those named by <tt>xml.catalog.files</tt>.
+     */
+    public static CatalogEntityResolver getEntityResolver()
+    {
+        CatalogEntityResolver resolver = entityResolver;
+        if( resolver != null )
+        {
+            return resolver;
+        }
+
+        synchronized( resolverLock )
+        {
+            if( entityResolver == null )
+            {
+                List< String > files = catalogFiles;
+                String property = System.getProperty( PROPERTY_CATALOG_FILES );
+                if( files == null && property != null )
+                {
+                    files = Arrays.asList( property.split( ";" ) );
+                }
+                entityResolver = new CatalogEntityResolver( files );
+            }
+            return entityResolver;
+        }
+    }
+
+
+    /**
+     * Sets the catalogs DTDs are resolved against, discarding the DTDs read so far.
+     */
+    public static void setCatalogFiles( List< String > catalogFiles )
+    {
+        synchronized( resolverLock )
+        {
+            Runtime.catalogFiles = catalogFiles == null ? null : new ArrayList< String >(
+                    catalogFiles );
+            entityResolver = null;
+        }
+    }
+
+
+    /**
+     * @return the process-wide cache of documents included by schemas
+     */
+    public static IncludeCache getIncludeCache()
+    {
+        return includeCache;
+    }
+
+
+    /**
+     * @return the on-disk cache of generated schema XSLT, or null if there is none
+     */
+    public static SchemaDiskCache getDiskCache()
+    {
+        return diskCache;
+    }
+
+
+    /**
+     * Sets the on-disk cache of generated schema XSLT shared by all sessions. Pass null to stop
+     * using one.
+     */
+    public static void setDiskCache( SchemaDiskCache diskCache )
+    {
+        Runtime.diskCache = diskCache;
+    }
+
 }
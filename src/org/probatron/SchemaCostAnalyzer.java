@@ -0,0 +1,447 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+
+/**
+ * Looks for constructs likely to make validation slow in the XPath expressions of a schema
+ * whose inclusions have been performed and whose abstract patterns have been expanded (see
+ * {@link SchematronSchema#getExpandedSchema()}). The expressions examined are those of
+ * rule/@context, assert/@test, report/@test and let/@value; the constructs looked for are:
+ * <ul>
+ * <li>descendant scans (<tt>//</tt> and the descendant axes);</li>
+ * <li>scans of the <tt>preceding</tt> and <tt>following</tt> axes;</li>
+ * <li><tt>count(//...)</tt>; and</li>
+ * <li>calls to <tt>document()</tt> and <tt>doc()</tt>.</li>
+ * </ul>
+ * Each construct found is scored by its likely cost, which is multiplied by
+ * {@link #PER_NODE_FACTOR} where the expression is evaluated once for every node a rule
+ * fires on rather than once for the document. The analysis is lexical, so it errs on the side
+ * of reporting.
+ */
+public class SchemaCostAnalyzer
+{
+    /** the weight of an expression evaluated for every node a rule fires on */
+    public final static int PER_NODE_FACTOR = 10;
+
+    private final static int COST_DOCUMENT_SCAN = 10;
+    private final static int COST_COUNT_DOCUMENT = 10;
+    private final static int COST_ORDER_SCAN = 8;
+    private final static int COST_DOCUMENT_CALL = 5;
+    private final static int COST_SUBTREE_SCAN = 3;
+
+    private final static Pattern STRING_LITERAL = Pattern.compile( "\"[^\"]*\"|'[^']*'" );
+    private final static Pattern COMMENT = Pattern.compile( "\\(:.*?:\\)", Pattern.DOTALL );
+    private final static Pattern COUNT_DOCUMENT = Pattern.compile( "\\bcount\\s*\\(\\s*//" );
+    private final static Pattern DOUBLE_SLASH = Pattern.compile( "//" );
+    private final static Pattern DESCENDANT_AXIS = Pattern
+            .compile( "\\bdescendant(-or-self)?\\s*::" );
+    private final static Pattern ORDER_AXIS = Pattern.compile( "\\b(preceding|following)\\s*::" );
+    private final static Pattern DOCUMENT_CALL = Pattern.compile( "\\b(document|doc)\\s*\\(" );
+
+    // words after which a path is an operand, and so a leading // starts from the root
+    private final static Set< String > OPERATORS = new HashSet< String >( Arrays.asList(
+            "and", "or", "div", "mod", "idiv", "return", "in", "satisfies", "then", "else",
+            "eq", "ne", "lt", "le", "gt", "ge", "is", "union", "intersect", "except", "to" ) );
+
+    private final static QName ID = new QName( "id" );
+    private final static QName CONTEXT = new QName( "context" );
+    private final static QName TEST = new QName( "test" );
+    private final static QName NAME = new QName( "name" );
+    private final static QName VALUE = new QName( "value" );
+
+    private final XdmNode schema;
+    private List< Finding > findings;
+
+    /**
+     * A construct found in an expression of the schema.
+     */
+    public static class Finding
+    {
+        private final String construct;
+        private final int cost;
+        private final boolean perNode;
+        private final String pattern;
+        private final String rule;
+        private final String where;
+        private final String expression;
+
+
+        Finding( String construct, int cost, boolean perNode, String pattern, String rule,
+                String where, String expression )
+        {
+            this.construct = construct;
+            this.cost = cost;
+            this.perNode = perNode;
+            this.pattern = pattern;
+            this.rule = rule;
+            this.where = where;
+            this.expression = expression;
+        }
+
+
+        /**
+         * @return a description of the construct
+         */
+        public String getConstruct()
+        {
+            return construct;
+        }
+
+
+        /**
+         * @return the score by which findings are ranked; the higher, the costlier
+         */
+        public int getScore()
+        {
+            return perNode ? cost * PER_NODE_FACTOR : cost;
+        }
+
+
+        /**
+         * @return whether the expression is evaluated for every node a rule fires on
+         */
+        public boolean isPerNode()
+        {
+            return perNode;
+        }
+
+
+        /**
+         * @return the id of the pattern containing the expression, or null
+         */
+        public String getPattern()
+        {
+            return pattern;
+        }
+
+
+        /**
+         * @return the context of the rule containing the expression, or null if the
+         *         expression is outside any rule
+         */
+        public String getRule()
+        {
+            return rule;
+        }
+
+
+        /**
+         * @return the kind of expression, e.g. "assert" or "let $name"
+         */
+        public String getWhere()
+        {
+            return where;
+        }
+
+
+        public String getExpression()
+        {
+            return expression;
+        }
+    }
+
+
+    /**
+     * @param schema
+     *            the document node of an expanded schema
+     */
+    public SchemaCostAnalyzer( XdmNode schema )
+    {
+        this.schema = schema;
+    }
+
+
+    /**
+     * @return the constructs found, costliest first; of those scoring the same, those earlier
+     *         in the schema come first
+     */
+    public List< Finding > analyze()
+    {
+        if( findings == null )
+        {
+            findings = new ArrayList< Finding >();
+            walk( schema, null, null );
+            Collections.sort( findings, ( a, b ) -> b.getScore() - a.getScore() );
+        }
+        return findings;
+    }
+
+
+    /**
+     * Writes the findings as a ranked, human-readable report.
+     */
+    public void writeReport( PrintStream out, String title )
+    {
+        List< Finding > list = analyze();
+        out.println( "Cost report for " + title + ": " + list.size()
+                + ( list.size() == 1 ? " expensive construct" : " expensive constructs" ) );
+
+        for( int i = 0; i < list.size(); i++ )
+        {
+            Finding f = list.get( i );
+            out.println( String.format( "%4d. [%d] %s, %s", i + 1, f.getScore(), f
+                    .getConstruct(), f.isPerNode() ? "per node" : "once" ) );
+
+            StringBuilder sb = new StringBuilder( "        " );
+            if( f.getPattern() != null )
+            {
+                sb.append( "pattern '" ).append( f.getPattern() ).append( "', " );
+            }
+            if( f.getRule() != null )
+            {
+                sb.append( "rule '" ).append( f.getRule() ).append( "', " );
+            }
+            sb.append( f.getWhere() ).append( ": " ).append( f.getExpression() );
+            out.println( sb );
+        }
+    }
+
+
+    private void walk( XdmNode node, String pattern, String rule )
+    {
+        Iterator< XdmNode > iter = node.children().iterator();
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( child.getNodeKind() != XdmNodeKind.ELEMENT )
+            {
+                continue;
+            }
+
+            QName name = child.getNodeName();
+            if( !name.getNamespace().equals( Utils.SCHEMATRON_NAME ) )
+            {
+                walk( child, pattern, rule );
+                continue;
+            }
+
+            String localName = name.getLocalName();
+            if( localName.equals( "pattern" ) )
+            {
+                walk( child, child.getAttributeValue( ID ), null );
+            }
+            else if( localName.equals( "rule" ) )
+            {
+                String context = child.getAttributeValue( CONTEXT );
+                if( context != null )
+                {
+                    examine( context, true, true, pattern, context, "rule context" );
+                }
+                walk( child, pattern, context == null ? "" : context );
+            }
+            else if( localName.equals( "assert" ) || localName.equals( "report" ) )
+            {
+                String test = child.getAttributeValue( TEST );
+                if( test != null )
+                {
+                    examine( test, false, rule != null, pattern, rule, localName );
+                }
+            }
+            else if( localName.equals( "let" ) )
+            {
+                String value = child.getAttributeValue( VALUE );
+                if( value != null )
+                {
+                    examine( value, false, rule != null, pattern, rule, "let $"
+                            + child.getAttributeValue( NAME ) );
+                }
+            }
+            else
+            {
+                walk( child, pattern, rule );
+            }
+        }
+    }
+
+
+    /**
+     * Records the costly constructs in an expression.
+     *
+     * @param isPattern
+     *            whether the expression is an XSLT match pattern, in which a descendant step
+     *            outside a predicate is cheap
+     */
+    private void examine( String expr, boolean isPattern, boolean perNode, String pattern,
+            String rule, String where )
+    {
+        String s = stripLiterals( expr );
+        Set< Integer > counted = new HashSet< Integer >();
+
+        Matcher m = COUNT_DOCUMENT.matcher( s );
+        while( m.find() )
+        {
+            counted.add( m.end() - 2 );
+            add( "count() over the whole document", COST_COUNT_DOCUMENT, perNode, pattern,
+                    rule, where, expr );
+        }
+
+        m = DOUBLE_SLASH.matcher( s );
+        while( m.find() )
+        {
+            int pos = m.start();
+            if( counted.contains( pos ) || ( isPattern && !insidePredicate( s, pos ) ) )
+            {
+                continue;
+            }
+
+            if( startsFromRoot( s, pos ) )
+            {
+                add( "descendant scan of the whole document (//)", COST_DOCUMENT_SCAN,
+                        perNode, pattern, rule, where, expr );
+            }
+            else
+            {
+                add( "descendant scan of a subtree (//)", COST_SUBTREE_SCAN, perNode, pattern,
+                        rule, where, expr );
+            }
+        }
+
+        m = DESCENDANT_AXIS.matcher( s );
+        while( m.find() )
+        {
+            if( !isPattern || insidePredicate( s, m.start() ) )
+            {
+                add( "descendant scan of a subtree (" + m.group().replaceAll( "\\s", "" )
+                        + ")", COST_SUBTREE_SCAN, perNode, pattern, rule, where, expr );
+            }
+        }
+
+        m = ORDER_AXIS.matcher( s );
+        while( m.find() )
+        {
+            add( "scan of the " + m.group( 1 ) + " axis", COST_ORDER_SCAN, perNode, pattern,
+                    rule, where, expr );
+        }
+
+        m = DOCUMENT_CALL.matcher( s );
+        while( m.find() )
+        {
+            add( "call to " + m.group( 1 ) + "()", COST_DOCUMENT_CALL, perNode, pattern, rule,
+                    where, expr );
+        }
+    }
+
+
+    private void add( String construct, int cost, boolean perNode, String pattern,
+            String rule, String where, String expr )
+    {
+        findings.add( new Finding( construct, cost, perNode, pattern, rule, where, expr ) );
+    }
+
+
+    /**
+     * @return the expression with the content of its string literals and comments blanked out,
+     *         leaving positions unchanged
+     */
+    static String stripLiterals( String expr )
+    {
+        StringBuilder sb = new StringBuilder( expr );
+        blank( sb, STRING_LITERAL.matcher( expr ) );
+        blank( sb, COMMENT.matcher( sb.toString() ) );
+        return sb.toString();
+    }
+
+
+    private static void blank( StringBuilder sb, Matcher m )
+    {
+        while( m.find() )
+        {
+            for( int i = m.start() + 1; i < m.end() - 1; i++ )
+            {
+                sb.setCharAt( i, ' ' );
+            }
+        }
+    }
+
+
+    /**
+     * @return whether the position lies within square brackets
+     */
+    static boolean insidePredicate( String s, int pos )
+    {
+        int depth = 0;
+        for( int i = 0; i < pos; i++ )
+        {
+            char c = s.charAt( i );
+            if( c == '[' )
+            {
+                depth++;
+            }
+            else if( c == ']' )
+            {
+                depth--;
+            }
+        }
+        return depth > 0;
+    }
+
+
+    /**
+     * @return whether the <tt>//</tt> at the position starts a path, rather than continuing
+     *         one from a step, variable or parenthesized expression
+     */
+    static boolean startsFromRoot( String s, int pos )
+    {
+        int i = pos - 1;
+        while( i >= 0 && Character.isWhitespace( s.charAt( i ) ) )
+        {
+            i--;
+        }
+        if( i < 0 )
+        {
+            return true;
+        }
+
+        char c = s.charAt( i );
+        if( "([,=<>!|+".indexOf( c ) != -1 )
+        {
+            return true;
+        }
+
+        // a preceding word is a step (or variable) unless it is an operator
+        int end = i + 1;
+        while( i >= 0 && ( Character.isLetterOrDigit( s.charAt( i ) ) || s.charAt( i ) == '-' ) )
+        {
+            i--;
+        }
+        if( i >= 0 && s.charAt( i ) == '$' )
+        {
+            return false;
+        }
+        return end > i + 1 && i >= 0 && Character.isWhitespace( s.charAt( i ) )
+                && OPERATORS.contains( s.substring( i + 1, end ) );
+    }
+
+}
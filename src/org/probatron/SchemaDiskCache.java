@@ -0,0 +1,339 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A directory of generated schema XSLT which persists across JVM runs. Two kinds of entry are
+ * kept:
+ * <ul>
+ * <li>for each schema document, the URLs and digests of all the documents it includes, so
+ * that a later run can fingerprint the schema without performing inclusion; and</li>
+ * <li>for each cache key, the validating XSLT generated from the schema, and metadata about the
+ * schema such as its phases.</li>
+ * </ul>
+ * Every entry is written to a temporary file and then atomically renamed into place, so
+ * several processes may safely share one directory: a reader sees either a complete entry or
+ * none at all.
+ * <p>
+ * The names of the XSLT and metadata entries include {@link #FORMAT_VERSION}, so that entries
+ * written by a release generating different XSLT are not used by another.
+ */
+public class SchemaDiskCache
+{
+    static Logger logger = LogManager.getLogger( SchemaDiskCache.class.getName());
+
+    private static final String DEPENDENCIES_SUFFIX = ".deps";
+    private static final String XSLT_SUFFIX = ".xsl";
+    private static final String METADATA_SUFFIX = ".properties";
+
+    /**
+     * the version of the XSLT and metadata stored, to be incremented whenever a change to the
+     * code alters the XSLT generated for a schema, or the metadata recorded about it
+     */
+    public static final int FORMAT_VERSION = 2;
+
+    private final Path dir;
+    private final int formatVersion;
+
+
+    public SchemaDiskCache( File dir ) throws IOException
+    {
+        this( dir, FORMAT_VERSION );
+    }
+
+
+    /**
+     * Constructs a cache which uses only the entries of the passed version.
+     */
+    SchemaDiskCache( File dir, int formatVersion ) throws IOException
+    {
+        this.dir = dir.toPath();
+        this.formatVersion = formatVersion;
+        Files.createDirectories( this.dir );
+        logger.debug( "Using schema disk cache at " + this.dir.toAbsolutePath() );
+    }
+
+
+    public File getDirectory()
+    {
+        return dir.toFile();
+    }
+
+
+    /**
+     * Returns the dependencies recorded for a schema document, provided none of them has
+     * changed since.
+     *
+     * @param schemaUrl
+     *            the location of the schema document
+     * @param schemaDigest
+     *            the digest of the schema document's content
+     * @return the URLs of the documents included by the schema mapped to their digests, or null
+     *         if there is no record or any included document has changed
+     */
+    public Map< String, String > getDependencies( URL schemaUrl, String schemaDigest )
+    {
+        byte[] ba = read( dependenciesName( schemaUrl, schemaDigest ) );
+        if( ba == null )
+        {
+            return null;
+        }
+
+        Properties p = new Properties();
+        try
+        {
+            p.load( new ByteArrayInputStream( ba ) );
+        }
+        catch( IOException e )
+        {
+            logger.warn( "Unreadable dependency record for " + schemaUrl + ": " + e.getMessage() );
+            return null;
+        }
+
+        TreeMap< String, String > deps = new TreeMap< String, String >();
+        Iterator< String > iter = p.stringPropertyNames().iterator();
+        while( iter.hasNext() )
+        {
+            String url = iter.next();
+            String digest = p.getProperty( url );
+            if( !digest.equals( currentDigest( url ) ) )
+            {
+                logger.debug( "Included document has changed: " + url );
+                return null;
+            }
+            deps.put( url, digest );
+        }
+
+        return deps;
+    }
+
+
+    /**
+     * Records the dependencies of a schema document.
+     */
+    public void putDependencies( URL schemaUrl, String schemaDigest, Map< String, String > deps )
+    {
+        Properties p = new Properties();
+        p.putAll( deps );
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try
+        {
+            p.store( baos, schemaUrl.toExternalForm() );
+        }
+        catch( IOException e )
+        {
+            throw new RuntimeException( e ); // cannot happen writing to memory
+        }
+
+        write( dependenciesName( schemaUrl, schemaDigest ), baos.toByteArray() );
+    }
+
+
+    /**
+     * @return the XSLT stored under the passed cache key, or null if there is none
+     */
+    public byte[] getXslt( String key )
+    {
+        return read( xsltName( key ) );
+    }
+
+
+    public void putXslt( String key, byte[] xslt )
+    {
+        write( xsltName( key ), xslt );
+    }
+
+
+    /**
+     * @return the metadata stored under the passed cache key, or null if there is none
+     */
+    public Properties getMetadata( String key )
+    {
+        byte[] ba = read( metadataName( key ) );
+        if( ba == null )
+        {
+            return null;
+        }
+
+        Properties p = new Properties();
+        try
+        {
+            p.load( new ByteArrayInputStream( ba ) );
+        }
+        catch( IOException e )
+        {
+            logger.warn( "Unreadable schema metadata: " + e.getMessage() );
+            return null;
+        }
+        return p;
+    }
+
+
+    public void putMetadata( String key, Properties metadata )
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try
+        {
+            metadata.store( baos, key );
+        }
+        catch( IOException e )
+        {
+            throw new RuntimeException( e ); // cannot happen writing to memory
+        }
+
+        write( metadataName( key ), baos.toByteArray() );
+    }
+
+
+    /**
+     * Discards the XSLT stored under the passed cache key, e.g. because it failed to compile.
+     */
+    public void removeXslt( String key )
+    {
+        try
+        {
+            Files.deleteIfExists( dir.resolve( xsltName( key ) ) );
+            Files.deleteIfExists( dir.resolve( metadataName( key ) ) );
+        }
+        catch( IOException e )
+        {
+            logger.warn( "Cannot delete cached XSLT: " + e.getMessage() );
+        }
+    }
+
+
+    private String dependenciesName( URL schemaUrl, String schemaDigest )
+    {
+        return nameFor( schemaUrl.toExternalForm() + "\n" + schemaDigest ) + DEPENDENCIES_SUFFIX;
+    }
+
+
+    private String xsltName( String key )
+    {
+        return nameFor( formatVersion + "\n" + key ) + XSLT_SUFFIX;
+    }
+
+
+    private String metadataName( String key )
+    {
+        return nameFor( formatVersion + "\n" + key ) + METADATA_SUFFIX;
+    }
+
+
+    private static String nameFor( String s )
+    {
+        return Utils.digest( s.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+
+    private static String currentDigest( String url )
+    {
+        try
+        {
+            return Runtime.getIncludeCache().get( new URL( url ) ).getDigest();
+        }
+        catch( MalformedURLException e )
+        {
+            return "";
+        }
+    }
+
+
+    private byte[] read( String name )
+    {
+        try
+        {
+            return Files.readAllBytes( dir.resolve( name ) );
+        }
+        catch( NoSuchFileException e )
+        {
+            return null;
+        }
+        catch( IOException e )
+        {
+            logger.warn( "Cannot read schema disk cache entry " + name + ": " + e.getMessage() );
+            return null;
+        }
+    }
+
+
+    /**
+     * Failures are logged rather than thrown: the cache is an optimisation, and validation can
+     * proceed without it.
+     */
+    private void write( String name, byte[] ba )
+    {
+        Path tmp = null;
+        try
+        {
+            tmp = Files.createTempFile( dir, name, ".tmp" );
+            Files.write( tmp, ba );
+
+            Path target = dir.resolve( name );
+            try
+            {
+                Files.move( tmp, target, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING );
+            }
+            catch( AtomicMoveNotSupportedException e )
+            {
+                Files.move( tmp, target, StandardCopyOption.REPLACE_EXISTING );
+            }
+            logger.debug( "Wrote schema disk cache entry " + name );
+        }
+        catch( IOException e )
+        {
+            logger.warn( "Cannot write schema disk cache entry " + name + ": " + e.getMessage() );
+            if( tmp != null )
+            {
+                try
+                {
+                    Files.deleteIfExists( tmp );
+                }
+                catch( IOException e2 )
+                {
+                    // nothing more to be done
+                }
+            }
+        }
+    }
+
+}
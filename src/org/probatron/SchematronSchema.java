@@ -23,35 +23,62 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
+import java.io.StringReader;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
 
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.BuildingContentHandler;
+import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SAXDestination;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+import net.sf.saxon.s9api.XdmValue;
 import net.sf.saxon.s9api.XsltCompiler;
 import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltPackage;
 import net.sf.saxon.s9api.XsltTransformer;
+import net.sf.saxon.s9api.streams.Steps;
+import net.sf.saxon.trans.XPathException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.XMLReaderFactory;
 
-import com.megginson.sax.XMLWriter;
-
 /**
  * Represents a Schematron schema.
  */
@@ -61,9 +88,21 @@ public class SchematronSchema
 
     private byte[] schemaAsBytes;
     private URL schemaUrl;
-    private JarUriResolver jur = new JarUriResolver();
     private Session session;
 
+    // the products of inclusion, which is performed lazily
+    private XdmNode included;
+    // the phases validated together (null if only the session's phase is), and the session's
+    // phase, for which the products of inclusion were made
+    private List< String > includedPhases;
+    private String includedSessionPhase;
+    // the libraries replaced by placeholders in the included schema, to be compiled as packages
+    private List< XdmNode > libraries = Collections.emptyList();
+    // the packages the generated XSLT uses
+    private List< LibraryPackage > packages = Collections.emptyList();
+    private String compilePhase;
+    private Properties metadata;
+
 
     /**
      * Constructs an instance from the Schematron schema document located at the passed URL.
@@ -81,11 +120,23 @@ public class SchematronSchema
 
 
     /**
-     * Constructs an instance from the Schematron schema document of the passed stream.
+     * Constructs an instance from the Schematron schema document of the passed stream, with the
+     * options of a new session.
      */
     public SchematronSchema( InputStream is )
+    {
+        this( is, new Session() );
+    }
+
+
+    /**
+     * Constructs an instance from the Schematron schema document of the passed stream, with the
+     * options of the passed session. The session's schema location is not used.
+     */
+    public SchematronSchema( InputStream is, Session session )
     {
         logger.debug( "Constructing from InpuStream" );
+        this.session = session;
         try
         {
             this.schemaAsBytes = Utils.getBytesToEndOfStream( is, false );
@@ -104,91 +155,335 @@ public class SchematronSchema
      */
     public ValidationReport validateCandidate( URL candidateUrl )
     {
-        ValidationReport vr = null;
-        InputStream is = null; // the stream for the candidate
+        try
+        {
+            return validateCandidate( parseCandidate( candidateUrl ), getCompiledSchema( null ) );
+        }
+        catch( IOException e )
+        {
+            logger.fatal( e.getMessage() );
+            return null;
+        }
+    }
+
+
+    /**
+     * Applies this schema to the document of the passed source, which may be a stream, SAX or
+     * DOM source, or a Saxon tree.
+     * 
+     * @return the validation report generated
+     */
+    public ValidationReport validateCandidate( Source candidate )
+    {
+        try
+        {
+            return validateCandidate( parseCandidate( candidate, null ), getCompiledSchema( null ) );
+        }
+        catch( IOException e )
+        {
+            logger.fatal( e.getMessage() );
+            return null;
+        }
+    }
+
 
+    /**
+     * Applies several phases of this schema to the document located at the passed URL. The
+     * patterns active in any of the phases are compiled together, so the document is parsed and
+     * traversed once whatever the number of phases.
+     * 
+     * @param phases
+     *            the ids of the phases; null or the empty string denotes the default phase
+     * @return a validation report for each phase, in the order the phases are passed
+     */
+    public Map< String, ValidationReport > validateCandidate( URL candidateUrl,
+            List< String > phases )
+    {
         try
         {
-            URLConnection conn = candidateUrl.openConnection();
-            conn.connect();
-            is = conn.getInputStream();
-            vr = validateCandidate( is );
+            CompiledSchema cs = getCompiledSchema( phases );
+            return validateCandidate( parseCandidate( candidateUrl ), cs ).splitByPhase( phases,
+                    cs );
         }
         catch( IOException e )
         {
             logger.fatal( e.getMessage() );
+            return null;
+        }
+    }
+
+
+    /**
+     * Reads the document located at the passed URL into a tree to which this schema can be
+     * applied. The tree is numbered with the lines and columns of its elements, so that it can
+     * also be used to locate them.
+     */
+    public XdmNode parseCandidate( URL candidateUrl ) throws IOException
+    {
+        return parseCandidate( candidateUrl, null );
+    }
+
+
+    /**
+     * Reads the document located at the passed URL, as {@link #parseCandidate(URL)} does,
+     * recording the identifiers of its DTD in the passed context, if any, as it is read.
+     */
+    public XdmNode parseCandidate( URL candidateUrl, ValidationContext vc ) throws IOException
+    {
+        CandidateSource candidate = new CandidateSource( candidateUrl );
+        try
+        {
+            return parseCandidate( candidate, vc );
+        }
+        finally
+        {
+            candidate.close();
+        }
+    }
+
+
+    /**
+     * Reads the passed candidate, as {@link #parseCandidate(URL, ValidationContext)} does.
+     */
+    public XdmNode parseCandidate( CandidateSource candidate, ValidationContext vc )
+            throws IOException
+    {
+        InputStream is = null; // the stream for the candidate
+
+        try
+        {
+            is = candidate.openStream();
+            InputSource source = new InputSource( is );
+            source.setSystemId( candidate.getUrl().toExternalForm() );
+            return parseCandidate( source, null, vc );
         }
         finally
         {
             Utils.streamClose( is );
         }
+    }
 
-        return vr;
+
+    /**
+     * Reads the document of the passed stream, which is left open, as
+     * {@link #parseCandidate(URL, ValidationContext)} does.
+     * 
+     * @param systemId
+     *            the system identifier against which the document's relative references are
+     *            resolved, or null if it has none
+     */
+    public XdmNode parseCandidate( InputStream is, String systemId, ValidationContext vc )
+            throws IOException
+    {
+        InputSource source = new InputSource( is );
+        source.setSystemId( systemId );
+        return parseCandidate( source, null, vc );
     }
 
 
-    static void doIncludePreprocess( byte[] schemaAsBytes, ByteArrayOutputStream baos )
+    /**
+     * Reads the document of the passed source, as {@link #parseCandidate(URL, ValidationContext)}
+     * does. Stream and SAX sources are parsed, recording the identifiers of the document's DTD
+     * in the passed context, if any, as are those of a DOM document's type node; other sources
+     * are copied, and have no DTD identifiers to record.
+     */
+    public XdmNode parseCandidate( Source source, ValidationContext vc ) throws IOException
     {
-    // do nothing
+        if( source instanceof StreamSource || source instanceof SAXSource )
+        {
+            InputSource is = SAXSource.sourceToInputSource( source );
+            XMLReader reader = source instanceof SAXSource ? ( ( SAXSource )source )
+                    .getXMLReader() : null;
+            return parseCandidate( is, reader, vc );
+        }
+
+        if( vc != null && source instanceof DOMSource )
+        {
+            Node node = ( ( DOMSource )source ).getNode();
+            Document dom = node instanceof Document ? ( Document )node : node.getOwnerDocument();
+            if( dom != null && dom.getDoctype() != null )
+            {
+                vc.setDtdPublicId( dom.getDoctype().getPublicId() );
+                vc.setDtdSystemId( dom.getDoctype().getSystemId() );
+            }
+        }
+
+        try
+        {
+            DocumentBuilder builder = Runtime.getSaxonProcessor().newDocumentBuilder();
+            builder.setLineNumbering( true );
+            return builder.build( source );
+        }
+        catch( SaxonApiException e )
+        {
+            logger.fatal( e.getMessage() );
+            throw new RuntimeException( "SaxonApiException: " + e, e );
+        }
     }
 
 
-    private ValidationReport validateCandidate( InputStream candidateStream )
+    /**
+     * Parses a candidate with the passed reader, or a new one if it is null.
+     */
+    private XdmNode parseCandidate( InputSource source, XMLReader reader, ValidationContext vc )
+            throws IOException
     {
+        try
+        {
+            if( source.getSystemId() == null )
+            {
+                source.setSystemId( schemaUrl == null ? null : schemaUrl.toExternalForm() );
+            }
 
-        TransformerFactory jarAwareTransformerFactory = Utils.getTransformerFactory();
-        jarAwareTransformerFactory.setURIResolver( jur );
+            if( reader == null )
+            {
+                reader = XMLReaderFactory.createXMLReader();
+                if( !session.isLoadExternalDtd() )
+                {
+                    reader.setFeature( CatalogEntityResolver.FEATURE_LOAD_EXTERNAL_DTD, false );
+                }
+                reader.setEntityResolver( Runtime.getEntityResolver() );
+            }
+            if( vc != null )
+            {
+                DoctypeFilter filter = new DoctypeFilter( vc );
+                filter.setParent( reader );
+                filter.setEntityResolver( reader.getEntityResolver() );
+                reader = filter;
+            }
+
+            DocumentBuilder builder = Runtime.getSaxonProcessor().newDocumentBuilder();
+            builder.setLineNumbering( true );
+            return builder.build( new SAXSource( reader, source ) );
+        }
+        catch( SAXException e )
+        {
+            logger.fatal( e.getMessage() );
+            throw new RuntimeException( "SAXException: " + e, e );
+        }
+        catch( SaxonApiException e )
+        {
+            logger.fatal( e.getMessage() );
+            throw new RuntimeException( "SaxonApiException: " + e, e );
+        }
+    }
 
-        ValidationReport vr = null;
-        Transformer t = null;
 
+    static void doIncludePreprocess( byte[] schemaAsBytes, ByteArrayOutputStream baos )
+    {
+    // do nothing
+    }
+
+
+    /**
+     * Returns the executable form of this schema, compiling it if neither the process-wide nor
+     * the on-disk cache holds it already. Safe to call on a thread other than the session's:
+     * the phases are passed to the compilation rather than kept, and calls on one instance,
+     * which share the products of inclusion, are made one at a time.
+     * 
+     * @param phases
+     *            the phases to be validated together, or null to compile for the session's
+     *            phase
+     */
+    public synchronized CompiledSchema getCompiledSchema( final List< String > phases )
+    {
         try
         {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            byte[] interim = null;
+            // Step 1. fingerprint the schema and everything it includes, which only requires
+            // inclusion if neither cache has an up to date record of the included documents
+            String schemaDigest = Utils.digest( this.schemaAsBytes );
+            IncludeCache includeCache = Runtime.getIncludeCache();
+            SchemaDiskCache diskCache = Runtime.getDiskCache();
+            Map< String, String > dependencies = null;
 
-            // Step 1. do the inclusion
-            logger.debug( "Performing inclusion ..." );
-            XMLReader reader = XMLReaderFactory.createXMLReader();
-            IncludingFilter filter = new IncludingFilter( schemaUrl, true );
-            filter.setParent( reader );
-            filter.setContentHandler( new XMLWriter( new OutputStreamWriter( baos ) ) );
-            filter.parse( new InputSource( new ByteArrayInputStream( this.schemaAsBytes ) ) );
-            interim = baos.toByteArray();
-            baos.reset();
+            if( schemaUrl != null )
+            {
+                dependencies = includeCache.getDependencies( schemaUrl, schemaDigest );
+                if( dependencies == null && diskCache != null )
+                {
+                    dependencies = diskCache.getDependencies( schemaUrl, schemaDigest );
+                }
+            }
 
-            Source xsltSource = null;
+            if( dependencies == null )
+            {
+                dependencies = include( !session.usesNativeEngine(), phases );
+                if( diskCache != null && schemaUrl != null )
+                {
+                    diskCache.putDependencies( schemaUrl, schemaDigest, dependencies );
+                }
+            }
 
-            // optimisation - if no abstract patterns exist, this step can be skipped
-            if( filter.foundAbstractPatterns )
+            if( schemaUrl != null )
             {
-                // Step 2. for abstract template processing
-                logger.debug( "Running abstract template expansion transform ..." );
-                xsltSource = jur.resolve( "iso_abstract_expand.xsl", null );
-                t = jarAwareTransformerFactory.newTransformer( xsltSource );
-                t.transform( new StreamSource( new ByteArrayInputStream( interim ) ),
-                        new StreamResult( baos ) );
-                interim = baos.toByteArray();
-                baos.reset();
+                includeCache.putDependencies( schemaUrl, schemaDigest, dependencies );
             }
 
-            // Utils.writeBytesToFile( interim, "interim.xml" );
+            // Steps 2 and 3 only need doing if the caches have no executable for this schema
+            final String key = cacheKey( fingerprint( schemaDigest, dependencies ), phases );
+            CompiledSchema compiled = Runtime.getSchemaCache().get( key, () -> compile( key,
+                    phases ) );
+            includeCache.addDependent( key, dependencies.keySet() );
+            return compiled;
+        }
+        catch( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            logger.fatal( cause.getMessage() );
+            throw new RuntimeException( "Schema compilation failure: " + cause, cause );
+        }
+        catch( IOException e )
+        {
+            logger.fatal( e.getMessage() );
+            throw new RuntimeException( "IOException: " + e, e );
+        }
+        catch( SAXException e )
+        {
+            logger.fatal( e.getMessage() );
+            throw new RuntimeException( "SAXException: " + e, e );
+        }
+        catch( SaxonApiException e )
+        {
+            logger.fatal( e.getMessage() );
+            throw new RuntimeException( "SaxonApiException: " + e, e );
+        }
+    }
 
-            // Step 3. compile schema to XSLT
-            interim = compileToXslt( interim );
 
-            // Step 4. Apply XSLT to candidate
-            interim = applyXsltSchema( candidateStream, interim );
+    /**
+     * Applies a compiled form of this schema to a candidate previously read by
+     * {@link #parseCandidate(URL)}.
+     * 
+     * @return the validation report generated
+     */
+    public ValidationReport validateCandidate( XdmNode candidate, CompiledSchema compiled )
+    {
+        try
+        {
+            // Step 4. Apply XSLT (or the native form) to candidate
+            byte[] interim = compiled.getNativeSchema() != null ? compiled.getNativeSchema()
+                    .validate( candidate, session ) : applyXsltSchema( candidate, compiled );
 
             // Generate the Validation report from the raw SVRL thus created
-            vr = new ValidationReport( interim );
-
+            return new ValidationReport( interim );
         }
-        catch( TransformerException e )
+        catch( SaxonApiException e )
         {
             logger.fatal( e.getMessage() );
-            throw new RuntimeException(
-                    "Cannot instantiate XSLT transformer, or transformation failure: " + e, e );
+            throw new RuntimeException( "SaxonApiException: " + e, e );
+        }
+    }
+
+
+    /**
+     * Returns this schema as the meta-stylesheets compile it: with its inclusions performed and
+     * its abstract patterns expanded.
+     */
+    public synchronized XdmNode getExpandedSchema()
+    {
+        try
+        {
+            return expandedSchema( includedPhases );
         }
         catch( IOException e )
         {
@@ -204,29 +499,677 @@ public class SchematronSchema
         {
             logger.fatal( e.getMessage() );
             throw new RuntimeException( "SaxonApiException: " + e, e );
+        }
+    }
+
+
+    private XdmNode expandedSchema( List< String > phases ) throws IOException, SAXException,
+            SaxonApiException
+    {
+        // the native engine, like the meta-stylesheets, needs the libraries included
+        if( !isIncludedFor( phases ) || !libraries.isEmpty() )
+        {
+            include( false, phases );
+        }
+
+        return this.included;
+    }
+
+
+    /**
+     * @return whether the products of inclusion were made for the passed phases
+     */
+    private boolean isIncludedFor( List< String > phases )
+    {
+        return this.included != null && Objects.equals( phases, includedPhases )
+                && Objects.equals( session.getPhase(), includedSessionPhase );
+    }
+
+
+    /**
+     * Performs the inclusion step, expanding abstract patterns as they are included, and
+     * leaving the result in {@link #included}.
+     * 
+     * @param packaging
+     *            whether includes marked as libraries are left to be compiled as packages
+     * @param phases
+     *            the phases to be validated together, or null if only the session's phase is
+     * @return the URLs of the documents included mapped to the digests of their content
+     */
+    private Map< String, String > include( boolean packaging, List< String > phases )
+            throws IOException, SAXException, SaxonApiException
+    {
+        logger.debug( "Performing inclusion ..." );
+
+        if( schemaUrl != null )
+        {
+            Runtime.getIncludeCache().prefetchIncludes( schemaUrl, this.schemaAsBytes );
+        }
+
+        BuildingContentHandler handler = Runtime.getSaxonProcessor().newDocumentBuilder()
+                .newBuildingContentHandler();
+        XMLReader reader = XMLReaderFactory.createXMLReader();
+        IncludingFilter filter = new IncludingFilter( schemaUrl, true );
+        filter.setPackaging( packaging );
+        filter.setParent( reader );
+        filter.setEntityResolver( Runtime.getEntityResolver() );
+        AbstractPatternFilter abstractFilter = new AbstractPatternFilter();
+        abstractFilter.setParent( filter );
+        PhaseFilter phaseFilter = new PhaseFilter( phases );
+        phaseFilter.setParent( abstractFilter );
+        phaseFilter.setContentHandler( handler );
+        phaseFilter.parse( new InputSource( new ByteArrayInputStream( this.schemaAsBytes ) ) );
+
+        this.included = handler.getDocumentNode();
+        this.includedPhases = phases;
+        this.includedSessionPhase = session.getPhase();
+        this.libraries = filter.getLibraries();
+        this.compilePhase = phases == null ? session.getPhase() : phaseFilter.getUnionPhase();
+        this.metadata = new Properties();
+        phaseFilter.recordPhases( metadata );
+        recordParameters( metadata );
+        recordDtdUse( metadata );
+        return filter.getDependencies();
+    }
+
+
+    /**
+     * Records the names of the schema-level variables, which the skeleton generates as
+     * parameters, in the passed properties, in the form understood by
+     * {@link CompiledSchema#getParameters()}.
+     */
+    private void recordParameters( Properties p )
+    {
+        StringBuilder sb = new StringBuilder();
+        XdmSequenceIterator< XdmNode > iter = this.included.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode schema = iter.next();
+            if( schema.getNodeKind() != XdmNodeKind.ELEMENT )
+            {
+                continue;
+            }
+
+            XdmSequenceIterator< XdmNode > letIter = schema.axisIterator( Axis.CHILD,
+                    new QName( Utils.SCHEMATRON_NAME, "let" ) );
+            while( letIter.hasNext() )
+            {
+                sb.append( letIter.next().getAttributeValue( new QName( "name" ) ) ).append( ' ' );
+            }
+        }
+        p.setProperty( CompiledSchema.PROPERTY_PARAMETERS, sb.toString().trim() );
+    }
+
+
+    /**
+     * Records whether the included schema, or any library it uses, calls the functions which
+     * return the identifiers of the candidate's DTD, in the form understood by
+     * {@link CompiledSchema#usesDtdIdentifiers()}.
+     */
+    private void recordDtdUse( Properties p )
+    {
+        List< XdmNode > docs = new ArrayList< XdmNode >( libraries );
+        docs.add( this.included );
 
+        boolean uses = false;
+        for( int i = 0; i < docs.size() && !uses; i++ )
+        {
+            // attributes are not descendants, so they are looked for from each element
+            XdmSequenceIterator< XdmNode > iter = docs.get( i ).axisIterator( Axis.DESCENDANT );
+            while( iter.hasNext() && !uses )
+            {
+                XdmNode node = iter.next();
+                if( node.getNodeKind() == XdmNodeKind.TEXT )
+                {
+                    uses = callsDtdFunction( node.getStringValue() );
+                }
+                else if( node.getNodeKind() == XdmNodeKind.ELEMENT )
+                {
+                    XdmSequenceIterator< XdmNode > attIter = node.axisIterator( Axis.ATTRIBUTE );
+                    while( attIter.hasNext() && !uses )
+                    {
+                        uses = callsDtdFunction( attIter.next().getStringValue() );
+                    }
+                }
+            }
         }
+        p.setProperty( CompiledSchema.PROPERTY_USES_DTD_IDENTIFIERS, String.valueOf( uses ) );
+    }
 
-        return vr;
 
+    private static boolean callsDtdFunction( String s )
+    {
+        return s.indexOf( "governing-dtd-public-identifier" ) != -1
+                || s.indexOf( "governing-dtd-system-identifier" ) != -1;
     }
 
 
-    private byte[] applyXsltSchema( InputStream candidateStream, byte[] interim )
+    /**
+     * @return a digest identifying the content of a schema document together with that of
+     *         every document it includes
+     */
+    private static String fingerprint( String schemaDigest, Map< String, String > dependencies )
+    {
+        MessageDigest md = Utils.newMessageDigest();
+        md.update( schemaDigest.getBytes( StandardCharsets.UTF_8 ) );
+
+        // sorted, so the fingerprint does not depend on the order of discovery
+        Iterator< Map.Entry< String, String >> iter = new TreeMap< String, String >(
+                dependencies ).entrySet().iterator();
+        while( iter.hasNext() )
+        {
+            Map.Entry< String, String > dep = iter.next();
+            md.update( ( "\n" + dep.getKey() + "=" + dep.getValue() )
+                    .getBytes( StandardCharsets.UTF_8 ) );
+        }
+
+        return Utils.toHex( md.digest() );
+    }
+
+
+    /**
+     * @return the key under which the executable for the schema with the passed fingerprint is
+     *         cached, given the options of this schema's session. Each phase, and each set of
+     *         phases validated together, has its own executable containing only the patterns
+     *         needed, as does each number of groups the patterns may be divided into.
+     */
+    private String cacheKey( String fingerprint, List< String > phases )
+    {
+        String phase = session.getPhase();
+
+        if( phases != null )
+        {
+            TreeSet< String > sorted = new TreeSet< String >();
+            Iterator< String > iter = phases.iterator();
+            while( iter.hasNext() )
+            {
+                String p = iter.next();
+                sorted.add( p == null ? "" : p.trim() );
+            }
+            phase = String.join( "+", sorted );
+        }
+
+        return fingerprint + "|" + phase + "|" + session.getReportFormat()
+                + ( compactReport( phases ) ? "|compact" : "" )
+                + ( session.usesNativeEngine() ? "|native" : "" )
+                + ( session.getPatternThreads() > 1 ? "|threads" + session.getPatternThreads()
+                        : "" );
+    }
+
+
+    /**
+     * @return whether the executable is to leave out the fired-rule and active-pattern
+     *         elements, which reports other than full SVRL do not include. Executables for
+     *         several phases keep them, as the reports are split by pattern.
+     */
+    private boolean compactReport( List< String > phases )
+    {
+        return phases == null && session.getReportFormat() != ValidationReport.REPORT_SVRL_FULL;
+    }
+
+
+    /**
+     * Compiles this schema, for the native engine if the session asks for it and the schema
+     * allows, and otherwise to XSLT, reusing the XSLT generated for it by an earlier run if the
+     * disk cache holds it.
+     * 
+     * @param phases
+     *            the phases to be validated together, or null if only the session's phase is
+     */
+    private CompiledSchema compile( String key, List< String > phases ) throws IOException,
+            SAXException, SaxonApiException
+    {
+        boolean compact = compactReport( phases );
+        long start = System.currentTimeMillis();
+
+        if( session.usesNativeEngine() )
+        {
+            try
+            {
+                NativeSchema ns = new NativeSchema( expandedSchema( phases ), compilePhase,
+                        compact );
+                long elapsed = System.currentTimeMillis() - start;
+                logger.debug( "Compiled schema natively in (ms): " + elapsed );
+                return new CompiledSchema( key, ns, elapsed, metadata );
+            }
+            catch( UnsupportedOperationException e )
+            {
+                logger.info( "Schema cannot be evaluated natively, compiling to XSLT: "
+                        + e.getMessage() );
+            }
+        }
+
+        XsltCompiler comp = Runtime.getSaxonProcessor().newXsltCompiler();
+        SchemaDiskCache diskCache = Runtime.getDiskCache();
+
+        if( diskCache != null )
+        {
+            Properties meta = diskCache.getMetadata( key );
+            List< byte[] > cached = meta == null ? null : getCachedXslt( diskCache, key, meta );
+            if( cached != null )
+            {
+                try
+                {
+                    List< XsltExecutable > executables = new ArrayList< XsltExecutable >();
+                    for( int i = 0; i < cached.size(); i++ )
+                    {
+                        executables.add( comp.compile( new StreamSource( new ByteArrayInputStream(
+                                cached.get( i ) ) ) ) );
+                    }
+                    long elapsed = System.currentTimeMillis() - start;
+                    logger.debug( "Compiled schema from disk cache in (ms): " + elapsed );
+                    return new CompiledSchema( key, executables, elapsed, meta );
+                }
+                catch( SaxonApiException e )
+                {
+                    logger.warn( "Discarding unusable cached XSLT: " + e.getMessage() );
+                    diskCache.removeXslt( key );
+                    for( int i = 0; cached.size() > 1 && i < cached.size(); i++ )
+                    {
+                        diskCache.removeXslt( groupKey( key, i ) );
+                    }
+                }
+            }
+        }
+
+        if( !isIncludedFor( phases ) )
+        {
+            include( true, phases );
+        }
+
+        // the patterns are divided into groups, each compiled to XSLT of its own, which are
+        // applied to candidates concurrently
+        if( session.getPatternThreads() > 1 )
+        {
+            if( !libraries.isEmpty() )
+            {
+                // the patterns of the libraries are grouped with the schema's own
+                include( false, phases );
+            }
+
+            List< Set< Integer >> groups = patternGroups( session.getPatternThreads() );
+            if( groups.size() > 1 )
+            {
+                return compileGroups( key, groups, compact, comp, start );
+            }
+        }
+
+        XdmNode xslt;
+        XsltExecutable xx;
+        try
+        {
+            xslt = generateXslt( compact );
+            Iterator< LibraryPackage > pkgIter = packages.iterator();
+            while( pkgIter.hasNext() )
+            {
+                comp.importPackage( pkgIter.next().getXsltPackage() );
+            }
+            xx = comp.compile( xslt.asSource() );
+        }
+        catch( SaxonApiException e )
+        {
+            if( libraries.isEmpty() )
+            {
+                throw e;
+            }
+
+            // such as a library referring to the variables of the including schema
+            logger.info( "Cannot compile libraries as packages, including them: "
+                    + e.getMessage() );
+            include( false, phases );
+            xslt = generateXslt( compact );
+            xx = comp.compile( xslt.asSource() );
+        }
+
+        // XSLT using packages cannot be compiled without them, so is not kept
+        if( diskCache != null && packages.isEmpty() )
+        {
+            // the only point at which the generated XSLT is serialized
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            Runtime.getSaxonProcessor().newSerializer( baos ).serializeNode( xslt );
+            diskCache.putMetadata( key, metadata );
+            diskCache.putXslt( key, baos.toByteArray() );
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        logger.debug( "Compiled schema in (ms): " + elapsed );
+        return logAccelerated( new CompiledSchema( key, xx, elapsed, metadata ) );
+    }
+
+
+    /**
+     * Compiles each of the passed groups of the included schema's patterns to XSLT of its own.
+     */
+    private CompiledSchema compileGroups( String key, List< Set< Integer >> groups,
+            boolean compact, XsltCompiler comp, long start ) throws SaxonApiException
+    {
+        SchemaDiskCache diskCache = Runtime.getDiskCache();
+        List< XsltExecutable > executables = new ArrayList< XsltExecutable >();
+        List< byte[] > serialized = new ArrayList< byte[] >();
+        for( int i = 0; i < groups.size(); i++ )
+        {
+            BuildingContentHandler result = Runtime.getSaxonProcessor().newDocumentBuilder()
+                    .newBuildingContentHandler();
+            KeyAccelerationFilter keyFilter = generateXslt( patternGroup( groups, i ),
+                    compilePhase, new LetHoistingFilter(), result, compact );
+            keyFilter.recordAccelerated( metadata );
+            XdmNode xslt = result.getDocumentNode();
+            executables.add( comp.compile( xslt.asSource() ) );
+
+            if( diskCache != null )
+            {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                Runtime.getSaxonProcessor().newSerializer( baos ).serializeNode( xslt );
+                serialized.add( baos.toByteArray() );
+            }
+        }
+        metadata.setProperty( CompiledSchema.PROPERTY_PATTERN_GROUPS, String.valueOf( groups
+                .size() ) );
+
+        if( diskCache != null )
+        {
+            diskCache.putMetadata( key, metadata );
+            for( int i = 0; i < serialized.size(); i++ )
+            {
+                diskCache.putXslt( groupKey( key, i ), serialized.get( i ) );
+            }
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        logger.debug( "Compiled schema in " + groups.size() + " pattern groups in (ms): "
+                + elapsed );
+        return logAccelerated( new CompiledSchema( key, executables, elapsed, metadata ) );
+    }
+
+
+    private static CompiledSchema logAccelerated( CompiledSchema cs )
+    {
+        Iterator< String > iter = cs.getAccelerated().iterator();
+        while( iter.hasNext() )
+        {
+            logger.info( "Lookup accelerated with key: " + iter.next() );
+        }
+        return cs;
+    }
+
+
+    /**
+     * @return the XSLT which the disk cache holds for the passed key and metadata, a document
+     *         for each group of patterns if the schema was compiled in groups, or null if any
+     *         of it is missing
+     */
+    private static List< byte[] > getCachedXslt( SchemaDiskCache diskCache, String key,
+            Properties meta )
+    {
+        String groups = meta.getProperty( CompiledSchema.PROPERTY_PATTERN_GROUPS );
+        int count = groups == null ? 1 : Integer.parseInt( groups );
+        List< byte[] > list = new ArrayList< byte[] >();
+        for( int i = 0; i < count; i++ )
+        {
+            byte[] xslt = diskCache.getXslt( groups == null ? key : groupKey( key, i ) );
+            if( xslt == null )
+            {
+                return null;
+            }
+            list.add( xslt );
+        }
+        return list;
+    }
+
+
+    /**
+     * @return the key under which the XSLT of one group of a schema's patterns is kept in the
+     *         disk cache
+     */
+    private static String groupKey( String key, int group )
+    {
+        return key + "|group" + group;
+    }
+
+
+    /**
+     * @return the indexes, among the included schema's patterns, of those active in the phase
+     *         compiled, divided in schema order into at most the passed number of groups
+     */
+    private List< Set< Integer >> patternGroups( int groupCount )
+    {
+        List< XdmNode > patterns = patterns();
+        Set< String > active = activePatterns();
+        List< Integer > indexes = new ArrayList< Integer >();
+        for( int i = 0; i < patterns.size(); i++ )
+        {
+            XdmNode pattern = patterns.get( i );
+            String id = pattern.getAttributeValue( new QName( "id" ) );
+            if( !"true".equals( pattern.getAttributeValue( new QName( "abstract" ) ) )
+                    && ( active == null || id != null && active.contains( id ) ) )
+            {
+                indexes.add( i );
+            }
+        }
+
+        List< Set< Integer >> groups = new ArrayList< Set< Integer >>();
+        int count = Math.min( groupCount, indexes.size() );
+        for( int i = 0; i < count; i++ )
+        {
+            groups.add( new LinkedHashSet< Integer >( indexes.subList( i * indexes.size()
+                    / count, ( i + 1 ) * indexes.size() / count ) ) );
+        }
+        return groups;
+    }
+
+
+    /**
+     * @return the ids of the patterns active in the phase compiled, or null if every pattern
+     *         is
+     */
+    private Set< String > activePatterns()
+    {
+        XdmNode schema = firstChildElement( this.included );
+        String phase = compilePhase;
+        if( phase == null || phase.trim().length() == 0 )
+        {
+            phase = schema.getAttributeValue( new QName( "defaultPhase" ) );
+        }
+        if( phase == null || phase.trim().equals( PhaseFilter.ALL_PHASES ) )
+        {
+            return null;
+        }
+
+        Set< String > active = new HashSet< String >();
+        XdmSequenceIterator< XdmNode > iter = schema.axisIterator( Axis.CHILD, new QName(
+                Utils.SCHEMATRON_NAME, "phase" ) );
+        while( iter.hasNext() )
+        {
+            XdmNode p = iter.next();
+            if( phase.trim().equals( p.getAttributeValue( new QName( "id" ) ) ) )
+            {
+                XdmSequenceIterator< XdmNode > activeIter = p.axisIterator( Axis.CHILD,
+                        new QName( Utils.SCHEMATRON_NAME, "active" ) );
+                while( activeIter.hasNext() )
+                {
+                    active.add( activeIter.next().getAttributeValue( new QName( "pattern" ) ) );
+                }
+            }
+        }
+        return active;
+    }
+
+
+    /**
+     * @return the patterns of the included schema, in schema order
+     */
+    private List< XdmNode > patterns()
+    {
+        List< XdmNode > list = new ArrayList< XdmNode >();
+        XdmSequenceIterator< XdmNode > iter = firstChildElement( this.included ).axisIterator(
+                Axis.CHILD, new QName( Utils.SCHEMATRON_NAME, "pattern" ) );
+        while( iter.hasNext() )
+        {
+            list.add( iter.next() );
+        }
+        return list;
+    }
+
+
+    /**
+     * @return the included schema with only those of the grouped patterns which are in the
+     *         group at the passed index
+     */
+    private XdmNode patternGroup( List< Set< Integer >> groups, int index )
+            throws SaxonApiException
+    {
+        List< XdmNode > patterns = patterns();
+        Set< Integer > removed = new HashSet< Integer >();
+        for( int i = 0; i < groups.size(); i++ )
+        {
+            if( i != index )
+            {
+                removed.addAll( groups.get( i ) );
+            }
+        }
+
+        // a phase keeps referring to an id which a pattern of the group shares
+        Set< String > removedIds = new HashSet< String >();
+        for( int i = 0; i < patterns.size(); i++ )
+        {
+            String id = patterns.get( i ).getAttributeValue( new QName( "id" ) );
+            if( id != null && removed.contains( i ) )
+            {
+                removedIds.add( id );
+            }
+        }
+        for( int i = 0; i < patterns.size(); i++ )
+        {
+            if( !removed.contains( i ) )
+            {
+                removedIds.remove( patterns.get( i ).getAttributeValue( new QName( "id" ) ) );
+            }
+        }
+
+        BuildingContentHandler handler = Runtime.getSaxonProcessor().newDocumentBuilder()
+                .newBuildingContentHandler();
+        PatternGroupFilter filter = new PatternGroupFilter( removed, removedIds, index == 0 );
+        filter.setContentHandler( handler );
+        Runtime.getSaxonProcessor().writeXdmValue( this.included, new SAXDestination( filter ) );
+        return handler.getDocumentNode();
+    }
+
+
+    /**
+     * Applies the XSLT of each group of the schema's patterns to the candidate, concurrently if
+     * there are several, as the candidate's tree is immutable.
+     * 
+     * @return the SVRL, joined in schema order
+     */
+    private byte[] applyXsltSchema( final XdmNode candidate, CompiledSchema compiled )
             throws SaxonApiException
+    {
+        List< XsltExecutable > executables = compiled.getExecutables();
+        if( executables.size() == 1 )
+        {
+            return applyXsltSchema( candidate, compiled, executables.get( 0 ) );
+        }
+
+        logger.debug( "Applying " + executables.size() + " pattern groups" );
+        List< Callable< byte[] >> tasks = new ArrayList< Callable< byte[] >>();
+        for( int i = 0; i < executables.size(); i++ )
+        {
+            final XsltExecutable executable = executables.get( i );
+            tasks.add( () -> applyXsltSchema( candidate, compiled, executable ) );
+        }
+
+        List< Future< byte[] >> futures;
+        ForkJoinPool pool = new ForkJoinPool( executables.size() );
+        try
+        {
+            futures = pool.invokeAll( tasks );
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        List< byte[] > reports = new ArrayList< byte[] >();
+        for( int i = 0; i < futures.size(); i++ )
+        {
+            try
+            {
+                reports.add( futures.get( i ).get() );
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new SaxonApiException( e );
+            }
+            catch( ExecutionException e )
+            {
+                if( e.getCause() instanceof SaxonApiException )
+                {
+                    throw ( SaxonApiException )e.getCause();
+                }
+                throw new SaxonApiException( e.getCause() );
+            }
+        }
+
+        try
+        {
+            return new SvrlJoiningHandler().join( reports );
+        }
+        catch( SAXException e )
+        {
+            throw new SaxonApiException( e );
+        }
+        catch( IOException e )
+        {
+            throw new SaxonApiException( e );
+        }
+    }
+
+
+    private byte[] applyXsltSchema( XdmNode candidate, CompiledSchema compiled,
+            XsltExecutable executable ) throws SaxonApiException
     {
         logger.debug( "Applying XSLT version of schema to candidate" );
 
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
-        XsltCompiler comp = Runtime.getSaxonProcessor().newXsltCompiler();
-
-        Source ss = new StreamSource( new ByteArrayInputStream( interim ) );
-        XsltExecutable xx = comp.compile( ss );
-        XsltTransformer transformer = xx.load();
+        XsltTransformer transformer = executable.load();
         transformer.setParameter( new QName( "_uuid_" ), new XdmAtomicValue( session.getUuid()
                 .toString() ) );
-        transformer.setSource( new StreamSource( candidateStream, schemaUrl.toExternalForm() ) );
+
+        // values supplied for the schema-level variables, which the skeleton makes parameters
+        Set< String > parameters = compiled.getParameters();
+        Iterator< Map.Entry< String, XdmValue >> iter = session.getSchemaParameters().entrySet()
+                .iterator();
+        while( iter.hasNext() )
+        {
+            Map.Entry< String, XdmValue > param = iter.next();
+            if( parameters.contains( param.getKey() ) )
+            {
+                transformer.setParameter( new QName( param.getKey() ), param.getValue() );
+            }
+            else
+            {
+                logger.warn( "Schema has no schema-level variable named: " + param.getKey() );
+            }
+        }
+        transformer.setSource( candidate.asSource() );
+
+        // as it would have been had the transformer parsed the candidate itself, make the tree
+        // known by its system id, so that document-uri() returns that
+        String systemId = candidate.getUnderlyingNode().getSystemId();
+        if( systemId != null )
+        {
+            try
+            {
+                transformer.getUnderlyingController().getDocumentPool().add(
+                        candidate.getUnderlyingNode().getTreeInfo(), systemId );
+            }
+            catch( XPathException e )
+            {
+                throw new SaxonApiException( e );
+            }
+        }
 
         Serializer ser = Runtime.getSaxonProcessor().newSerializer();
         ser.setOutputStream( baos );
@@ -238,32 +1181,184 @@ public class SchematronSchema
     }
 
 
-    private byte[] compileToXslt( byte[] interim ) throws TransformerException,
-            SaxonApiException
+    /**
+     * Runs the included schema through the meta-stylesheets, having compiled the libraries it
+     * includes as packages, if any.
+     * 
+     * @return the validating XSLT
+     */
+    private XdmNode generateXslt( boolean compact ) throws SaxonApiException
     {
         logger.debug( "Transforming schema to XSLT ..." );
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        this.packages = new ArrayList< LibraryPackage >();
+        for( int i = 0; i < libraries.size(); i++ )
+        {
+            packages.add( getLibraryPackage( libraries.get( i ), compact ) );
+        }
 
-        XsltCompiler comp = Runtime.getSaxonProcessor().newXsltCompiler();
-        comp.setURIResolver( jur );
-        Source ss = jur.resolve( "iso_svrl_for_xslt2.xsl", null );
-        XsltExecutable xx = comp.compile( ss );
-        XsltTransformer transformer = xx.load();
+        BuildingContentHandler result = Runtime.getSaxonProcessor().newDocumentBuilder()
+                .newBuildingContentHandler();
+        ContentHandler handler = result;
+        if( !packages.isEmpty() )
+        {
+            PackageLinkingFilter linkFilter = new PackageLinkingFilter( packages );
+            linkFilter.setContentHandler( result );
+            handler = linkFilter;
+        }
+
+        KeyAccelerationFilter keyFilter = generateXslt( this.included, compilePhase,
+                new LetHoistingFilter(), handler, compact );
+        keyFilter.recordAccelerated( metadata );
+        return result.getDocumentNode();
+    }
 
-        transformer.setSource( new StreamSource( new ByteArrayInputStream( interim ) ) );
 
-        Serializer ser = Runtime.getSaxonProcessor().newSerializer();
-        ser.setOutputStream( baos );
-        transformer.setDestination( ser );
+    /**
+     * @return the package compiled for the passed library, as included by this schema, which
+     *         is shared by every schema including it with the same namespace declarations
+     */
+    private LibraryPackage getLibraryPackage( XdmNode library, final boolean compact )
+            throws SaxonApiException
+    {
+        // a schema of the library's pattern alone, with the declarations of the including
+        // schema that it may use
+        XdmNode pattern = firstChildElement( library );
+        XdmNode schema = firstChildElement( this.included );
+        boolean usesDiagnostics = pattern.select(
+                Steps.descendant().then( Steps.attribute( "diagnostics" ) ) ).exists();
+        StringBuilder sb = new StringBuilder();
+        sb.append( "<schema xmlns='" ).append( Utils.SCHEMATRON_NAME ).append(
+                "' queryBinding='" ).append(
+                schema.getAttributeValue( new QName( "queryBinding" ) ) ).append( "'>" );
+        XdmSequenceIterator< XdmNode > iter = schema.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( child.getNodeKind() == XdmNodeKind.ELEMENT
+                    && child.getNodeName().getNamespaceURI().equals( Utils.SCHEMATRON_NAME )
+                    && ( child.getNodeName().getLocalName().equals( "ns" ) || usesDiagnostics
+                            && child.getNodeName().getLocalName().equals( "diagnostics" ) ) )
+            {
+                sb.append( child.toString() );
+            }
+        }
+        sb.append( pattern.toString() ).append( "</schema>" );
 
-        transformer.transform();
+        final String librarySchema = sb.toString();
+        final String systemId = library.getUnderlyingNode().getSystemId();
+        final String key = Utils.digest( ( systemId + "\n" + librarySchema + "\n"
+                + compact ).getBytes( StandardCharsets.UTF_8 ) );
+
+        return Runtime.getLibraryPackage( key, () -> {
+            long start = System.currentTimeMillis();
+            String name = LibraryPackage.PACKAGE_NAME_PREFIX + key;
+            XdmNode libraryDoc = Runtime.getSaxonProcessor().newDocumentBuilder().build(
+                    new StreamSource( new StringReader( librarySchema ), systemId ) );
 
-        interim = baos.toByteArray();
+            BuildingContentHandler result = Runtime.getSaxonProcessor().newDocumentBuilder()
+                    .newBuildingContentHandler();
+            PackagingFilter packagingFilter = new PackagingFilter( name, LibraryPackage
+                    .modeName( name ) );
+            packagingFilter.setContentHandler( result );
+            // hoisted variables are overridden by the using stylesheet, so need names of
+            // their own
+            generateXslt( libraryDoc, null, new LetHoistingFilter( "_probatron_"
+                    + key.substring( 0, 12 ) + "_let_" ), packagingFilter, compact );
+
+            // failure is reported by the caller, which falls back to including the library
+            XsltCompiler pc = Runtime.getSaxonProcessor().newXsltCompiler();
+            pc.setErrorReporter( error -> logger.debug( error.getMessage() ) );
+            XsltPackage xp = pc.compilePackage( result.getDocumentNode().asSource() );
+            logger.debug( "Compiled library package in (ms): "
+                    + ( System.currentTimeMillis() - start ) + " " + systemId );
+            return new LibraryPackage( name, xp, packagingFilter.getOverrides() );
+        } );
+    }
 
-        // Utils.writeBytesToFile( interim, "interim.xml" );
 
-        return interim;
+    /**
+     * Generates the XSLT for a schema into the passed handler: directly, or, if the schema
+     * uses what the generator does not handle, by running it through the skeleton.
+     * 
+     * @return the filter which accelerated lookups in the XSLT generated
+     */
+    private static KeyAccelerationFilter generateXslt( XdmNode schema, String phase,
+            LetHoistingFilter letFilter, ContentHandler handler, boolean compact )
+            throws SaxonApiException
+    {
+        // Step 3. compile schema to XSLT, optimizing it as it is generated: context-independent
+        // rule-level variables are made global, and lookups are accelerated with keys
+        KeyAccelerationFilter keyFilter = new KeyAccelerationFilter();
+        keyFilter.setContentHandler( handler );
+        letFilter.setContentHandler( keyFilter );
+
+        String unsupported = XsltGenerator.checkSchema( schema );
+        if( unsupported == null )
+        {
+            long start = System.currentTimeMillis();
+            XsltGenerator generator = new XsltGenerator( schema );
+            generator.setPhase( phase );
+            generator.setCompact( compact );
+            try
+            {
+                generator.generate( letFilter );
+            }
+            catch( SAXException e )
+            {
+                throw new SaxonApiException( e );
+            }
+            logger.debug( "Generated XSLT in (ms): " + ( System.currentTimeMillis() - start ) );
+            return keyFilter;
+        }
+        logger.debug( "Generating XSLT with the skeleton, for " + unsupported );
+
+        XsltTransformer skeleton = Runtime.getMetaStylesheet( Runtime.SVRL_META_STYLESHEET )
+                .load();
+
+        // compact reports have no use for fired-rule and active-pattern elements, so they are
+        // not generated
+        if( compact )
+        {
+            logger.debug( "Generating XSLT for a compact report" );
+            skeleton.setParameter( new QName( "generate-fired-rule" ), new XdmAtomicValue(
+                    "false" ) );
+            ActivePatternFilter patternFilter = new ActivePatternFilter();
+            patternFilter.setContentHandler( letFilter );
+            skeleton.setDestination( new SAXDestination( patternFilter ) );
+        }
+        else
+        {
+            skeleton.setDestination( new SAXDestination( letFilter ) );
+        }
+
+        // only the patterns active in the phase are generated
+        if( phase != null && phase.length() != 0 )
+        {
+            logger.debug( "Generating XSLT for phase: " + phase );
+            skeleton.setParameter( new QName( "phase" ), new XdmAtomicValue( phase ) );
+        }
+
+        // abstract patterns were expanded (step 2) as the schema was included
+        skeleton.setSource( schema.asSource() );
+        skeleton.transform();
+
+        return keyFilter;
+    }
+
+
+    private static XdmNode firstChildElement( XdmNode node )
+    {
+        XdmSequenceIterator< XdmNode > iter = node.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( child.getNodeKind() == XdmNodeKind.ELEMENT )
+            {
+                return child;
+            }
+        }
+        return null;
     }
 
 
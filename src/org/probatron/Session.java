@@ -19,29 +19,48 @@
 
 package org.probatron;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
 
 import net.sf.saxon.Controller;
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.om.SequenceIterator;
 
 import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.XMLReaderFactory;
 
 public class Session
 {
     static Logger logger = LogManager.getLogger( Session.class.getName());
 
     private boolean physicalLocators = true;
+    private boolean nativeEngine;
+    private boolean loadExternalDtd = true;
+    private int patternThreads = 1;
+    private LinkedHashMap< String, XdmValue > schemaParameters = new LinkedHashMap< String, XdmValue >();
     private String phase;
     private String schemaSysId;
     private SchematronSchema theSchema;
@@ -52,6 +71,10 @@ public class Session
 
     private ValidationContext validationContext;
 
+    // the session validating on each thread, for evaluations which have no transformer
+    // parameter to identify it
+    private static ThreadLocal< Session > threadSession = new ThreadLocal< Session >();
+
     // Helper
     public static Session sessionFromContext(XPathContext context)
     {
@@ -59,12 +82,31 @@ public class Session
 
         StructuredQName sqn = new StructuredQName("", "", "_uuid_");
 
+        if( t == null || t.getParameter( sqn ) == null )
+        {
+            return threadSession.get();
+        }
+
         String sessionId = t.getParameter(sqn).toString();
         Session sess = org.probatron.Runtime.getSession(sessionId);
 
         return sess;
     }
 
+
+    /**
+     * Makes the passed session the one {@link #sessionFromContext(XPathContext)} returns on
+     * this thread where no transformer identifies one.
+     * 
+     * @return the session previously set, or null if none was
+     */
+    static Session setThreadSession( Session session )
+    {
+        Session previous = threadSession.get();
+        threadSession.set( session );
+        return previous;
+    }
+
     public Session()
     {
         logger.debug( "Session created" );
@@ -75,63 +117,282 @@ public class Session
 
     public ValidationReport doValidation( String candidate ) throws MalformedURLException,
             SAXException, IOException
+    {
+        URL candidateUrl = new URL( candidate );
+        return doValidation( candidate, candidateUrl, true, vc -> parseCandidate( candidateUrl,
+                vc ) );
+    }
+
+
+    /**
+     * Validates the document in the passed file.
+     */
+    public ValidationReport doValidation( Path candidate ) throws SAXException, IOException
+    {
+        URI candidateUri = candidate.toUri();
+        return doValidation( candidateUri.toString(), candidateUri.toURL(), true, vc -> {
+            CandidateSource source = new CandidateSource( candidate );
+            try
+            {
+                return theSchema.parseCandidate( source, vc );
+            }
+            finally
+            {
+                source.close();
+            }
+        } );
+    }
+
+
+    /**
+     * Validates the document of the passed stream, which is left open.
+     * 
+     * @param systemId
+     *            the system identifier of the document, which the <tt>system-id</tt> function
+     *            returns, and against which its relative references are resolved; may be null
+     */
+    public ValidationReport doValidation( InputStream candidate, String systemId )
+            throws SAXException, IOException
+    {
+        return doValidation( systemId, null, true, vc -> theSchema.parseCandidate( candidate,
+                systemId, vc ) );
+    }
+
+
+    /**
+     * Validates the document held in the passed bytes.
+     * 
+     * @param systemId
+     *            as for {@link #doValidation(InputStream, String)}
+     */
+    public ValidationReport doValidation( byte[] candidate, String systemId )
+            throws SAXException, IOException
+    {
+        return doValidation( new ByteArrayInputStream( candidate ), systemId );
+    }
+
+
+    /**
+     * Validates the document of the passed source, which may be a stream, SAX or DOM source, or
+     * a Saxon tree. Its system identifier, if it has one, is the candidate's.
+     */
+    public ValidationReport doValidation( Source candidate ) throws SAXException, IOException
+    {
+        boolean parsed = candidate instanceof StreamSource || candidate instanceof SAXSource
+                || candidate instanceof DOMSource;
+        return doValidation( candidate.getSystemId(), null, parsed, vc -> theSchema
+                .parseCandidate( candidate, vc ) );
+    }
+
+
+    /**
+     * Validates the passed document, which is used as it is, rather than copied. Physical
+     * locators are only reported for it if it was built with line numbering on.
+     */
+    public ValidationReport doValidation( XdmNode candidate ) throws SAXException, IOException
+    {
+        String systemId = candidate.getDocumentURI() == null ? null : candidate
+                .getDocumentURI().toString();
+        return doValidation( systemId, null, false, vc -> candidate );
+    }
+
+
+    /**
+     * Validates a candidate read by the passed reader.
+     * 
+     * @param candidateUrl
+     *            the location of the candidate, or null if it has none
+     * @param parsed
+     *            whether the reader records the identifiers of the candidate's DTD; where it
+     *            does not, they are read from the candidate's prolog if the schema uses them
+     */
+    private ValidationReport doValidation( String systemId, URL candidateUrl, boolean parsed,
+            CandidateReader reader ) throws IOException
     {
         logger.debug( "Session validating ..." );
         ValidationReport vr = null;
+        this.candidateSysId = systemId;
+
+        theSchema = new SchematronSchema( this );
+
+        synchronized( Session.class )
+        {
+            // compile the schema while the candidate is read
+            CompletableFuture< CompiledSchema > compiled = CompletableFuture
+                    .supplyAsync( () -> theSchema.getCompiledSchema( null ) );
+
+            // the candidate is read once: the DTD's identifiers, which some XPath extension
+            // functions return, are recorded in the context as the tree is built
+            ValidationContext vc = new ValidationContext();
+            vc.setVerbatimName( systemId );
+            XdmNode doc = reader.read( vc );
+            this.setValidationContext( vc );
+
+            CompiledSchema cs = join( compiled );
+            if( !parsed && systemId != null && cs.usesDtdIdentifiers() )
+            {
+                try
+                {
+                    new CandidateAnalyzer( vc ).analyze( new URL( systemId ) );
+                }
+                catch( IOException e )
+                {
+                    logger.debug( "Cannot read the candidate's prolog: " + e.getMessage() );
+                }
+            }
+
+            vr = theSchema.validateCandidate( doc, cs );
+
+            if( physicalLocators )
+            {
+                vr.annotateWithLocators( this, doc );
+            }
+
+            if( getReportFormat() == ValidationReport.REPORT_SVRL_MERGED )
+            {
+                vr.mergeSvrlIntoCandidate( this, candidateUrl );
+            }
+
+            return vr;
+        }
+
+    }
+
+
+    /**
+     * Validates the candidate against several phases of the schema at once, parsing and
+     * traversing it only once. The session's own phase is ignored. Phases which declare
+     * different values of the same variable are instead validated one at a time, still
+     * parsing the candidate only once.
+     * 
+     * @param phases
+     *            the ids of the phases; null or the empty string denotes the default phase
+     * @return a validation report for each phase, keyed by phase id in the order passed
+     */
+    public Map< String, ValidationReport > doValidation( String candidate, List< String > phases )
+            throws MalformedURLException, SAXException, IOException
+    {
+        logger.debug( "Session validating phases " + phases + " ..." );
         this.candidateSysId = candidate;
 
         theSchema = new SchematronSchema( this );
 
         synchronized( Session.class )
         {
-            // gets some metadata about the instance to set a context
-            // object used by some XPath extension functions
             URL candidateUrl = new URL( candidate );
-            ValidationContext vc = analyzeCandidate( candidateUrl );
-            vc.setVerbatimName( candidate );
 
+            // compile the schema while the candidate is read
+            CompletableFuture< CompiledSchema > compiled = CompletableFuture
+                    .supplyAsync( () -> theSchema.getCompiledSchema( phases ) );
+
+            ValidationContext vc = new ValidationContext();
+            vc.setVerbatimName( candidate );
+            XdmNode doc = parseCandidate( candidateUrl, vc );
             this.setValidationContext( vc );
 
-            vr = theSchema.validateCandidate( candidateUrl );
+            Map< String, ValidationReport > reports;
+            try
+            {
+                CompiledSchema cs = join( compiled );
+                reports = theSchema.validateCandidate( doc, cs ).splitByPhase( phases, cs );
+            }
+            catch( RuntimeException e )
+            {
+                if( !ConflictingPhasesException.causes( e ) )
+                {
+                    throw e;
+                }
+
+                logger.info( "Validating phases one at a time: " + e.getMessage() );
+                reports = new LinkedHashMap< String, ValidationReport >();
+                Iterator< String > iter = phases.iterator();
+                while( iter.hasNext() )
+                {
+                    List< String > phase = Collections.singletonList( iter.next() );
+                    SchematronSchema schema = new SchematronSchema( this );
+                    CompiledSchema cs = schema.getCompiledSchema( phase );
+                    reports.putAll( schema.validateCandidate( doc, cs )
+                            .splitByPhase( phase, cs ) );
+                }
+            }
 
             if( physicalLocators )
             {
-                vr.annotateWithLocators( this, candidateUrl );
+                ValidationReport.annotateWithLocators( this, doc, reports.values() );
             }
 
             if( getReportFormat() == ValidationReport.REPORT_SVRL_MERGED )
             {
-                vr.mergeSvrlIntoCandidate( this, candidateUrl );
+                Iterator< ValidationReport > iter = reports.values().iterator();
+                while( iter.hasNext() )
+                {
+                    iter.next().mergeSvrlIntoCandidate( this, candidateUrl );
+                }
             }
 
-            return vr;
+            return reports;
         }
 
     }
 
 
-    public String getFsContextDir()
+    /**
+     * Reads the candidate into a tree, through a {@link CandidateSource}, which reads local
+     * files directly.
+     */
+    private XdmNode parseCandidate( URL candidateUrl, ValidationContext vc ) throws IOException
     {
-        return fsContextDir;
+        CandidateSource source = new CandidateSource( candidateUrl );
+        try
+        {
+            return theSchema.parseCandidate( source, vc );
+        }
+        finally
+        {
+            source.close();
+        }
     }
 
 
-    public void setFsContextDir( String fsContextDir )
+    /**
+     * Reads a candidate into a tree, recording the identifiers of its DTD in the passed context
+     * if it can.
+     */
+    private interface CandidateReader
     {
-        this.fsContextDir = fsContextDir;
+        XdmNode read( ValidationContext vc ) throws IOException;
+    }
+
+
+    /**
+     * Waits for a schema being compiled in the background, rethrowing whatever it failed with.
+     */
+    private static CompiledSchema join( CompletableFuture< CompiledSchema > compiled )
+    {
+        try
+        {
+            return compiled.join();
+        }
+        catch( CompletionException e )
+        {
+            if( e.getCause() instanceof RuntimeException )
+            {
+                throw ( RuntimeException )e.getCause();
+            }
+            throw e;
+        }
     }
 
 
-    private ValidationContext analyzeCandidate( URL url ) throws SAXException, IOException
+    public String getFsContextDir()
     {
-        ValidationContext vc = new ValidationContext();
-        CandidateAnalyzer ca = new CandidateAnalyzer( vc );
+        return fsContextDir;
+    }
 
-        XMLReader parser = XMLReaderFactory.createXMLReader();
-        parser.setContentHandler( ca );
-        parser.parse( url.toString() );
 
-        return vc;
+    public void setFsContextDir( String fsContextDir )
+    {
+        this.fsContextDir = fsContextDir;
     }
 
 
@@ -174,6 +435,100 @@ public class Session
     }
 
 
+    public boolean usesNativeEngine()
+    {
+        return nativeEngine;
+    }
+
+
+    /**
+     * Sets whether schemas are evaluated natively, over XPath, rather than compiled to XSLT.
+     * Only the native engine dispatches every pattern in a single walk of the candidate; the
+     * XSLT walks it once for each pattern. Schemas the native engine cannot evaluate, such as
+     * those with XSLT keys or functions, rule properties, pattern documents or
+     * <tt>position()</tt> outside a predicate, are compiled to XSLT regardless.
+     */
+    public void setUseNativeEngine( boolean nativeEngine )
+    {
+        this.nativeEngine = nativeEngine;
+        logger.debug( "Setting option (use native engine): " + nativeEngine );
+    }
+
+
+    public boolean isLoadExternalDtd()
+    {
+        return loadExternalDtd;
+    }
+
+
+    /**
+     * Sets whether the external DTD subsets of candidates are read. The default is true; pass
+     * false when no schema depends on attributes defaulted, or entities declared, in the
+     * candidates' DTDs, so that they are parsed without reading them. The governing DTD's
+     * identifiers are reported either way.
+     */
+    public void setLoadExternalDtd( boolean loadExternalDtd )
+    {
+        this.loadExternalDtd = loadExternalDtd;
+        logger.debug( "Setting option (load external DTD): " + loadExternalDtd );
+    }
+
+
+    public int getPatternThreads()
+    {
+        return patternThreads;
+    }
+
+
+    /**
+     * Sets the number of threads across which the patterns of a schema may be divided, each
+     * group being applied to the candidate concurrently: by the native engine, or else as XSLT
+     * compiled for that group alone. The default is 1, which applies every pattern on the
+     * validating thread.
+     */
+    public void setPatternThreads( int patternThreads )
+    {
+        if( patternThreads < 1 )
+        {
+            throw new IllegalArgumentException( "Pattern threads must be at least 1: "
+                    + patternThreads );
+        }
+        this.patternThreads = patternThreads;
+        logger.debug( "Setting option (pattern threads): " + patternThreads );
+    }
+
+
+    /**
+     * @return the values supplied for schema-level variables, keyed by variable name
+     */
+    public Map< String, XdmValue > getSchemaParameters()
+    {
+        return schemaParameters;
+    }
+
+
+    /**
+     * Supplies the value of a schema-level variable (a &lt;let> child of the &lt;schema>) for
+     * the validations of this session, in place of the value the schema gives it. The compiled
+     * schema does not depend on it, so one executable serves every set of values.
+     * 
+     * @param value
+     *            the value, or null to use the schema's own again
+     */
+    public void setSchemaParameter( String name, XdmValue value )
+    {
+        if( value == null )
+        {
+            schemaParameters.remove( name );
+        }
+        else
+        {
+            schemaParameters.put( name, value );
+        }
+        logger.debug( "Setting option (schema parameter): " + name + "=" + value );
+    }
+
+
     public UUID getUuid()
     {
         return uuid;
@@ -217,9 +572,17 @@ public class Session
     }
 
 
+    /**
+     * @return the candidate's location in the file system context, or null if the candidate
+     *         has no system identifier
+     */
     public URI getCandidateAsUri()
     {
         String cand = candidateSysId;
+        if( cand == null )
+        {
+            return null;
+        }
         cand = cand.replaceAll( "file:", "" );
         File candidateFile = new File( getFsContextDir(), cand );
         logger.debug( "Candidate file is " + candidateFile.getAbsolutePath() );
@@ -116,7 +116,12 @@ public class SvrlHarvestHandler implements ContentHandler
             {
                 String prefix = atts.getValue( "prefix" );
                 String ns = atts.getValue( "uri" );
-                this.rpt.nsMap.registerMapping( prefix, ns );
+
+                // reports split by phase share their mappings, and each repeats them
+                if( !ns.equals( this.rpt.nsMap.nsForPrefix( prefix ) ) )
+                {
+                    this.rpt.nsMap.registerMapping( prefix, ns );
+                }
             }
         }
     }
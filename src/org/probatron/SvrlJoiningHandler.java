@@ -0,0 +1,178 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.List;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+import com.megginson.sax.XMLWriter;
+
+/**
+ * Joins the SVRL generated by applying each group of a schema's patterns separately into one
+ * SVRL document, as if the groups had been applied together. The groups are joined in the
+ * order passed, which must be schema order. The document element and whatever precedes the
+ * first pattern's output are taken from the first report; from the others, the
+ * &lt;ns-prefix-in-attribute-values> elements which precede it are left out.
+ * 
+ * @see PatternGroupFilter
+ */
+public class SvrlJoiningHandler extends DefaultHandler
+{
+    private ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private ContentHandler writer = new XMLWriter( new OutputStreamWriter( output ) );
+    private boolean first;
+    private boolean last;
+    private int depth;
+    // the depth of the element being left out, or 0 if there is none
+    private int skipDepth;
+
+    // character data between children of the document element, which goes wherever the
+    // following child does
+    private StringBuilder pending = new StringBuilder();
+
+
+    /**
+     * @return the joined SVRL of the passed reports
+     */
+    public byte[] join( List< byte[] > reports ) throws SAXException, IOException
+    {
+        writer.startDocument();
+        for( int i = 0; i < reports.size(); i++ )
+        {
+            first = i == 0;
+            last = i == reports.size() - 1;
+            pending.setLength( 0 );
+
+            XMLReader parser = XMLReaderFactory.createXMLReader();
+            parser.setContentHandler( this );
+            parser.parse( new InputSource( new ByteArrayInputStream( reports.get( i ) ) ) );
+        }
+        writer.endDocument();
+        return output.toByteArray();
+    }
+
+
+    @Override
+    public void startPrefixMapping( String prefix, String uri ) throws SAXException
+    {
+        // the document element's declarations are those of the first report
+        if( skipDepth == 0 && ( first || depth > 0 ) )
+        {
+            writer.startPrefixMapping( prefix, uri );
+        }
+    }
+
+
+    @Override
+    public void endPrefixMapping( String prefix ) throws SAXException
+    {
+        if( skipDepth == 0 && ( last || depth > 0 ) )
+        {
+            writer.endPrefixMapping( prefix );
+        }
+    }
+
+
+    @Override
+    public void startElement( String uri, String localName, String name, Attributes atts )
+            throws SAXException
+    {
+        depth++;
+
+        if( skipDepth != 0 || depth == 1 && !first )
+        {
+            return;
+        }
+
+        if( depth == 2 && !first && uri.equals( Utils.SVRL_NAME )
+                && localName.equals( "ns-prefix-in-attribute-values" ) )
+        {
+            skipDepth = depth;
+            pending.setLength( 0 );
+            return;
+        }
+
+        if( depth == 2 )
+        {
+            flushPending();
+        }
+        writer.startElement( uri, localName, name, atts );
+    }
+
+
+    @Override
+    public void endElement( String uri, String localName, String name ) throws SAXException
+    {
+        boolean skipped = skipDepth != 0;
+        if( skipDepth == depth )
+        {
+            skipDepth = 0;
+        }
+        depth--;
+
+        if( skipped || depth == 0 && !last )
+        {
+            return;
+        }
+
+        if( depth == 0 )
+        {
+            flushPending();
+        }
+        writer.endElement( uri, localName, name );
+    }
+
+
+    @Override
+    public void characters( char[] ch, int start, int length ) throws SAXException
+    {
+        if( depth == 1 )
+        {
+            pending.append( ch, start, length );
+        }
+        else if( skipDepth == 0 )
+        {
+            writer.characters( ch, start, length );
+        }
+    }
+
+
+    private void flushPending() throws SAXException
+    {
+        if( pending.length() != 0 )
+        {
+            char[] ch = pending.toString().toCharArray();
+            pending.setLength( 0 );
+            writer.characters( ch, 0, ch.length );
+        }
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.megginson.sax.XMLWriter;
+
+/**
+ * Splits the SVRL generated for the union of several phases into one SVRL document per phase.
+ * Everything the SVRL reports after an &lt;active-pattern> element, up to the next, is copied
+ * to the documents of those phases in which that pattern is active; anything before the first
+ * is copied to every document.
+ */
+public class SvrlSplittingHandler extends DefaultHandler
+{
+    private List< String > phases;
+    private List< Set< String >> activePatterns;
+    private List< ByteArrayOutputStream > outputs = new ArrayList< ByteArrayOutputStream >();
+    private List< ContentHandler > writers = new ArrayList< ContentHandler >();
+    private boolean[] routed;
+    private int depth;
+
+    // character data between children of the document element, which goes wherever the
+    // following child does
+    private StringBuilder pending = new StringBuilder();
+
+
+    /**
+     * @param phases
+     *            the ids of the phases
+     * @param activePatterns
+     *            for each phase, the ids of the patterns active in it, or null if all are
+     */
+    public SvrlSplittingHandler( List< String > phases, List< Set< String >> activePatterns )
+    {
+        this.phases = phases;
+        this.activePatterns = activePatterns;
+        this.routed = new boolean[ phases.size() ];
+
+        for( int i = 0; i < phases.size(); i++ )
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            outputs.add( baos );
+            writers.add( new XMLWriter( new OutputStreamWriter( baos ) ) );
+            routed[ i ] = true;
+        }
+    }
+
+
+    /**
+     * @return the SVRL for each phase, in the order the phases were passed
+     */
+    public List< byte[] > getOutputs()
+    {
+        List< byte[] > list = new ArrayList< byte[] >();
+        for( int i = 0; i < outputs.size(); i++ )
+        {
+            list.add( outputs.get( i ).toByteArray() );
+        }
+        return list;
+    }
+
+
+    @Override
+    public void startDocument() throws SAXException
+    {
+        for( int i = 0; i < writers.size(); i++ )
+        {
+            writers.get( i ).startDocument();
+        }
+    }
+
+
+    @Override
+    public void endDocument() throws SAXException
+    {
+        for( int i = 0; i < writers.size(); i++ )
+        {
+            writers.get( i ).endDocument();
+        }
+    }
+
+
+    @Override
+    public void startPrefixMapping( String prefix, String uri ) throws SAXException
+    {
+        for( int i = 0; i < writers.size(); i++ )
+        {
+            if( routed[ i ] )
+            {
+                writers.get( i ).startPrefixMapping( prefix, uri );
+            }
+        }
+    }
+
+
+    @Override
+    public void endPrefixMapping( String prefix ) throws SAXException
+    {
+        for( int i = 0; i < writers.size(); i++ )
+        {
+            if( routed[ i ] )
+            {
+                writers.get( i ).endPrefixMapping( prefix );
+            }
+        }
+    }
+
+
+    @Override
+    public void startElement( String uri, String localName, String name, Attributes atts )
+            throws SAXException
+    {
+        depth++;
+
+        if( depth == 1 )
+        {
+            for( int i = 0; i < writers.size(); i++ )
+            {
+                writers.get( i ).startElement( uri, localName, name, withPhase( atts, phases
+                        .get( i ) ) );
+            }
+            return;
+        }
+
+        if( depth == 2 && uri.equals( Utils.SVRL_NAME ) && localName.equals( "active-pattern" ) )
+        {
+            String id = atts.getValue( "id" );
+            for( int i = 0; i < writers.size(); i++ )
+            {
+                Set< String > active = activePatterns.get( i );
+                routed[ i ] = active == null || ( id != null && active.contains( id ) );
+            }
+        }
+
+        if( depth == 2 )
+        {
+            flushPending();
+        }
+
+        for( int i = 0; i < writers.size(); i++ )
+        {
+            if( routed[ i ] )
+            {
+                writers.get( i ).startElement( uri, localName, name, atts );
+            }
+        }
+    }
+
+
+    @Override
+    public void endElement( String uri, String localName, String name ) throws SAXException
+    {
+        depth--;
+
+        if( depth == 0 )
+        {
+            Arrays.fill( routed, true );
+            flushPending();
+        }
+
+        for( int i = 0; i < writers.size(); i++ )
+        {
+            if( routed[ i ] )
+            {
+                writers.get( i ).endElement( uri, localName, name );
+            }
+        }
+    }
+
+
+    @Override
+    public void characters( char[] ch, int start, int length ) throws SAXException
+    {
+        if( depth == 1 )
+        {
+            pending.append( ch, start, length );
+            return;
+        }
+
+        for( int i = 0; i < writers.size(); i++ )
+        {
+            if( routed[ i ] )
+            {
+                writers.get( i ).characters( ch, start, length );
+            }
+        }
+    }
+
+
+    private void flushPending() throws SAXException
+    {
+        if( pending.length() != 0 )
+        {
+            char[] ch = pending.toString().toCharArray();
+            pending.setLength( 0 );
+            for( int i = 0; i < writers.size(); i++ )
+            {
+                if( routed[ i ] )
+                {
+                    writers.get( i ).characters( ch, 0, ch.length );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return the attributes of the SVRL document element, labelled with the passed phase as
+     *         if it alone had been validated
+     */
+    private static Attributes withPhase( Attributes atts, String phase )
+    {
+        AttributesImpl newAtts = new AttributesImpl( atts );
+        int index = newAtts.getIndex( "phase" );
+        if( index != -1 )
+        {
+            newAtts.removeAttribute( index );
+        }
+
+        if( phase != null && phase.trim().length() != 0
+                && !phase.trim().equals( PhaseFilter.ALL_PHASES ) )
+        {
+            newAtts.addAttribute( "", "phase", "phase", "CDATA", phase.trim() );
+        }
+        return newAtts;
+    }
+
+}
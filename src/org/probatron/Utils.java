@@ -29,6 +29,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import org.apache.logging.log4j.LogManager;
 
 import javax.xml.transform.TransformerFactory;
@@ -40,9 +42,12 @@ public class Utils
     public final static String SCHEMATRON_NAME = "http://purl.oclc.org/dsdl/schematron";
     public static final String SVRL_NAME = "http://purl.oclc.org/dsdl/svrl";
     public static final String PROBATRON_FUNCTION_NAME = "http://www.probatron.org/functions";
+    public static final String PROBATRON_SCHEMA_NAME = "http://www.probatron.org/schema";
     private static final String PROPERTY_TRAX_IMPLEMENTATION = "javax.xml.transform.TransformerFactory";
     private static final String SAXON_TRAX_CLASS = "net.sf.saxon.TransformerFactoryImpl";
     private final static int READ_BUFFER_SIZE = 32768;
+    private final static String DIGEST_ALGORITHM = "SHA-256";
+    private final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
     final public static int CLOSE_NONE = 0x0000;
     final public static int CLOSE_IN = 0x0001;
     final public static int CLOSE_OUT = 0x0010;
@@ -242,6 +247,48 @@ public class Utils
     }
 
 
+    /**
+     * Computes a message digest of the passed bytes.
+     * 
+     * @param ba
+     *            the bytes to be digested
+     * @return the SHA-256 digest of <tt>ba</tt>, as a string of hexadecimal digits
+     */
+    public static String digest( byte[] ba )
+    {
+        MessageDigest md = newMessageDigest();
+        return toHex( md.digest( ba ) );
+    }
+
+
+    /**
+     * @return a new, SHA-256, message digest
+     */
+    public static MessageDigest newMessageDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance( DIGEST_ALGORITHM );
+        }
+        catch( NoSuchAlgorithmException e )
+        {
+            throw new RuntimeException( "No " + DIGEST_ALGORITHM + " implementation available", e );
+        }
+    }
+
+
+    public static String toHex( byte[] ba )
+    {
+        char[] ca = new char[ ba.length * 2 ];
+        for( int i = 0; i < ba.length; i++ )
+        {
+            ca[ i * 2 ] = HEX_DIGITS[ ( ba[ i ] >> 4 ) & 0x0f ];
+            ca[ i * 2 + 1 ] = HEX_DIGITS[ ba[ i ] & 0x0f ];
+        }
+        return new String( ca );
+    }
+
+
     static String trimAttributePart( String xpath )
     {
         String ret = null;
@@ -22,9 +22,20 @@ package org.probatron;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.saxon.s9api.XdmNode;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -81,29 +92,156 @@ public class ValidationReport
     }
 
 
-    public void annotateWithLocators( Session session, URL candidateUrl )
+    /**
+     * Splits this report, made by validating the union of several phases, into one report per
+     * phase. The reports share the location mappings of this one.
+     * 
+     * @param compiled
+     *            the schema which made this report
+     * @return a report for each phase, in the order the phases are passed
+     */
+    public Map< String, ValidationReport > splitByPhase( List< String > phases,
+            CompiledSchema compiled )
     {
+        List< Set< String >> activePatterns = new ArrayList< Set< String >>();
+        Iterator< String > iter = phases.iterator();
+        while( iter.hasNext() )
+        {
+            activePatterns.add( compiled.getActivePatterns( iter.next() ) );
+        }
+
+        SvrlSplittingHandler splitter = new SvrlSplittingHandler( phases, activePatterns );
         try
         {
-            // seed a dictionary with the xpaths
             XMLReader parser = XMLReaderFactory.createXMLReader();
-            parser.setContentHandler( this.harvestHandler );
+            parser.setContentHandler( splitter );
             parser.parse( new InputSource( new ByteArrayInputStream( reportBytes ) ) );
+        }
+        catch( Exception e )
+        {
+            logger.fatal( e );
+            throw new RuntimeException( e.getMessage() );
+        }
+
+        LinkedHashMap< String, ValidationReport > reports = new LinkedHashMap< String, ValidationReport >();
+        List< byte[] > outputs = splitter.getOutputs();
+        for( int i = 0; i < phases.size(); i++ )
+        {
+            ValidationReport vr = new ValidationReport( outputs.get( i ) );
+            vr.locMap = this.locMap;
+            vr.nsMap = this.nsMap;
+            reports.put( phases.get( i ), vr );
+        }
+
+        return reports;
+    }
+
+
+    public void annotateWithLocators( Session session, URL candidateUrl )
+    {
+        annotateWithLocators( session, candidateUrl, Collections.singletonList( this ) );
+    }
+
+
+    /**
+     * Annotates this report with the locations of the elements of the candidate it was made
+     * from, as built by {@link SchematronSchema#parseCandidate(URL)}, rather than parsing the
+     * candidate again.
+     */
+    public void annotateWithLocators( Session session, XdmNode candidate )
+    {
+        annotateWithLocators( session, candidate, Collections.singletonList( this ) );
+    }
+
+
+    /**
+     * Annotates several reports on the same candidate, which must share their location
+     * mappings (as those made by {@link #splitByPhase(List, CompiledSchema)} do), parsing the
+     * candidate only once.
+     */
+    public static void annotateWithLocators( Session session, URL candidateUrl,
+            Collection< ValidationReport > reports )
+    {
+        annotateWithLocators( session, candidateUrl, null, reports );
+    }
+
+
+    /**
+     * Annotates several reports on the same candidate, as
+     * {@link #annotateWithLocators(Session, URL, Collection)} does, from the tree already built
+     * for it.
+     */
+    public static void annotateWithLocators( Session session, XdmNode candidate,
+            Collection< ValidationReport > reports )
+    {
+        annotateWithLocators( session, null, candidate, reports );
+    }
+
+
+    private static void annotateWithLocators( Session session, URL candidateUrl,
+            XdmNode candidate, Collection< ValidationReport > reports )
+    {
+        if( reports.isEmpty() )
+        {
+            return;
+        }
+
+        try
+        {
+            // seed a dictionary with the xpaths
+            Iterator< ValidationReport > iter = reports.iterator();
+            while( iter.hasNext() )
+            {
+                ValidationReport vr = iter.next();
+                XMLReader parser = XMLReaderFactory.createXMLReader();
+                parser.setContentHandler( vr.harvestHandler );
+                parser.parse( new InputSource( new ByteArrayInputStream( vr.reportBytes ) ) );
+            }
 
             // enrich the dictionary with the physical locations
-            parser = XMLReaderFactory.createXMLReader(); // reset
-            parser.setContentHandler( ( ContentHandler )this.locationMapHandler );
-            parser.parse( candidateUrl.toString() );
-            logger.debug( "Mapped " + locMap.size() + " XPaths to physical locations" );
-
-            // final prep of SVRL report
-            XMLReader reader = XMLReaderFactory.createXMLReader();
-            EnrichmentFilter filter = new EnrichmentFilter( session, this );
-            filter.setParent( reader );
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            filter.setContentHandler( new XMLWriter( new OutputStreamWriter( baos ) ) );
-            filter.parse( new InputSource( new ByteArrayInputStream( reportBytes ) ) );
-            this.reportBytes = baos.toByteArray();
+            ValidationReport first = reports.iterator().next();
+            if( candidate != null )
+            {
+                first.locationMapHandler.analyze( candidate );
+            }
+            else
+            {
+                XMLReader parser = XMLReaderFactory.createXMLReader(); // reset
+                if( !session.isLoadExternalDtd() )
+                {
+                    parser.setFeature( CatalogEntityResolver.FEATURE_LOAD_EXTERNAL_DTD, false );
+                }
+                parser.setEntityResolver( Runtime.getEntityResolver() );
+                parser.setContentHandler( ( ContentHandler )first.locationMapHandler );
+                CandidateSource source = new CandidateSource( candidateUrl );
+                InputStream is = source.openStream();
+                try
+                {
+                    InputSource input = new InputSource( is );
+                    input.setSystemId( candidateUrl.toString() );
+                    parser.parse( input );
+                }
+                finally
+                {
+                    Utils.streamClose( is );
+                    source.close();
+                }
+            }
+            logger.debug( "Mapped " + first.locMap.size() + " XPaths to physical locations" );
+
+            // final prep of SVRL reports
+            iter = reports.iterator();
+            while( iter.hasNext() )
+            {
+                ValidationReport vr = iter.next();
+                XMLReader reader = XMLReaderFactory.createXMLReader();
+                EnrichmentFilter filter = new EnrichmentFilter( session, vr );
+                filter.setParent( reader );
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                filter.setContentHandler( new XMLWriter( new OutputStreamWriter( baos ) ) );
+                filter.parse( new InputSource( new ByteArrayInputStream( vr.reportBytes ) ) );
+                vr.reportBytes = baos.toByteArray();
+            }
 
         }
         catch( Exception e )
@@ -0,0 +1,1183 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Generates the validating XSLT for an included schema, with its abstract patterns expanded,
+ * directly from the schema's tree, rather than by running the skeleton meta-stylesheet
+ * (<tt>iso_svrl_for_xslt2.xsl</tt>) over it. The stylesheet is written as SAX events, so
+ * that the filters which optimize the skeleton's output can optimize it in the same way, and
+ * behaves as the skeleton's would: the same templates, modes and priorities, and the same SVRL
+ * written the same way, whitespace included.
+ * <p>
+ * What it leaves out does not change the report: comments, the schema and pattern titles
+ * the skeleton writes outside any template, the modes for locations in notations other than
+ * the one used, and the <tt>&lt;xsl:apply-templates/></tt> in each active pattern, which walks
+ * the whole candidate in the default mode without writing anything. Beyond that, only the
+ * variables of the phase validated are declared, and fired-rule and active-pattern elements
+ * can be left out for compact reports. Schemas using what it does not handle (see
+ * {@link #checkSchema(XdmNode)}) are left to the skeleton.
+ */
+public class XsltGenerator
+{
+    static Logger logger = LogManager.getLogger( XsltGenerator.class.getName() );
+
+    private final static String XSLT_NAME = "http://www.w3.org/1999/XSL/Transform";
+    private final static String SCHOLD_NAME = "http://www.ascc.net/xml/schematron";
+    private final static String XML_NAME = "http://www.w3.org/XML/1998/namespace";
+    private final static String ALL_PHASES = "#ALL";
+
+    // the namespaces the skeleton declares on the stylesheet, in scope for every expression
+    private final static String[][] NAMESPACES = { { "xsl", XSLT_NAME },
+            { "svrl", Utils.SVRL_NAME }, { "iso", Utils.SCHEMATRON_NAME },
+            { "schold", SCHOLD_NAME }, { "xhtml", "http://www.w3.org/1999/xhtml" },
+            { "xs", "http://www.w3.org/2001/XMLSchema" },
+            { "xsd", "http://www.w3.org/2001/XMLSchema" }, { "saxon", "http://saxon.sf.net/" } };
+
+    // the children each element outside assertion text may have, by the element's name
+    private final static Map< String, String[] > ALLOWED = new HashMap< String, String[] >();
+    static
+    {
+        ALLOWED.put( "schema", new String[] { "ns", "title", "p", "let", "phase", "pattern",
+                "diagnostics", "properties" } );
+        ALLOWED.put( "phase", new String[] { "let", "active", "p" } );
+        ALLOWED.put( "pattern", new String[] { "title", "p", "let", "rule" } );
+        ALLOWED.put( "rule", new String[] { "title", "p", "let", "assert", "report", "extends" } );
+        ALLOWED.put( "diagnostics", new String[] { "diagnostic" } );
+        ALLOWED.put( "properties", new String[] { "property" } );
+    }
+
+    private final XdmNode schema;
+    private String phase;
+    private boolean compact;
+    private ContentHandler out;
+    private String contextSelect;
+    // diagnostics, properties and rules by id
+    private Map< String, List< XdmNode >> diagnostics = new HashMap< String, List< XdmNode >>();
+    private Map< String, List< XdmNode >> properties = new HashMap< String, List< XdmNode >>();
+    private Map< String, List< XdmNode >> rules = new HashMap< String, List< XdmNode >>();
+    private HashSet< String > activePatterns;
+
+
+    /**
+     * @param schema
+     *            the document node of the schema, which {@link #checkSchema(XdmNode)} accepts
+     */
+    public XsltGenerator( XdmNode schema )
+    {
+        this.schema = firstChildElement( schema );
+    }
+
+
+    /**
+     * Sets the phase to validate, as the skeleton's <tt>phase</tt> parameter does. The
+     * patterns not active in it are left out. By default, it is the schema's default phase.
+     */
+    public void setPhase( String phase )
+    {
+        this.phase = phase;
+    }
+
+
+    /**
+     * Sets whether fired-rule and active-pattern elements are left out of the report.
+     */
+    public void setCompact( boolean compact )
+    {
+        this.compact = compact;
+    }
+
+
+    /**
+     * @return the reason the skeleton must generate the XSLT for the passed schema (its
+     *         document node), or null if this class can
+     */
+    public static String checkSchema( XdmNode doc )
+    {
+        XdmNode schema = firstChildElement( doc );
+        String queryBinding = attribute( schema, "queryBinding" );
+        if( !"xslt2".equals( queryBinding ) && !"xpath2".equals( queryBinding ) )
+        {
+            return "query binding " + queryBinding;
+        }
+
+        Map< String, String > declared = new HashMap< String, String >();
+        for( int i = 0; i < NAMESPACES.length; i++ )
+        {
+            declared.put( NAMESPACES[ i ][ 0 ], NAMESPACES[ i ][ 1 ] );
+        }
+        List< XdmNode > nsList = children( schema, "ns" );
+        for( int i = 0; i < nsList.size(); i++ )
+        {
+            String prefix = attribute( nsList.get( i ), "prefix" );
+            String uri = attribute( nsList.get( i ), "uri" );
+            if( prefix == null || uri == null || declared.containsKey( prefix )
+                    && !declared.get( prefix ).equals( uri ) )
+            {
+                return "namespace declaration for prefix " + prefix;
+            }
+            declared.put( prefix, uri );
+        }
+
+        HashSet< String > abstractRules = new HashSet< String >();
+        HashSet< String > ruleIds = new HashSet< String >();
+        XdmSequenceIterator< XdmNode > iter = schema.axisIterator( Axis.DESCENDANT );
+        while( iter.hasNext() )
+        {
+            XdmNode node = iter.next();
+            if( node.getNodeKind() == XdmNodeKind.ELEMENT && isSchematron( node, "rule" )
+                    && attribute( node, "id" ) != null )
+            {
+                ruleIds.add( attribute( node, "id" ) );
+                if( "true".equals( attribute( node, "abstract" ) ) )
+                {
+                    abstractRules.add( attribute( node, "id" ) );
+                }
+            }
+        }
+
+        return checkElement( schema, abstractRules, ruleIds );
+    }
+
+
+    private static String checkElement( XdmNode element, HashSet< String > abstractRules,
+            HashSet< String > ruleIds )
+    {
+        String localName = element.getNodeName().getLocalName();
+        String[] allowed = ALLOWED.get( localName );
+
+        if( localName.equals( "pattern" )
+                && ( attribute( element, "documents" ) != null || attribute( element,
+                        "document" ) != null ) )
+        {
+            return "pattern applied to other documents";
+        }
+        if( localName.equals( "extends" ) && ruleIds.contains( attribute( element, "rule" ) )
+                && !abstractRules.contains( attribute( element, "rule" ) ) )
+        {
+            return "extension of rule " + attribute( element, "rule" ) + ", which is not abstract";
+        }
+
+        XdmSequenceIterator< XdmNode > iter = element.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( child.getNodeKind() != XdmNodeKind.ELEMENT )
+            {
+                continue;
+            }
+
+            String uri = child.getNodeName().getNamespaceURI();
+            String childName = child.getNodeName().getLocalName();
+            String reason = null;
+
+            if( uri.equals( "" ) || uri.equals( SCHOLD_NAME ) )
+            {
+                reason = "element " + child.getNodeName();
+            }
+            else if( allowed == null )
+            {
+                // text: the elements which take part have no content of their own
+                if( uri.equals( Utils.SCHEMATRON_NAME )
+                        && ( childName.equals( "name" ) || childName.equals( "value-of" ) )
+                        && firstChildElement( child ) != null )
+                {
+                    reason = "content of " + childName;
+                }
+                else if( !localName.equals( "property" ) )
+                {
+                    reason = checkElement( child, abstractRules, ruleIds );
+                }
+            }
+            else if( !uri.equals( Utils.SCHEMATRON_NAME ) )
+            {
+                // XSLT declarations are copied or swallowed; foreign elements are swallowed
+                continue;
+            }
+            else if( childName.equals( "include" ) || childName.equals( "pattern" )
+                    && "true".equals( attribute( child, "abstract" ) ) )
+            {
+                reason = "element " + child.getNodeName() + " in " + localName;
+            }
+            else if( !contains( allowed, childName ) )
+            {
+                // as the skeleton, which only warns of it
+                logger.debug( "Unrecognized element in " + localName + ": " + childName );
+                continue;
+            }
+            else if( ( childName.equals( "ns" ) || childName.equals( "extends" ) )
+                    && firstChildElement( child ) != null )
+            {
+                reason = "content of " + childName;
+            }
+            else
+            {
+                reason = checkElement( child, abstractRules, ruleIds );
+            }
+
+            if( reason != null )
+            {
+                return reason;
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Writes the validating XSLT, as a document, to the passed handler.
+     */
+    public void generate( ContentHandler handler ) throws SAXException
+    {
+        this.out = handler;
+        index();
+
+        out.startDocument();
+        for( int i = 0; i < NAMESPACES.length; i++ )
+        {
+            out.startPrefixMapping( NAMESPACES[ i ][ 0 ], NAMESPACES[ i ][ 1 ] );
+        }
+        List< XdmNode > nsList = children( schema, "ns" );
+        for( int i = 0; i < nsList.size(); i++ )
+        {
+            out.startPrefixMapping( attribute( nsList.get( i ), "prefix" ), attribute( nsList
+                    .get( i ), "uri" ) );
+        }
+
+        startXsl( "stylesheet", "version", "2.0" );
+
+        emptyXsl( "param", "name", "archiveDirParameter" );
+        emptyXsl( "param", "name", "archiveNameParameter" );
+        emptyXsl( "param", "name", "fileNameParameter" );
+        emptyXsl( "param", "name", "fileDirParameter" );
+        startXsl( "variable", "name", "document-uri" );
+        emptyXsl( "value-of", "select", "document-uri(/)" );
+        endXsl( "variable" );
+        emptyXsl( "output", "method", "xml", "omit-xml-declaration", "no", "standalone", "yes",
+                "indent", "yes" );
+
+        writeDeclarations();
+        writeDefaultRules();
+        writeRootTemplate();
+
+        int position = 0;
+        XdmSequenceIterator< XdmNode > iter = schema.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( child.getNodeKind() != XdmNodeKind.ELEMENT )
+            {
+                continue;
+            }
+            position++;
+
+            if( isSchematron( child, "let" ) )
+            {
+                emptyXsl( "param", "name", attribute( child, "name" ), "select", value( child,
+                        "value" ) );
+            }
+            else if( isSchematron( child, "pattern" ) && isActive( child ) )
+            {
+                writePattern( child, "M" + ( position - 1 ) );
+            }
+        }
+        writePhaseVariables();
+
+        endXsl( "stylesheet" );
+
+        for( int i = nsList.size() - 1; i >= 0; i-- )
+        {
+            out.endPrefixMapping( attribute( nsList.get( i ), "prefix" ) );
+        }
+        for( int i = NAMESPACES.length - 1; i >= 0; i-- )
+        {
+            out.endPrefixMapping( NAMESPACES[ i ][ 0 ] );
+        }
+        out.endDocument();
+    }
+
+
+    /**
+     * Resolves the phase and indexes what assertions and rules refer to by id.
+     */
+    private void index()
+    {
+        if( phase == null || phase.length() == 0 )
+        {
+            phase = attribute( schema, "defaultPhase" ) == null ? ALL_PHASES : attribute(
+                    schema, "defaultPhase" );
+        }
+
+        if( !phase.equals( ALL_PHASES ) )
+        {
+            activePatterns = new HashSet< String >();
+            boolean found = false;
+            List< XdmNode > phases = children( schema, "phase" );
+            for( int i = 0; i < phases.size(); i++ )
+            {
+                if( phase.equals( attribute( phases.get( i ), "id" ) ) )
+                {
+                    found = true;
+                    List< XdmNode > actives = children( phases.get( i ), "active" );
+                    for( int j = 0; j < actives.size(); j++ )
+                    {
+                        activePatterns.add( attribute( actives.get( j ), "pattern" ) );
+                    }
+                }
+            }
+            if( !found )
+            {
+                logger.warn( "Phase Error: no phase has been defined with name " + phase );
+            }
+        }
+
+        // as the skeleton, which visits attributes if any rule could match one, and only
+        // elements if any rule could match other kinds of node
+        boolean visitAttributes = false;
+        boolean onlyChildElements = false;
+
+        XdmSequenceIterator< XdmNode > iter = schema.axisIterator( Axis.DESCENDANT );
+        while( iter.hasNext() )
+        {
+            XdmNode node = iter.next();
+            if( node.getNodeKind() != XdmNodeKind.ELEMENT )
+            {
+                continue;
+            }
+
+            if( isSchematron( node, "diagnostic" ) )
+            {
+                put( diagnostics, attribute( node, "id" ), node );
+            }
+            else if( isSchematron( node, "property" ) )
+            {
+                put( properties, attribute( node, "id" ), node );
+            }
+            else if( isSchematron( node, "rule" ) )
+            {
+                put( rules, attribute( node, "id" ), node );
+                String context = value( node, "context" );
+                visitAttributes |= context.indexOf( '@' ) != -1
+                        || context.indexOf( "attribute" ) != -1;
+                onlyChildElements |= context.indexOf( '(' ) != -1;
+            }
+        }
+
+        contextSelect = ( visitAttributes ? "@*|" : "" )
+                + ( onlyChildElements ? "*" : "*|comment()|processing-instruction()" );
+    }
+
+
+    private boolean isActive( XdmNode pattern )
+    {
+        return activePatterns == null || activePatterns.contains( attribute( pattern, "id" ) );
+    }
+
+
+    /**
+     * Writes the schema-level schema imports, keys and functions.
+     */
+    private void writeDeclarations() throws SAXException
+    {
+        List< XdmNode > imports = new ArrayList< XdmNode >();
+        List< XdmNode > declarations = new ArrayList< XdmNode >();
+        XdmSequenceIterator< XdmNode > iter = schema.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( child.getNodeKind() == XdmNodeKind.ELEMENT
+                    && child.getNodeName().getNamespaceURI().equals( XSLT_NAME ) )
+            {
+                String localName = child.getNodeName().getLocalName();
+                if( localName.equals( "import-schema" ) )
+                {
+                    imports.add( child );
+                }
+                else if( localName.equals( "key" ) || localName.equals( "function" ) )
+                {
+                    declarations.add( child );
+                }
+            }
+        }
+        imports.addAll( declarations );
+
+        for( int i = 0; i < imports.size(); i++ )
+        {
+            XdmNode decl = imports.get( i );
+            if( decl.getNodeName().getLocalName().equals( "key" ) )
+            {
+                // only the key's attributes are kept
+                AttributesImpl atts = new AttributesImpl();
+                XdmSequenceIterator< XdmNode > attIter = decl.axisIterator( Axis.ATTRIBUTE );
+                while( attIter.hasNext() )
+                {
+                    XdmNode att = attIter.next();
+                    atts.addAttribute( att.getNodeName().getNamespaceURI(), att.getNodeName()
+                            .getLocalName(), att.getNodeName().toString(), "CDATA", att
+                            .getStringValue() );
+                }
+                out.startElement( XSLT_NAME, "key", "xsl:key", atts );
+                out.endElement( XSLT_NAME, "key", "xsl:key" );
+            }
+            else
+            {
+                copy( decl, null );
+            }
+        }
+    }
+
+
+    /**
+     * Writes the templates which write a node's location.
+     */
+    private void writeDefaultRules() throws SAXException
+    {
+        startXsl( "template", "match", "*", "mode", "schematron-select-full-path" );
+        emptyXsl( "apply-templates", "select", ".", "mode", "schematron-get-full-path" );
+        endXsl( "template" );
+
+        startXsl( "template", "match", "*", "mode", "schematron-get-full-path" );
+        emptyXsl( "apply-templates", "select", "parent::*", "mode", "schematron-get-full-path" );
+        xslText( "/" );
+        startXsl( "choose" );
+        startXsl( "when", "test", "namespace-uri()=''" );
+        emptyXsl( "value-of", "select", "name()" );
+        endXsl( "when" );
+        startXsl( "otherwise" );
+        xslText( "*:" );
+        emptyXsl( "value-of", "select", "local-name()" );
+        xslText( "[namespace-uri()='" );
+        emptyXsl( "value-of", "select", "namespace-uri()" );
+        xslText( "']" );
+        endXsl( "otherwise" );
+        endXsl( "choose" );
+        emptyXsl( "variable", "name", "preceding", "select",
+                "count(preceding-sibling::*[local-name()=local-name(current())"
+                        + " and namespace-uri() = namespace-uri(current())])" );
+        xslText( "[" );
+        emptyXsl( "value-of", "select", "1+ $preceding" );
+        xslText( "]" );
+        endXsl( "template" );
+
+        startXsl( "template", "match", "@*", "mode", "schematron-get-full-path" );
+        emptyXsl( "apply-templates", "select", "parent::*", "mode", "schematron-get-full-path" );
+        xslText( "/" );
+        startXsl( "choose" );
+        startXsl( "when", "test", "namespace-uri()=''" );
+        text( "@" );
+        emptyXsl( "value-of", "select", "name()" );
+        endXsl( "when" );
+        startXsl( "otherwise" );
+        xslText( "@*[local-name()='" );
+        emptyXsl( "value-of", "select", "local-name()" );
+        xslText( "' and namespace-uri()='" );
+        emptyXsl( "value-of", "select", "namespace-uri()" );
+        xslText( "']" );
+        endXsl( "otherwise" );
+        endXsl( "choose" );
+        endXsl( "template" );
+
+        emptyXsl( "template", "match", "text()", "priority", "-1" );
+    }
+
+
+    private void writeRootTemplate() throws SAXException
+    {
+        startXsl( "template", "match", "/" );
+        startSvrl( "schematron-output", "title", title( schema ), "schemaVersion", value(
+                schema, "schemaVersion" ) );
+
+        if( phase.trim().length() != 0 && !phase.trim().equals( ALL_PHASES ) )
+        {
+            xslAttribute( "phase", phase );
+        }
+
+        startXsl( "comment" );
+        emptyXsl( "value-of", "select", "$archiveDirParameter" );
+        text( " \u00A0 " );
+        emptyXsl( "value-of", "select", "$archiveNameParameter" );
+        text( " \u00A0 " );
+        emptyXsl( "value-of", "select", "$fileNameParameter" );
+        text( "\n        \u00A0 " );
+        emptyXsl( "value-of", "select", "$fileDirParameter" );
+        endXsl( "comment" );
+
+        List< XdmNode > ps = children( schema, "p" );
+        for( int i = 0; i < ps.size(); i++ )
+        {
+            writeText( ps.get( i ) );
+        }
+
+        int position = 0;
+        XdmSequenceIterator< XdmNode > iter = schema.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( child.getNodeKind() != XdmNodeKind.ELEMENT )
+            {
+                continue;
+            }
+            position++;
+
+            if( isSchematron( child, "ns" ) )
+            {
+                emptySvrl( "ns-prefix-in-attribute-values", "uri", value( child, "uri" ),
+                        "prefix", value( child, "prefix" ) );
+            }
+            else if( isSchematron( child, "pattern" ) && isActive( child ) )
+            {
+                writeActivePattern( child );
+                emptyXsl( "apply-templates", "select", "/", "mode", "M" + ( position - 1 ) );
+            }
+        }
+
+        endSvrl( "schematron-output" );
+        endXsl( "template" );
+    }
+
+
+    private void writeActivePattern( XdmNode pattern ) throws SAXException
+    {
+        if( !compact )
+        {
+            startSvrl( "active-pattern" );
+            startXsl( "attribute", "name", "document" );
+            emptyXsl( "value-of", "select", "document-uri(/)" );
+            endXsl( "attribute" );
+            if( value( pattern, "id" ).length() != 0 )
+            {
+                xslAttribute( "id", value( pattern, "id" ) );
+            }
+            if( title( pattern ).length() != 0 )
+            {
+                xslAttribute( "name", title( pattern ) );
+            }
+            writeRichAttributes( pattern );
+        }
+
+        List< XdmNode > ps = children( pattern, "p" );
+        for( int i = 0; i < ps.size(); i++ )
+        {
+            writeText( ps.get( i ) );
+        }
+
+        if( !compact )
+        {
+            endSvrl( "active-pattern" );
+        }
+    }
+
+
+    /**
+     * Writes the global variables and templates for a pattern in the passed mode.
+     */
+    private void writePattern( XdmNode pattern, String mode ) throws SAXException
+    {
+        XdmSequenceIterator< XdmNode > iter = pattern.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( isSchematron( child, "let" ) )
+            {
+                writeVariable( child );
+            }
+            else if( isSchematron( child, "rule" ) && !"true".equals( attribute( child,
+                    "abstract" ) ) )
+            {
+                writeRule( child, mode );
+            }
+        }
+
+        emptyXsl( "template", "match", "text()", "priority", "-1", "mode", mode );
+        startXsl( "template", "match", "@*|node()", "priority", "-2", "mode", mode );
+        emptyXsl( "apply-templates", "select", contextSelect, "mode", mode );
+        endXsl( "template" );
+    }
+
+
+    /**
+     * Writes the variables of the phase validated or, if all are, of every phase.
+     */
+    private void writePhaseVariables() throws SAXException
+    {
+        HashSet< String > names = new HashSet< String >();
+        List< XdmNode > phases = children( schema, "phase" );
+        for( int i = 0; i < phases.size(); i++ )
+        {
+            if( activePatterns != null && !phase.equals( attribute( phases.get( i ), "id" ) ) )
+            {
+                continue;
+            }
+
+            List< XdmNode > lets = children( phases.get( i ), "let" );
+            for( int j = 0; j < lets.size(); j++ )
+            {
+                if( names.add( value( lets.get( j ), "name" ) ) )
+                {
+                    writeVariable( lets.get( j ) );
+                }
+            }
+        }
+    }
+
+
+    private void writeVariable( XdmNode let ) throws SAXException
+    {
+        emptyXsl( "variable", "name", attribute( let, "name" ), "select", value( let, "value" ) );
+    }
+
+
+    private void writeRule( XdmNode rule, String mode ) throws SAXException
+    {
+        int following = 0;
+        XdmSequenceIterator< XdmNode > iter = rule.axisIterator( Axis.FOLLOWING_SIBLING );
+        while( iter.hasNext() )
+        {
+            if( iter.next().getNodeKind() == XdmNodeKind.ELEMENT )
+            {
+                following++;
+            }
+        }
+
+        startXsl( "template", "match", value( rule, "context" ), "priority", String
+                .valueOf( 1000 + following ), "mode", mode );
+
+        if( !compact )
+        {
+            List< String > atts = new ArrayList< String >();
+            atts.add( "context" );
+            atts.add( value( rule, "context" ) );
+            if( value( rule, "id" ).length() != 0 )
+            {
+                atts.add( "id" );
+                atts.add( value( rule, "id" ) );
+            }
+            if( value( rule, "role" ).length() != 0 )
+            {
+                atts.add( "role" );
+                atts.add( value( rule, "role" ) );
+            }
+            startSvrl( "fired-rule", atts.toArray( new String[ atts.size() ] ) );
+            writeRichAttributes( rule );
+            writeProperties( value( rule, "properties" ) );
+            endSvrl( "fired-rule" );
+        }
+
+        writeRuleContent( rule );
+
+        emptyXsl( "apply-templates", "select", contextSelect, "mode", mode );
+        endXsl( "template" );
+    }
+
+
+    private void writeRuleContent( XdmNode rule ) throws SAXException
+    {
+        XdmSequenceIterator< XdmNode > iter = rule.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( isSchematron( child, "let" ) )
+            {
+                writeVariable( child );
+            }
+            else if( isSchematron( child, "assert" ) )
+            {
+                startXsl( "choose" );
+                emptyXsl( "when", "test", value( child, "test" ) );
+                startXsl( "otherwise" );
+                writeAssertion( "failed-assert", child );
+                endXsl( "otherwise" );
+                endXsl( "choose" );
+            }
+            else if( isSchematron( child, "report" ) )
+            {
+                startXsl( "if", "test", value( child, "test" ) );
+                writeAssertion( "successful-report", child );
+                endXsl( "if" );
+            }
+            else if( isSchematron( child, "extends" ) && rules.containsKey( attribute( child,
+                    "rule" ) ) )
+            {
+                List< XdmNode > extended = rules.get( attribute( child, "rule" ) );
+                for( int i = 0; i < extended.size(); i++ )
+                {
+                    writeRuleContent( extended.get( i ) );
+                }
+            }
+            else if( isSchematron( child, "title" ) )
+            {
+                writeText( child );
+            }
+        }
+    }
+
+
+    private void writeAssertion( String localName, XdmNode assertion ) throws SAXException
+    {
+        startSvrl( localName );
+        xslAttribute( "test", value( assertion, "test" ).trim().replaceAll( "\\s+", " " ) );
+        if( value( assertion, "id" ).length() != 0 )
+        {
+            xslAttribute( "id", value( assertion, "id" ) );
+        }
+        if( value( assertion, "flag" ).length() != 0 )
+        {
+            xslAttribute( "flag", value( assertion, "flag" ) );
+        }
+        writeRichAttributes( assertion );
+        if( value( assertion, "role" ).length() != 0 )
+        {
+            xslAttribute( "role", value( assertion, "role" ) );
+        }
+        startXsl( "attribute", "name", "location" );
+        emptyXsl( "apply-templates", "select", ".", "mode", "schematron-select-full-path" );
+        endXsl( "attribute" );
+
+        writeText( assertion );
+        writeDiagnostics( value( assertion, "diagnostics" ) );
+        writeProperties( value( assertion, "properties" ) );
+        endSvrl( localName );
+    }
+
+
+    /**
+     * Writes an &lt;svrl:text> with the text of the passed element.
+     */
+    private void writeText( XdmNode element ) throws SAXException
+    {
+        startSvrl( "text" );
+        writeTextContent( element );
+        endSvrl( "text" );
+    }
+
+
+    private void writeTextContent( XdmNode element ) throws SAXException
+    {
+        XdmSequenceIterator< XdmNode > iter = element.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( child.getNodeKind() == XdmNodeKind.TEXT )
+            {
+                text( child.getStringValue() );
+            }
+            else if( isSchematron( child, "name" ) )
+            {
+                String path = attribute( child, "path" );
+                emptyXsl( "text" );
+                emptyXsl( "value-of", "select", path == null ? "name(.)" : "name(" + path + ")" );
+                emptyXsl( "text" );
+            }
+            else if( isSchematron( child, "value-of" ) )
+            {
+                String select = attribute( child, "select" );
+                emptyXsl( "text" );
+                emptyXsl( "value-of", "select", select == null ? "." : select );
+                emptyXsl( "text" );
+            }
+            else if( isSchematron( child, "emph" ) || isSchematron( child, "dir" )
+                    || isSchematron( child, "span" ) )
+            {
+                emptyXsl( "text" );
+                XdmSequenceIterator< XdmNode > textIter = child.axisIterator( Axis.DESCENDANT );
+                while( textIter.hasNext() )
+                {
+                    XdmNode node = textIter.next();
+                    if( node.getNodeKind() == XdmNodeKind.TEXT )
+                    {
+                        text( node.getStringValue() );
+                    }
+                }
+                emptyXsl( "text" );
+            }
+        }
+    }
+
+
+    /**
+     * Writes a reference to each diagnostic in the passed list of ids, as the skeleton splits
+     * it: at each space.
+     */
+    private void writeDiagnostics( String ids ) throws SAXException
+    {
+        String[] split = ids.split( " ", -1 );
+        for( int i = 0; i < split.length; i++ )
+        {
+            String id = split[ i ];
+            if( id.trim().length() == 0 )
+            {
+                continue;
+            }
+            if( !diagnostics.containsKey( id ) )
+            {
+                text( id );
+            }
+            text( " " );
+
+            List< XdmNode > found = diagnostics.get( id );
+            for( int j = 0; found != null && j < found.size(); j++ )
+            {
+                XdmNode diagnostic = found.get( j );
+                startSvrl( "diagnostic-reference", "diagnostic", value( diagnostic, "id" ) );
+                writeRichAttributes( diagnostic );
+                text( "\n" );
+                writeTextContent( diagnostic );
+                endSvrl( "diagnostic-reference" );
+            }
+        }
+    }
+
+
+    /**
+     * Writes each property in the passed list of ids, as the skeleton splits it.
+     */
+    private void writeProperties( String ids ) throws SAXException
+    {
+        String[] split = ids.split( " ", -1 );
+        for( int i = 0; i < split.length; i++ )
+        {
+            String id = split[ i ];
+            if( id.trim().length() == 0 )
+            {
+                continue;
+            }
+            if( !properties.containsKey( id ) )
+            {
+                text( id );
+            }
+            text( " " );
+
+            List< XdmNode > found = properties.get( id );
+            for( int j = 0; found != null && j < found.size(); j++ )
+            {
+                XdmNode property = found.get( j );
+                List< String > atts = new ArrayList< String >();
+                atts.add( "id" );
+                atts.add( value( property, "id" ) );
+                if( attribute( property, "name" ) != null )
+                {
+                    atts.add( "name" );
+                    atts.add( attribute( property, "name" ) );
+                }
+                if( attribute( property, "value" ) != null )
+                {
+                    atts.add( "value" );
+                    atts.add( attribute( property, "value" ) );
+                }
+                startSvrl( "property", atts.toArray( new String[ atts.size() ] ) );
+
+                XdmSequenceIterator< XdmNode > iter = property.axisIterator( Axis.CHILD );
+                while( iter.hasNext() )
+                {
+                    XdmNode child = iter.next();
+                    if( child.getNodeKind() == XdmNodeKind.TEXT )
+                    {
+                        text( child.getStringValue() );
+                    }
+                    else if( child.getNodeKind() == XdmNodeKind.ELEMENT )
+                    {
+                        copy( child, property );
+                    }
+                }
+                endSvrl( "property" );
+            }
+        }
+    }
+
+
+    /**
+     * Writes the xml:space and xml:lang of the passed element, if it has them, as attributes of
+     * the SVRL element being written.
+     */
+    private void writeRichAttributes( XdmNode element ) throws SAXException
+    {
+        String space = element.getAttributeValue( new QName( XML_NAME, "space" ) );
+        String lang = element.getAttributeValue( new QName( XML_NAME, "lang" ) );
+        if( space != null && space.length() != 0 )
+        {
+            xslAttribute( "xml:space", space );
+        }
+        if( lang != null && lang.length() != 0 )
+        {
+            xslAttribute( "xml:lang", lang );
+        }
+    }
+
+
+    /**
+     * Copies an element from the schema, declaring the namespaces in scope for it which are
+     * not in scope for the passed parent, if any.
+     */
+    private void copy( XdmNode element, XdmNode parent ) throws SAXException
+    {
+        List< String > prefixes = new ArrayList< String >();
+        XdmSequenceIterator< XdmNode > nsIter = element.axisIterator( Axis.NAMESPACE );
+        while( nsIter.hasNext() )
+        {
+            XdmNode ns = nsIter.next();
+            String prefix = ns.getNodeName() == null ? "" : ns.getNodeName().getLocalName();
+            if( prefix.equals( "xml" ) )
+            {
+                continue;
+            }
+            if( parent == null || !ns.getStringValue().equals( namespaceOf( parent, prefix ) ) )
+            {
+                out.startPrefixMapping( prefix, ns.getStringValue() );
+                prefixes.add( prefix );
+            }
+        }
+
+        AttributesImpl atts = new AttributesImpl();
+        XdmSequenceIterator< XdmNode > attIter = element.axisIterator( Axis.ATTRIBUTE );
+        while( attIter.hasNext() )
+        {
+            XdmNode att = attIter.next();
+            atts.addAttribute( att.getNodeName().getNamespaceURI(), att.getNodeName()
+                    .getLocalName(), att.getNodeName().toString(), "CDATA", att
+                    .getStringValue() );
+        }
+
+        QName name = element.getNodeName();
+        out.startElement( name.getNamespaceURI(), name.getLocalName(), name.toString(), atts );
+        XdmSequenceIterator< XdmNode > iter = element.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( child.getNodeKind() == XdmNodeKind.ELEMENT )
+            {
+                copy( child, element );
+            }
+            else if( child.getNodeKind() == XdmNodeKind.TEXT )
+            {
+                text( child.getStringValue() );
+            }
+        }
+        out.endElement( name.getNamespaceURI(), name.getLocalName(), name.toString() );
+
+        for( int i = prefixes.size() - 1; i >= 0; i-- )
+        {
+            out.endPrefixMapping( prefixes.get( i ) );
+        }
+    }
+
+
+    private static String namespaceOf( XdmNode element, String prefix )
+    {
+        XdmSequenceIterator< XdmNode > iter = element.axisIterator( Axis.NAMESPACE );
+        while( iter.hasNext() )
+        {
+            XdmNode ns = iter.next();
+            String nsPrefix = ns.getNodeName() == null ? "" : ns.getNodeName().getLocalName();
+            if( nsPrefix.equals( prefix ) )
+            {
+                return ns.getStringValue();
+            }
+        }
+        return null;
+    }
+
+
+    private void startXsl( String localName, String... atts ) throws SAXException
+    {
+        out.startElement( XSLT_NAME, localName, "xsl:" + localName, attributes( atts ) );
+    }
+
+
+    private void endXsl( String localName ) throws SAXException
+    {
+        out.endElement( XSLT_NAME, localName, "xsl:" + localName );
+    }
+
+
+    private void emptyXsl( String localName, String... atts ) throws SAXException
+    {
+        startXsl( localName, atts );
+        endXsl( localName );
+    }
+
+
+    private void startSvrl( String localName, String... atts ) throws SAXException
+    {
+        out.startElement( Utils.SVRL_NAME, localName, "svrl:" + localName, attributes( atts ) );
+    }
+
+
+    private void endSvrl( String localName ) throws SAXException
+    {
+        out.endElement( Utils.SVRL_NAME, localName, "svrl:" + localName );
+    }
+
+
+    private void emptySvrl( String localName, String... atts ) throws SAXException
+    {
+        startSvrl( localName, atts );
+        endSvrl( localName );
+    }
+
+
+    private void xslAttribute( String name, String value ) throws SAXException
+    {
+        startXsl( "attribute", "name", name );
+        text( value );
+        endXsl( "attribute" );
+    }
+
+
+    private void xslText( String text ) throws SAXException
+    {
+        startXsl( "text" );
+        text( text );
+        endXsl( "text" );
+    }
+
+
+    private void text( String text ) throws SAXException
+    {
+        char[] ch = text.toCharArray();
+        out.characters( ch, 0, ch.length );
+    }
+
+
+    private static AttributesImpl attributes( String... atts )
+    {
+        AttributesImpl result = new AttributesImpl();
+        for( int i = 0; i < atts.length; i += 2 )
+        {
+            result.addAttribute( "", atts[ i ], atts[ i ], "CDATA", atts[ i + 1 ] );
+        }
+        return result;
+    }
+
+
+    /**
+     * @return the text of an element's last title or, if it has none, its id, as the skeleton
+     *         names schemas and patterns
+     */
+    private static String title( XdmNode element )
+    {
+        List< XdmNode > titles = children( element, "title" );
+        return titles.isEmpty() ? value( element, "id" ) : titles.get( titles.size() - 1 )
+                .getStringValue();
+    }
+
+
+    private static boolean isSchematron( XdmNode node, String localName )
+    {
+        return node.getNodeKind() == XdmNodeKind.ELEMENT
+                && node.getNodeName().getNamespaceURI().equals( Utils.SCHEMATRON_NAME )
+                && node.getNodeName().getLocalName().equals( localName );
+    }
+
+
+    private static List< XdmNode > children( XdmNode element, String localName )
+    {
+        List< XdmNode > result = new ArrayList< XdmNode >();
+        XdmSequenceIterator< XdmNode > iter = element.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( isSchematron( child, localName ) )
+            {
+                result.add( child );
+            }
+        }
+        return result;
+    }
+
+
+    private static XdmNode firstChildElement( XdmNode node )
+    {
+        XdmSequenceIterator< XdmNode > iter = node.axisIterator( Axis.CHILD );
+        while( iter.hasNext() )
+        {
+            XdmNode child = iter.next();
+            if( child.getNodeKind() == XdmNodeKind.ELEMENT )
+            {
+                return child;
+            }
+        }
+        return null;
+    }
+
+
+    private static String attribute( XdmNode element, String name )
+    {
+        return element.getAttributeValue( new QName( name ) );
+    }
+
+
+    /**
+     * @return the value of the named attribute, or the empty string if there is none
+     */
+    private static String value( XdmNode element, String name )
+    {
+        String value = element.getAttributeValue( new QName( name ) );
+        return value == null ? "" : value;
+    }
+
+
+    private static boolean contains( String[] array, String s )
+    {
+        for( int i = 0; i < array.length; i++ )
+        {
+            if( array[ i ].equals( s ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private static void put( Map< String, List< XdmNode >> map, String id, XdmNode node )
+    {
+        if( id == null )
+        {
+            return;
+        }
+        List< XdmNode > list = map.get( id );
+        if( list == null )
+        {
+            list = new ArrayList< XdmNode >();
+            map.put( id, list );
+        }
+        list.add( node );
+    }
+
+}
@@ -24,7 +24,6 @@ import java.net.URI;
 
 import javax.xml.transform.Transformer;
 
-import net.sf.saxon.Controller;
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.lib.*;
 import net.sf.saxon.om.Sequence;
@@ -91,12 +90,7 @@ public class FileExists extends ExtensionFunctionDefinition
                 throws XPathException
         {
             // Get the Session
-            Controller t = context.getController();
-
-            StructuredQName sqn = new StructuredQName( "", "", "_uuid_");
-
-            String sessionId = t.getParameter( sqn).toString();
-            Session session = org.probatron.Runtime.getSession( sessionId );
+            Session session = Session.sessionFromContext( context );
 
             boolean ret = false;
 
@@ -106,9 +100,11 @@ public class FileExists extends ExtensionFunctionDefinition
 
                 String fileNameToTest  = arguments[0].toString();
 
-                URI baseUri = session.getCandidateAsUri().normalize();
-                File candidateFile = new File( baseUri );
-                File toTest = new File( candidateFile.getParentFile(), fileNameToTest );
+                // a candidate with no system identifier is taken to be in the context directory
+                URI baseUri = session.getCandidateAsUri();
+                File dir = baseUri == null ? new File( session.getFsContextDir() ) : new File(
+                        baseUri.normalize() ).getParentFile();
+                File toTest = new File( dir, fileNameToTest );
                 logger.debug( "testing for " + toTest.getAbsolutePath() );
                 ret = toTest.exists();
 
@@ -91,7 +91,8 @@ public class GoverningDtdPublicIdentifier extends ExtensionFunctionDefinition
             Session session = Session.sessionFromContext( context );
             String s = session.getValidationContext().getDtdPublicId();
 
-            return new StringValue( s );
+            // the empty string if the candidate has no DTD, or it is not identified so
+            return new StringValue( s == null ? "" : s );
         }
 
     }
@@ -96,7 +96,8 @@ public class GoverningDtdSystemIdentifier extends ExtensionFunctionDefinition
 
             String s = session.getValidationContext().getDtdSystemId();
 
-            return new StringValue( s );
+            // the empty string if the candidate has no DTD, or it is not identified so
+            return new StringValue( s == null ? "" : s );
         }
 
     }
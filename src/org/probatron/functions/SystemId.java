@@ -92,7 +92,7 @@ public class SystemId extends ExtensionFunctionDefinition
             logger.debug( "got Session " + session );
             String s = session.getValidationContext().getVerbatimName();
 
-            return new StringValue( s );
+            return new StringValue( s == null ? "" : s );
         }
 
     }
@@ -0,0 +1,156 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import static org.probatron.TestSupport.*;
+
+import java.io.File;
+import java.net.URL;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.XsltTransformer;
+
+/**
+ * Checks that schemas with abstract patterns report what they do once expanded by
+ * <tt>iso_abstract_expand.xsl</tt>.
+ */
+public class AbstractPatternFilterTest
+{
+    private final static String CANDIDATE = "<doc><sec><title/><p/></sec><sec/></doc>";
+
+
+    /**
+     * @return the URL of the schema at the passed URL as expanded by
+     *         <tt>iso_abstract_expand.xsl</tt>
+     */
+    private static String expand( String schemaUrl ) throws Exception
+    {
+        File expanded = new File( new File( new URL( schemaUrl ).toURI() ).getParentFile(),
+                "expanded-" + System.nanoTime() + ".sch" );
+        XsltTransformer t = Runtime.getMetaStylesheet( "iso_abstract_expand.xsl" ).load();
+        t.setSource( new StreamSource( schemaUrl ) );
+        t.setDestination( Runtime.getSaxonProcessor().newSerializer( expanded ) );
+        t.transform();
+        return expanded.toURI().toString();
+    }
+
+
+    /**
+     * Checks that the passed schema finds, with either engine, what its expansion by
+     * <tt>iso_abstract_expand.xsl</tt> does.
+     * 
+     * @return the full report of the XSLT engine
+     */
+    private static String assertExpandsAsXslt( String schema ) throws Exception
+    {
+        String schemaUrl = write( "abstract.sch", schema );
+        String expandedUrl = expand( schemaUrl );
+        String candidateUrl = write( "candidate.xml", CANDIDATE );
+
+        String report = null;
+        for( int i = 0; i < 2; i++ )
+        {
+            Session session = session( schemaUrl );
+            session.setUseNativeEngine( i == 1 );
+            session.setReportFormat( ValidationReport.REPORT_SVRL_FULL );
+            Session expanded = session( expandedUrl );
+            expanded.setUseNativeEngine( i == 1 );
+            expanded.setReportFormat( ValidationReport.REPORT_SVRL_FULL );
+
+            String actual = validate( session, candidateUrl );
+            assertEquals( "findings", findings( validate( expanded, candidateUrl ) ),
+                    findings( actual ) );
+            report = report == null ? actual : report;
+        }
+        return report;
+    }
+
+
+    public void testParametersSubstituted() throws Exception
+    {
+        String report = assertExpandsAsXslt( schema( "<pattern abstract='true' id='required'>"
+                + "<rule context='$parent'><assert test='$child'>A <value-of select='name()'/>"
+                + " needs $child</assert></rule></pattern>"
+                + "<pattern is-a='required' id='sec-title'><param name='child' value='title'/>"
+                + "<param name='parent' value='sec'/></pattern>"
+                + "<pattern is-a='required' id='doc-sec'><param name='child' value='sec'/>"
+                + "<param name='parent' value='doc'/></pattern>" ) );
+
+        assertEquals( "failures", 1, count( report, "<svrl:failed-assert" ) );
+        assertContains( report, "A sec needs title" );
+        assertContains( report, "id=\"sec-title\"" );
+        assertNotContains( report, "id=\"required\"" );
+    }
+
+
+    public void testInstanceBeforeAbstractPattern() throws Exception
+    {
+        String report = assertExpandsAsXslt( schema( "<pattern id='first'><rule context='doc'>"
+                + "<report test='true()'>first</report></rule></pattern>"
+                + "<pattern is-a='empty' id='empty-p'><param name='el' value='p'/></pattern>"
+                + "<pattern id='between'><rule context='doc'>"
+                + "<report test='true()'>between</report></rule></pattern>"
+                + "<pattern abstract='true' id='empty'><rule context='$el'>"
+                + "<report test='not(node())'>Empty $el</report></rule></pattern>"
+                + "<pattern id='last'><rule context='doc'>"
+                + "<report test='true()'>last</report></rule></pattern>" ) );
+
+        int first = report.indexOf( ">first<" );
+        int empty = report.indexOf( "Empty p" );
+        int between = report.indexOf( ">between<" );
+        int last = report.indexOf( ">last<" );
+        assertTrue( "patterns out of order:\n" + report, first != -1 && first < empty
+                && empty < between && between < last );
+    }
+
+
+    public void testIncludedAbstractPattern() throws Exception
+    {
+        File dir = new File( scratchDir(), "abstract-" + System.nanoTime() );
+        write( new File( dir, "library.sch" ), "<pattern abstract='true' id='empty'"
+                + " xmlns='http://purl.oclc.org/dsdl/schematron'><rule context='$el'>"
+                + "<report test='not(node())'>Empty $el</report></rule></pattern>" );
+        String schemaUrl = write( new File( dir, "schema.sch" ), schema(
+                "<include href='library.sch'/>"
+                        + "<pattern is-a='empty' id='empty-sec'><param name='el' value='sec'/>"
+                        + "</pattern>" ) );
+        String candidateUrl = write( "candidate.xml", CANDIDATE );
+
+        String report = validate( session( schemaUrl ), candidateUrl );
+        assertEquals( "reports", 1, count( report, "<svrl:successful-report" ) );
+        assertContains( report, "Empty sec" );
+    }
+
+
+    public void testMissingAbstractPattern() throws Exception
+    {
+        String schemaUrl = write( "missing.sch", schema( "<pattern is-a='nowhere' id='lost'>"
+                + "<param name='el' value='p'/></pattern>"
+                + "<pattern id='kept'><rule context='doc'><report test='true()'>kept</report>"
+                + "</rule></pattern>" ) );
+        String candidateUrl = write( "candidate.xml", CANDIDATE );
+
+        String report = validate( session( schemaUrl ), candidateUrl );
+        assertContains( report, "kept" );
+        assertNotContains( report, "id=\"lost\"" );
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+/**
+ * Compares the time taken to read a candidate through a {@link CandidateSource} with that
+ * taken through a URLConnection, as the session did before: reading its bytes only, and
+ * parsing it with SAX. Each round does both, in both ways; the first round of a large file is
+ * the one in which it is mapped. Not one of the tests, which it would slow; run it with
+ * <tt>ant benchmark -Dcandidate=&lt;file></tt>, or directly:
+ * 
+ * <pre>
+ * CandidateSourceBenchmark [-g&lt;megabytes>] candidate-file [rounds]
+ * </pre>
+ * 
+ * where <tt>-g</tt> first writes a synthetic candidate of about that size to the file.
+ */
+public class CandidateSourceBenchmark
+{
+    private final static int DEFAULT_ROUNDS = 3;
+
+
+    public static void main( String[] args ) throws Exception
+    {
+        int arg = 0;
+        long generate = 0;
+        if( args.length > 0 && args[ 0 ].startsWith( "-g" ) )
+        {
+            generate = Long.parseLong( args[ arg++ ].substring( 2 ) ) * 1024 * 1024;
+        }
+        if( args.length <= arg )
+        {
+            System.err.println( "Usage: CandidateSourceBenchmark [-g<megabytes>] "
+                    + "candidate-file [rounds]" );
+            System.exit( 1 );
+        }
+
+        File file = new File( args[ arg++ ] );
+        int rounds = args.length > arg ? Integer.parseInt( args[ arg ] ) : DEFAULT_ROUNDS;
+        if( generate > 0 )
+        {
+            generate( file, generate );
+        }
+        URL url = file.toURI().toURL();
+        System.out.println( "Candidate of " + file.length() + " bytes, " + rounds + " rounds" );
+
+        for( int i = 0; i < rounds; i++ )
+        {
+            long start = System.nanoTime();
+            drain( url.openConnection().getInputStream() );
+            long connectionRead = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            CandidateSource source = new CandidateSource( url );
+            try
+            {
+                drain( source.openStream() );
+            }
+            finally
+            {
+                source.close();
+            }
+            long sourceRead = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            parse( url.openConnection().getInputStream() );
+            long connectionParse = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            source = new CandidateSource( url );
+            try
+            {
+                parse( source.openStream() );
+            }
+            finally
+            {
+                source.close();
+            }
+            long sourceParse = System.nanoTime() - start;
+
+            System.out.println( "round " + i + ": raw read URLConnection " + ms( connectionRead )
+                    + " ms, CandidateSource " + ms( sourceRead ) + " ms; SAX parse URLConnection "
+                    + ms( connectionParse ) + " ms, CandidateSource " + ms( sourceParse )
+                    + " ms" );
+        }
+    }
+
+
+    private static long ms( long nanos )
+    {
+        return nanos / 1000000;
+    }
+
+
+    /**
+     * Reads the passed stream to its end, and closes it.
+     */
+    private static void drain( InputStream is ) throws IOException
+    {
+        byte[] buffer = new byte[ 64 * 1024 ];
+        try
+        {
+            while( is.read( buffer ) != -1 )
+            {
+                // only the reading is measured
+            }
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+
+    /**
+     * Parses the document of the passed stream, doing nothing with its events, and closes it.
+     */
+    private static void parse( InputStream is ) throws Exception
+    {
+        try
+        {
+            XMLReader reader = XMLReaderFactory.createXMLReader();
+            reader.setContentHandler( new DefaultHandler() );
+            reader.parse( new InputSource( is ) );
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+
+    /**
+     * Writes a candidate of sections of paragraphs, of at least the passed size, to the file.
+     */
+    private static void generate( File file, long size ) throws IOException
+    {
+        Writer w = new BufferedWriter( new OutputStreamWriter( Files.newOutputStream( file
+                .toPath() ), StandardCharsets.UTF_8 ) );
+        try
+        {
+            w.write( "<?xml version='1.0' encoding='UTF-8'?>\n<doc>\n" );
+            long written = 0;
+            for( int i = 0; written < size; i++ )
+            {
+                String sec = "<sec id='s" + i + "' ref='s" + ( i / 2 ) + "'><title>Section " + i
+                        + "</title><p>The text of paragraph one of section " + i
+                        + ".</p><p>And of paragraph two.</p></sec>\n";
+                w.write( sec );
+                written += sec.length();
+            }
+            w.write( "</doc>\n" );
+        }
+        finally
+        {
+            w.close();
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import static org.probatron.TestSupport.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class IncludeCacheTest
+{
+    /**
+     * Serves documents from memory, counting the reads of each. A document with no content
+     * cannot be read.
+     */
+    private static class Documents extends URLStreamHandler
+    {
+        final Map< String, String > content = new HashMap< String, String >();
+        final Map< String, Integer > reads = new HashMap< String, Integer >();
+
+
+        URL url( String path ) throws Exception
+        {
+            return new URL( null, "memory:/" + path, this );
+        }
+
+
+        synchronized int reads( String path )
+        {
+            Integer n = reads.get( "/" + path );
+            return n == null ? 0 : n;
+        }
+
+
+        protected URLConnection openConnection( final URL u )
+        {
+            return new URLConnection( u ) {
+                public void connect()
+                {
+                }
+
+
+                public InputStream getInputStream() throws IOException
+                {
+                    synchronized( Documents.this )
+                    {
+                        Integer n = reads.get( u.getPath() );
+                        reads.put( u.getPath(), n == null ? 1 : n + 1 );
+                        String s = content.get( u.getPath() );
+                        if( s == null )
+                        {
+                            throw new IOException( "No such document: " + u );
+                        }
+                        return new ByteArrayInputStream( s.getBytes( StandardCharsets.UTF_8 ) );
+                    }
+                }
+            };
+        }
+
+
+        synchronized void put( String path, String s )
+        {
+            content.put( "/" + path, s );
+        }
+    }
+
+
+    private static void cache( CompiledSchemaCache schemaCache, String key ) throws Exception
+    {
+        schemaCache.get( key, () -> null );
+    }
+
+
+    public void testFailedLoadNotKept() throws Exception
+    {
+        Documents docs = new Documents();
+        IncludeCache includes = new IncludeCache( new CompiledSchemaCache( 4 ), 1 );
+
+        assertTrue( "missing document read", includes.get( docs.url( "a.sch" ) )
+                .getBytes() == null );
+
+        docs.put( "a.sch", "<pattern/>" );
+        assertEquals( "document once available", "<pattern/>", new String( includes.get(
+                docs.url( "a.sch" ) ).getBytes(), StandardCharsets.UTF_8 ) );
+    }
+
+
+    public void testRemoteDocumentReadAgainAfterTtl() throws Exception
+    {
+        Documents docs = new Documents();
+        IncludeCache includes = new IncludeCache( new CompiledSchemaCache( 4 ), 1 );
+        docs.put( "a.sch", "<pattern id='one'/>" );
+        String digest = includes.get( docs.url( "a.sch" ) ).getDigest();
+
+        docs.put( "a.sch", "<pattern id='two'/>" );
+        assertEquals( "digest within TTL", digest, includes.get( docs.url( "a.sch" ) )
+                .getDigest() );
+        assertEquals( "reads within TTL", 1, docs.reads( "a.sch" ) );
+
+        includes.setRemoteTtl( 0 );
+        assertTrue( "digest after TTL", !digest.equals( includes.get( docs.url( "a.sch" ) )
+                .getDigest() ) );
+    }
+
+
+    public void testChangedDocumentEvictsDependents() throws Exception
+    {
+        Documents docs = new Documents();
+        CompiledSchemaCache schemaCache = new CompiledSchemaCache( 4 );
+        IncludeCache includes = new IncludeCache( schemaCache, 1 );
+        docs.put( "a.sch", "<pattern id='one'/>" );
+        docs.put( "b.sch", "<pattern id='one'/>" );
+        includes.get( docs.url( "a.sch" ) );
+        includes.get( docs.url( "b.sch" ) );
+
+        cache( schemaCache, "on-a" );
+        includes.addDependent( "on-a", Collections.singleton( docs.url( "a.sch" )
+                .toExternalForm() ) );
+        cache( schemaCache, "on-b" );
+        includes.addDependent( "on-b", Collections.singleton( docs.url( "b.sch" )
+                .toExternalForm() ) );
+
+        docs.put( "a.sch", "<pattern id='two'/>" );
+        includes.setRemoteTtl( 0 );
+        includes.get( docs.url( "a.sch" ) );
+        includes.get( docs.url( "b.sch" ) );
+
+        assertTrue( "dependent of changed document kept", !schemaCache.contains( "on-a" ) );
+        assertTrue( "dependent of unchanged document evicted", schemaCache.contains( "on-b" ) );
+    }
+
+
+    public void testDependentsPrunedOnEviction() throws Exception
+    {
+        Documents docs = new Documents();
+        CompiledSchemaCache schemaCache = new CompiledSchemaCache( 1 );
+        IncludeCache includes = new IncludeCache( schemaCache, 1 );
+
+        cache( schemaCache, "first" );
+        includes.addDependent( "first", Collections.singleton( docs.url( "a.sch" )
+                .toExternalForm() ) );
+        assertEquals( "dependents", 1, includes.dependentsSize() );
+
+        cache( schemaCache, "second" ); // evicts the first
+        assertEquals( "dependents after eviction", 0, includes.dependentsSize() );
+
+        includes.addDependent( "gone", Collections.singleton( docs.url( "b.sch" )
+                .toExternalForm() ) );
+        assertEquals( "dependents of an uncached schema", 0, includes.dependentsSize() );
+
+        includes.addDependent( "second", Collections.singleton( docs.url( "b.sch" )
+                .toExternalForm() ) );
+        schemaCache.clear();
+        assertEquals( "dependents after clearing", 0, includes.dependentsSize() );
+    }
+
+
+    public void testDocumentsBounded() throws Exception
+    {
+        Documents docs = new Documents();
+        IncludeCache includes = new IncludeCache( new CompiledSchemaCache( 4 ), 1, 1 );
+        docs.put( "a.sch", "<pattern/>" );
+        docs.put( "b.sch", "<pattern/>" );
+
+        includes.get( docs.url( "a.sch" ) );
+        includes.get( docs.url( "a.sch" ) );
+        assertEquals( "reads while cached", 1, docs.reads( "a.sch" ) );
+
+        includes.get( docs.url( "b.sch" ) ); // displaces a.sch
+        includes.get( docs.url( "a.sch" ) );
+        assertEquals( "reads once displaced", 2, docs.reads( "a.sch" ) );
+    }
+
+
+    public void testChangedIncludedFile() throws Exception
+    {
+        File dir = new File( scratchDir(), "changed-" + System.nanoTime() );
+        File included = new File( dir, "included.sch" );
+        write( included, "<pattern xmlns='http://purl.oclc.org/dsdl/schematron'>"
+                + "<rule context='p'><assert test='false()'>First</assert></rule></pattern>" );
+        String schemaUrl = write( new File( dir, "schema.sch" ),
+                schema( "<include href='included.sch'/>" ) );
+        String candidateUrl = write( "candidate.xml", "<doc><p/></doc>" );
+
+        assertContains( validate( session( schemaUrl ), candidateUrl ), "First" );
+
+        write( included, "<pattern xmlns='http://purl.oclc.org/dsdl/schematron'>"
+                + "<rule context='p'><assert test='false()'>Second</assert></rule></pattern>" );
+        included.setLastModified( included.lastModified() + 2000 );
+        String report = validate( session( schemaUrl ), candidateUrl );
+        assertContains( report, "Second" );
+        assertNotContains( report, "First" );
+    }
+
+}
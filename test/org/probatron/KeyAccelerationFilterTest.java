@@ -0,0 +1,86 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import static org.probatron.TestSupport.*;
+
+import java.util.List;
+
+public class KeyAccelerationFilterTest
+{
+    private final static String CANDIDATE = "<doc><ref ref='a'/><g><item id='a'/></g>"
+            + "<g><item id='a'/></g><g><item id='b'/></g></doc>";
+
+
+    /**
+     * @return the lookups accelerated in the schema with the passed rule
+     */
+    private static List< String > accelerated( String rule ) throws Exception
+    {
+        String schemaUrl = write( "keys.sch", schema( "<pattern>" + rule + "</pattern>" ) );
+        return new SchematronSchema( session( schemaUrl ) ).getCompiledSchema( null )
+                .getAccelerated();
+    }
+
+
+    public void testLookupAccelerated() throws Exception
+    {
+        List< String > list = accelerated( "<rule context='ref'>"
+                + "<assert test='//item[@id = current()/@ref]'>Dangling</assert></rule>" );
+        assertEquals( "accelerated", 1, list.size() );
+        assertContains( list.get( 0 ), "key('_probatron_key_1', current()/@ref)" );
+    }
+
+
+    public void testFollowingPredicateNotAccelerated() throws Exception
+    {
+        assertEquals( "accelerated", 0, accelerated(
+                "<rule context='ref'><report test='count(//item[@id = current()/@ref][1]) = 2'>"
+                        + "Two</report></rule>" ).size() );
+        assertEquals( "accelerated", 0, accelerated(
+                "<rule context='ref'><report test='//item[@id = current()/@ref] [last()]'>"
+                        + "Last</report></rule>" ).size() );
+    }
+
+
+    public void testOtherPredicateNotAccelerated() throws Exception
+    {
+        assertEquals( "accelerated", 0, accelerated(
+                "<rule context='ref'><report test=\"//item[@kind = 'x'][@id = current()/@ref]\">"
+                        + "X</report></rule>" ).size() );
+        assertEquals( "accelerated", 0, accelerated(
+                "<rule context='ref'><report test='//item[@id = current()/@ref and @x]'>"
+                        + "X</report></rule>" ).size() );
+    }
+
+
+    public void testPositionalPredicateReport() throws Exception
+    {
+        String[] reports = NativeSchemaTest.validateBoth( schema( "<pattern><rule context='ref'>"
+                + "<report test='count(//item[@id = current()/@ref][1]) = 2'>First of each</report>"
+                + "<report test='count(//item[@id = current()/@ref]) = 2'>Both</report>"
+                + "</rule></pattern>" ), CANDIDATE, null );
+
+        assertContains( reports[ 0 ], "First of each" );
+        assertContains( reports[ 0 ], "Both" );
+        assertEquals( "native report", reports[ 0 ], reports[ 1 ] );
+    }
+
+}
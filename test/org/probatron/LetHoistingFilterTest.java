@@ -0,0 +1,80 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import static org.probatron.TestSupport.*;
+
+public class LetHoistingFilterTest
+{
+    private final static String[] CONTEXT_FREE = { "count(//fig)", "/doc/text()",
+            "string-join(//p/text(), '')", "count(/doc//node())", "//sec[text()]",
+            "count(//p[@id = 'x'])", "doc('x.xml')//element()" };
+
+    private final static String[] CONTEXT_DEPENDENT = {
+            "normalize-space(string-join(text(),''))", "text()", "node()", "count(comment())",
+            "processing-instruction('x')", "element(p)", "attribute()", "document-node()",
+            "count(p)", "current()/@id", "name()", "string-length()", "@id", "./x", "..",
+            "$local" };
+
+
+    public void testContextFree()
+    {
+        LetHoistingFilter filter = new LetHoistingFilter();
+        for( int i = 0; i < CONTEXT_FREE.length; i++ )
+        {
+            assertTrue( CONTEXT_FREE[ i ], filter.isContextFree( CONTEXT_FREE[ i ] ) );
+        }
+    }
+
+
+    public void testContextDependent()
+    {
+        LetHoistingFilter filter = new LetHoistingFilter();
+        for( int i = 0; i < CONTEXT_DEPENDENT.length; i++ )
+        {
+            assertTrue( CONTEXT_DEPENDENT[ i ], !filter.isContextFree( CONTEXT_DEPENDENT[ i ] ) );
+        }
+    }
+
+
+    public void testTextLetNotHoisted() throws Exception
+    {
+        String[] reports = NativeSchemaTest.validateBoth( schema( "<pattern><rule context='p'>"
+                + "<let name='t' value=\"normalize-space(string-join(text(),''))\"/>"
+                + "<assert test=\"$t != ''\">Empty p</assert></rule></pattern>" ),
+                "<doc><p>one</p><p>two</p></doc>", null );
+
+        assertNotContains( reports[ 0 ], "failed-assert" );
+        assertEquals( "native report", reports[ 0 ], reports[ 1 ] );
+    }
+
+
+    public void testContextFreeLet() throws Exception
+    {
+        String[] reports = NativeSchemaTest.validateBoth( schema( "<pattern><rule context='p'>"
+                + "<let name='ps' value='count(//p)'/>"
+                + "<report test='$ps = 2'>Two of <value-of select='$ps'/></report>"
+                + "</rule></pattern>" ), "<doc><p>one</p><p>two</p></doc>", null );
+
+        assertEquals( "reports", 2, count( reports[ 0 ], "Two of 2" ) );
+        assertEquals( "native report", reports[ 0 ], reports[ 1 ] );
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import static org.probatron.TestSupport.*;
+
+/**
+ * Checks that the native engine reports what the XSLT compiled from the same schema does.
+ */
+public class NativeSchemaTest
+{
+    private final static String CANDIDATE = "<doc><sec id='s1'><p>one</p><p/></sec>"
+            + "<sec id='s2' ref='s1'><p>two</p></sec></doc>";
+
+
+    /**
+     * @return the reports of the XSLT and native engines
+     */
+    static String[] validateBoth( String schema, String candidate, String phase )
+            throws Exception
+    {
+        String schemaUrl = write( "schema.sch", schema );
+        String candidateUrl = write( "candidate.xml", candidate );
+        String[] reports = new String[ 2 ];
+        for( int i = 0; i < 2; i++ )
+        {
+            Session session = session( schemaUrl );
+            session.setPhase( phase );
+            session.setUseNativeEngine( i == 1 );
+            reports[ i ] = validate( session, candidateUrl );
+        }
+        return reports;
+    }
+
+
+    public void testIdlessPatternUnderPhase() throws Exception
+    {
+        String[] reports = validateBoth( schema( "<phase id='smoke'><active pattern='p1'/></phase>"
+                + "<pattern id='p1'><rule context='doc'><report test='true()'>in p1</report>"
+                + "</rule></pattern>"
+                + "<pattern><rule context='doc'><report test='true()'>in anon</report>"
+                + "</rule></pattern>" ), CANDIDATE, "smoke" );
+
+        assertContains( reports[ 0 ], "in p1" );
+        assertNotContains( reports[ 0 ], "in anon" );
+        assertEquals( "native report", reports[ 0 ], reports[ 1 ] );
+    }
+
+
+    public void testIdlessPatternWithoutPhase() throws Exception
+    {
+        String[] reports = validateBoth( schema( "<phase id='smoke'><active pattern='p1'/></phase>"
+                + "<pattern id='p1'><rule context='doc'><report test='true()'>in p1</report>"
+                + "</rule></pattern>"
+                + "<pattern><rule context='doc'><report test='true()'>in anon</report>"
+                + "</rule></pattern>" ), CANDIDATE, null );
+
+        assertContains( reports[ 0 ], "in p1" );
+        assertContains( reports[ 0 ], "in anon" );
+        assertEquals( "native report", reports[ 0 ], reports[ 1 ] );
+    }
+
+
+    public void testEquivalence() throws Exception
+    {
+        String[] reports = validateBoth( schema( "<let name='secs' value='count(//sec)'/>"
+                + "<pattern id='structure'>"
+                + "<rule context='sec'><let name='n' value='count(p)'/>"
+                + "<assert test='$n &gt; 1'>Section <value-of select='@id'/> has <value-of "
+                + "select='$n'/> of <value-of select='$secs'/></assert></rule>"
+                + "<rule context='p'><assert test='normalize-space(.)'>Empty p</assert></rule>"
+                + "</pattern>"
+                + "<pattern id='refs'><rule context='@ref'>"
+                + "<report test='//sec[@id = current()]'>Ref to <value-of select='.'/></report>"
+                + "</rule></pattern>" ), CANDIDATE, null );
+
+        assertContains( reports[ 0 ], "Section s2 has 1 of 2" );
+        assertContains( reports[ 0 ], "Empty p" );
+        assertContains( reports[ 0 ], "Ref to s1" );
+        assertEquals( "native report", reports[ 0 ], reports[ 1 ] );
+    }
+
+
+    public void testMergedWalkFirstRuleWins() throws Exception
+    {
+        // both patterns have rules whose contexts overlap, in each other and across patterns
+        String schema = schema( "<pattern id='text'>"
+                + "<rule context='p[normalize-space()]'><report test='true()'>Text p</report>"
+                + "</rule><rule context='p'><report test='true()'>Any p</report></rule>"
+                + "</pattern>"
+                + "<pattern id='elements'>"
+                + "<rule context='*'><report test='true()'>Element <value-of select='name()'/>"
+                + "</report></rule>"
+                + "<rule context='sec'><report test='true()'>Sec</report></rule></pattern>" );
+        String[] reports = validateBoth( schema, CANDIDATE, null );
+
+        Session session = session( write( "merged.sch", schema ) );
+        session.setUseNativeEngine( true );
+        assertTrue( "evaluated in one walk", new SchematronSchema( session ).getCompiledSchema(
+                null ).getNativeSchema() != null );
+
+        assertEquals( "text p", 2, count( reports[ 0 ], "Text p" ) );
+        assertEquals( "other p", 1, count( reports[ 0 ], "Any p" ) );
+        assertEquals( "elements", 6, count( reports[ 0 ], "Element " ) );
+        assertNotContains( reports[ 0 ], ">Sec<" );
+        assertEquals( "native report", reports[ 0 ], reports[ 1 ] );
+    }
+
+
+    public void testFocusPosition() throws Exception
+    {
+        // the skeleton's apply-templates gives each node its position among its siblings
+        String[] reports = validateBoth( schema( "<pattern id='positions'><rule context='p'>"
+                + "<let name='pos' value='position()'/>"
+                + "<report test='true()'>P <value-of select='$pos'/> of <value-of "
+                + "select='last()'/></report></rule>"
+                + "<rule context='sec'><report test='p[last()] = \"one\"'>Last p</report>"
+                + "</rule></pattern>" ), CANDIDATE, null );
+
+        assertContains( reports[ 0 ], "P 1 of 2" );
+        assertContains( reports[ 0 ], "P 2 of 2" );
+        assertEquals( "native report", reports[ 0 ], reports[ 1 ] );
+
+        assertTrue( "position() in a let", NativeSchema.usesFocusPosition( "position()" ) );
+        assertTrue( "last() in a path", NativeSchema.usesFocusPosition( "count(p) = last ( )" ) );
+        assertTrue( "position() outside a predicate", NativeSchema
+                .usesFocusPosition( "p[1] and position() = 2" ) );
+        assertTrue( "last() in a predicate", !NativeSchema.usesFocusPosition( "p[last()]" ) );
+        assertTrue( "position() in a string", !NativeSchema
+                .usesFocusPosition( "'position()'" ) );
+        assertTrue( "a name", !NativeSchema.usesFocusPosition( "my-last()" ) );
+    }
+
+
+    public void testPatternThreads() throws Exception
+    {
+        String schemaUrl = write( "threads.sch", schema( "<let name='secs' value='count(//sec)'/>"
+                + "<pattern id='secs'><rule context='sec'>"
+                + "<report test='true()'>Sec <value-of select='@id'/> of <value-of "
+                + "select='$secs'/></report></rule></pattern>"
+                + "<pattern id='paras'><rule context='p'>"
+                + "<assert test='normalize-space(.)'>Empty p</assert></rule></pattern>"
+                + "<pattern><rule context='@ref'><report test='true()'>Ref</report></rule>"
+                + "</pattern>"
+                + "<pattern id='docs'><rule context='doc'><report test='sec'>Has sec</report>"
+                + "</rule></pattern>" ) );
+        String candidateUrl = write( "candidate.xml", CANDIDATE );
+
+        Session xslt = session( schemaUrl );
+        String expected = validate( xslt, candidateUrl );
+        assertContains( expected, "Sec s2 of 2" );
+        assertContains( expected, "Empty p" );
+        assertContains( expected, "Ref" );
+        assertContains( expected, "Has sec" );
+
+        // more threads than patterns, too
+        int[] threads = { 1, 2, 3, 8 };
+        for( int i = 0; i < threads.length; i++ )
+        {
+            Session session = session( schemaUrl );
+            session.setUseNativeEngine( true );
+            session.setPatternThreads( threads[ i ] );
+            assertEquals( "native report with " + threads[ i ] + " threads", expected, validate(
+                    session, candidateUrl ) );
+        }
+    }
+
+}
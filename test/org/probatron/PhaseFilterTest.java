@@ -0,0 +1,117 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import static org.probatron.TestSupport.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that validating several phases at once reports for each what validating it alone
+ * does.
+ */
+public class PhaseFilterTest
+{
+    private final static String CANDIDATE = "<doc><p/><q/></doc>";
+    /**
+     * Checks that validating the phases together, with either engine, finds for each what
+     * validating it alone does.
+     */
+    private static void assertSplitMatchesSingle( String schema, List< String > phases,
+            boolean nativeEngine ) throws Exception
+    {
+        String schemaUrl = write( "phases.sch", schema );
+        String candidateUrl = write( "candidate.xml", CANDIDATE );
+
+        Session session = session( schemaUrl );
+        session.setUseNativeEngine( nativeEngine );
+        Map< String, ValidationReport > reports = call( () -> session.doValidation(
+                candidateUrl, phases ) );
+        assertEquals( "phases reported", phases, Arrays.asList( reports.keySet().toArray() ) );
+
+        for( int i = 0; i < phases.size(); i++ )
+        {
+            Session single = session( schemaUrl );
+            single.setUseNativeEngine( nativeEngine );
+            single.setPhase( phases.get( i ) );
+            List< String > expected = findings( validate( single, candidateUrl ) );
+            assertTrue( "findings for phase " + phases.get( i ), !expected.isEmpty() );
+            assertEquals( "findings for phase " + phases.get( i ), expected, findings( report(
+                    reports.get( phases.get( i ) ) ) ) );
+        }
+    }
+
+
+    public void testUnionSplit() throws Exception
+    {
+        String schema = schema( "<phase id='a'><active pattern='pa'/></phase>"
+                + "<phase id='b'><active pattern='pb'/><active pattern='pc'/></phase>"
+                + "<pattern id='pa'><rule context='p'><assert test='false()'>in a</assert>"
+                + "</rule></pattern>"
+                + "<pattern id='pb'><rule context='q'><assert test='false()'>in b</assert>"
+                + "</rule></pattern>"
+                + "<pattern id='pc'><rule context='doc'><report test='true()'>in c</report>"
+                + "</rule></pattern>" );
+
+        assertSplitMatchesSingle( schema, Arrays.asList( "a", "b" ), false );
+        assertSplitMatchesSingle( schema, Arrays.asList( "b", "#ALL" ), false );
+        assertSplitMatchesSingle( schema, Arrays.asList( "a", "b" ), true );
+    }
+
+
+    public void testSharedLet() throws Exception
+    {
+        String schema = schema( "<phase id='a'><let name='x' value='1'/>"
+                + "<active pattern='pa'/></phase>"
+                + "<phase id='b'><let name='x' value='1'/><active pattern='pb'/></phase>"
+                + "<pattern id='pa'><rule context='p'><report test='$x = 1'>a sees 1</report>"
+                + "</rule></pattern>"
+                + "<pattern id='pb'><rule context='q'><report test='$x = 1'>b sees 1</report>"
+                + "</rule></pattern>" );
+
+        assertSplitMatchesSingle( schema, Arrays.asList( "a", "b" ), false );
+    }
+
+
+    public void testConflictingLets() throws Exception
+    {
+        String schema = schema( "<phase id='a'><let name='x' value='1'/>"
+                + "<active pattern='pa'/></phase>"
+                + "<phase id='b'><let name='x' value='2'/><active pattern='pb'/></phase>"
+                + "<pattern id='pa'><rule context='p'><report test='$x = 1'>a sees 1</report>"
+                + "</rule></pattern>"
+                + "<pattern id='pb'><rule context='q'><report test='$x = 2'>b sees 2</report>"
+                + "</rule></pattern>" );
+
+        String schemaUrl = write( "conflict.sch", schema );
+        String candidateUrl = write( "candidate.xml", CANDIDATE );
+        Session session = session( schemaUrl );
+        Map< String, ValidationReport > reports = call( () -> session.doValidation(
+                candidateUrl, Arrays.asList( "a", "b" ) ) );
+        assertContains( report( reports.get( "a" ) ), "a sees 1" );
+        assertContains( report( reports.get( "b" ) ), "b sees 2" );
+
+        assertSplitMatchesSingle( schema, Arrays.asList( "a", "b" ), false );
+        assertSplitMatchesSingle( schema, Arrays.asList( "a", "b" ), true );
+    }
+
+}
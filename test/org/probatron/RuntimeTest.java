@@ -0,0 +1,165 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import static org.probatron.TestSupport.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.saxon.s9api.SaxonApiException;
+
+public class RuntimeTest
+{
+    public void testLibraryPackageCompiledOnce() throws Exception
+    {
+        final String key = "test-once-" + System.nanoTime();
+        final AtomicInteger compiles = new AtomicInteger();
+        List< Thread > threads = new ArrayList< Thread >();
+        for( int i = 0; i < 4; i++ )
+        {
+            Thread t = new Thread( () -> {
+                try
+                {
+                    Runtime.getLibraryPackage( key, () -> {
+                        compiles.incrementAndGet();
+                        Thread.sleep( 200 );
+                        return null;
+                    } );
+                }
+                catch( SaxonApiException e )
+                {
+                    throw new RuntimeException( e );
+                }
+            } );
+            t.start();
+            threads.add( t );
+        }
+        for( int i = 0; i < threads.size(); i++ )
+        {
+            threads.get( i ).join();
+        }
+
+        assertEquals( "compilations", 1, compiles.get() );
+    }
+
+
+    public void testFailedLibraryPackageNotKept() throws Exception
+    {
+        String key = "test-failed-" + System.nanoTime();
+        try
+        {
+            Runtime.getLibraryPackage( key, () -> {
+                throw new IllegalStateException( "failed" );
+            } );
+            throw new AssertionError( "Expected failure" );
+        }
+        catch( SaxonApiException e )
+        {
+            // expected
+        }
+
+        final AtomicInteger compiles = new AtomicInteger();
+        Runtime.getLibraryPackage( key, () -> {
+            compiles.incrementAndGet();
+            return null;
+        } );
+        assertEquals( "compilations after failure", 1, compiles.get() );
+    }
+
+
+    public void testLibraryPackagesBounded() throws Exception
+    {
+        final AtomicInteger compiles = new AtomicInteger();
+        String prefix = "test-bounded-" + System.nanoTime() + "-";
+        Runtime.getLibraryPackage( prefix + "used", () -> {
+            compiles.incrementAndGet();
+            return null;
+        } );
+        Runtime.getLibraryPackage( prefix + "unused", () -> {
+            compiles.incrementAndGet();
+            return null;
+        } );
+        for( int i = 2; i < Runtime.getMaxLibraryPackages(); i++ )
+        {
+            Runtime.getLibraryPackage( prefix + i, () -> null );
+        }
+
+        // the least recently used package is evicted by the next
+        Runtime.getLibraryPackage( prefix + "used", () -> {
+            compiles.incrementAndGet();
+            return null;
+        } );
+        Runtime.getLibraryPackage( prefix + "next", () -> null );
+        assertEquals( "compilations while kept", 2, compiles.get() );
+
+        Runtime.getLibraryPackage( prefix + "used", () -> {
+            compiles.incrementAndGet();
+            return null;
+        } );
+        assertEquals( "compilations of the package used", 2, compiles.get() );
+        Runtime.getLibraryPackage( prefix + "unused", () -> {
+            compiles.incrementAndGet();
+            return null;
+        } );
+        assertEquals( "compilations of the package evicted", 3, compiles.get() );
+    }
+
+
+    public void testCompilationHoldsNoGlobalLock() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        Thread compiling = new Thread( () -> {
+            try
+            {
+                Runtime.getLibraryPackage( "test-slow-" + System.nanoTime(), () -> {
+                    started.countDown();
+                    release.await( 60, TimeUnit.SECONDS );
+                    return null;
+                } );
+            }
+            catch( SaxonApiException e )
+            {
+                throw new RuntimeException( e );
+            }
+        } );
+        compiling.start();
+
+        try
+        {
+            assertTrue( "compilation started", started.await( 60, TimeUnit.SECONDS ) );
+            // each would wait for the library compilation if it took a lock that one holds
+            call( () -> Runtime.getEntityResolver() );
+            call( () -> Runtime.getMetaStylesheet( Runtime.SVRL_META_STYLESHEET ) );
+            call( () -> Runtime.getLibraryPackage( "test-other-" + System.nanoTime(),
+                    () -> null ) );
+        }
+        finally
+        {
+            release.countDown();
+            compiling.join();
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import static org.probatron.TestSupport.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+public class SchemaDiskCacheTest
+{
+    private final static String SCHEMA = schema( "<pattern><rule context='p'>"
+            + "<assert test='normalize-space(.)'>Empty p</assert></rule></pattern>" );
+    private final static String CANDIDATE = "<doc><p/></doc>";
+
+
+    private static File newDirectory( String name ) throws Exception
+    {
+        File dir = new File( scratchDir(), name + "-" + System.nanoTime() );
+        dir.mkdirs();
+        return dir;
+    }
+
+
+    public void testEntriesOfOtherVersionsIgnored() throws Exception
+    {
+        File dir = newDirectory( "versions" );
+        SchemaDiskCache v1 = new SchemaDiskCache( dir, 1 );
+        Properties meta = new Properties();
+        meta.setProperty( "x", "y" );
+        v1.putXslt( "key", "<xsl/>".getBytes( StandardCharsets.UTF_8 ) );
+        v1.putMetadata( "key", meta );
+
+        SchemaDiskCache v2 = new SchemaDiskCache( dir, 2 );
+        assertTrue( "XSLT of another version", v2.getXslt( "key" ) == null );
+        assertTrue( "metadata of another version", v2.getMetadata( "key" ) == null );
+
+        assertEquals( "XSLT", "<xsl/>", new String( new SchemaDiskCache( dir, 1 )
+                .getXslt( "key" ), StandardCharsets.UTF_8 ) );
+        assertEquals( "metadata", "y", new SchemaDiskCache( dir, 1 ).getMetadata( "key" )
+                .getProperty( "x" ) );
+    }
+
+
+    public void testXsltReusedAcrossRuns() throws Exception
+    {
+        File dir = newDirectory( "reuse" );
+        String schemaUrl = write( "cached.sch", SCHEMA );
+        String candidateUrl = write( "candidate.xml", CANDIDATE );
+
+        Runtime.setDiskCache( new SchemaDiskCache( dir ) );
+        try
+        {
+            assertContains( validate( session( schemaUrl ), candidateUrl ), "Empty p" );
+
+            // alter the stored XSLT, so that its use shows in the report
+            File[] entries = dir.listFiles( ( d, name ) -> name.endsWith( ".xsl" ) );
+            assertEquals( "XSLT entries", 1, entries.length );
+            String xslt = new String( Files.readAllBytes( entries[ 0 ].toPath() ),
+                    StandardCharsets.UTF_8 );
+            Files.write( entries[ 0 ].toPath(), xslt.replace( "Empty p", "Cached p" ).getBytes(
+                    StandardCharsets.UTF_8 ) );
+
+            // as if in a new run
+            Runtime.getSchemaCache().clear();
+            assertContains( validate( session( schemaUrl ), candidateUrl ), "Cached p" );
+
+            // a new release does not use it
+            Runtime.getSchemaCache().clear();
+            Runtime.setDiskCache( new SchemaDiskCache( dir, SchemaDiskCache.FORMAT_VERSION + 1 ) );
+            assertContains( validate( session( schemaUrl ), candidateUrl ), "Empty p" );
+        }
+        finally
+        {
+            Runtime.setDiskCache( null );
+        }
+    }
+
+}
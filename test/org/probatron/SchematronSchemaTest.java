@@ -0,0 +1,199 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import static org.probatron.TestSupport.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class SchematronSchemaTest
+{
+    private final static String SCHEMA = schema( "<phase id='strict'>"
+            + "<active pattern='pq'/></phase>"
+            + "<pattern id='pp'><rule context='p'>"
+            + "<assert test='normalize-space(.)'>Empty p</assert></rule></pattern>"
+            + "<pattern id='pq'><rule context='q'>"
+            + "<assert test='normalize-space(.)'>Empty q</assert></rule></pattern>" );
+    private final static String CANDIDATE = "<doc><p/><q/></doc>";
+
+
+    private static ByteArrayInputStream stream( String s )
+    {
+        return new ByteArrayInputStream( s.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+
+    public void testStreamSchema() throws Exception
+    {
+        URL candidateUrl = new URL( write( "candidate.xml", CANDIDATE ) );
+        String report = call( () -> report( new SchematronSchema( stream( SCHEMA ) )
+                .validateCandidate( candidateUrl ) ) );
+        assertContains( report, "Empty p" );
+        assertContains( report, "Empty q" );
+    }
+
+
+    public void testStreamSchemaWithSession() throws Exception
+    {
+        URL candidateUrl = new URL( write( "candidate.xml", CANDIDATE ) );
+        Session session = new Session();
+        session.setPhase( "strict" );
+        String report = call( () -> report( new SchematronSchema( stream( SCHEMA ), session )
+                .validateCandidate( candidateUrl ) ) );
+        assertNotContains( report, "Empty p" );
+        assertContains( report, "Empty q" );
+    }
+
+
+    public void testCompiledSchemaCached() throws Exception
+    {
+        String schemaUrl = write( "cached.sch", SCHEMA );
+        CompiledSchema first = new SchematronSchema( session( schemaUrl ) )
+                .getCompiledSchema( null );
+        CompiledSchema second = new SchematronSchema( session( schemaUrl ) )
+                .getCompiledSchema( null );
+        assertTrue( "compiled again", first == second );
+
+        Session strict = session( schemaUrl );
+        strict.setPhase( "strict" );
+        assertTrue( "shared across phases", first != new SchematronSchema( strict )
+                .getCompiledSchema( null ) );
+    }
+
+
+    public void testPhasesOfEachCompilation() throws Exception
+    {
+        // a schema of its own, so that both compilations miss the cache
+        String schemaUrl = write( "phases.sch", SCHEMA.replace( "</schema>", "<!-- "
+                + System.nanoTime() + " --></schema>" ) );
+        URL candidateUrl = new URL( write( "candidate.xml", CANDIDATE ) );
+        SchematronSchema schema = new SchematronSchema( session( schemaUrl ) );
+
+        CompiledSchema all = call( () -> schema.getCompiledSchema( null ) );
+        CompiledSchema strict = call( () -> schema.getCompiledSchema( Collections
+                .singletonList( "strict" ) ) );
+        assertContains( report( schema.validateCandidate( schema.parseCandidate( candidateUrl ),
+                all ) ), "Empty p" );
+        String report = report( schema.validateCandidate( schema.parseCandidate( candidateUrl ),
+                strict ) );
+        assertNotContains( report, "Empty p" );
+        assertContains( report, "Empty q" );
+    }
+
+
+    public void testChangedSchemaRecompiled() throws Exception
+    {
+        String schemaUrl = write( "changed.sch", SCHEMA );
+        String candidateUrl = write( "candidate.xml", CANDIDATE );
+        assertContains( validate( session( schemaUrl ), candidateUrl ), "Empty p" );
+
+        write( new File( new URL( schemaUrl ).toURI() ), SCHEMA.replace( "Empty p", "Blank p" ) );
+        String report = validate( session( schemaUrl ), candidateUrl );
+        assertContains( report, "Blank p" );
+        assertNotContains( report, "Empty p" );
+    }
+
+
+    public void testPatternGroups() throws Exception
+    {
+        String schemaUrl = write( "groups.sch", schema( "<p>About the schema</p>"
+                + "<phase id='main'><active pattern='a'/><active pattern='c'/>"
+                + "<active pattern='d'/></phase>"
+                + "<pattern id='a'><p>About a</p><rule context='p'>"
+                + "<assert test='normalize-space(.)'>Empty p</assert></rule></pattern>"
+                + "<pattern id='b'><rule context='q'><report test='true()'>Any q</report>"
+                + "</rule></pattern>"
+                + "<pattern id='c'><rule context='q'>"
+                + "<assert test='normalize-space(.)'>Empty q</assert></rule></pattern>"
+                + "<pattern id='d'><rule context='*'><let name='n' value='count(*)'/>"
+                + "<report test='$n'><value-of select='name()'/> of <value-of select='$n'/>"
+                + "</report></rule></pattern>" ) );
+        String candidateUrl = write( "candidate.xml", CANDIDATE );
+
+        String[] phases = { null, "main" };
+        int[] formats = { ValidationReport.REPORT_SVRL_FULL,
+                ValidationReport.REPORT_SVRL_COMPACT };
+        for( int i = 0; i < phases.length; i++ )
+        {
+            for( int j = 0; j < formats.length; j++ )
+            {
+                Session session = session( schemaUrl );
+                session.setPhase( phases[ i ] );
+                session.setReportFormat( formats[ j ] );
+                String expected = validate( session, candidateUrl );
+
+                session.setPatternThreads( 3 );
+                CompiledSchema groups = new SchematronSchema( session ).getCompiledSchema( null );
+                assertEquals( "groups", 3, groups.getExecutables().size() );
+                String report = validate( session, candidateUrl );
+
+                String what = "phase " + phases[ i ] + ", format " + formats[ j ];
+                assertEquals( what, findings( expected ), findings( report ) );
+                assertEquals( what, activePatterns( expected ), activePatterns( report ) );
+            }
+        }
+    }
+
+
+    /**
+     * @return the ids of the active-pattern elements in a report, in order
+     */
+    private static List< String > activePatterns( String report )
+    {
+        List< String > ids = new ArrayList< String >();
+        Matcher m = Pattern.compile( "<svrl:active-pattern[^>]*? id=\"([^\"]*)\"" ).matcher(
+                report );
+        while( m.find() )
+        {
+            ids.add( m.group( 1 ) );
+        }
+        return ids;
+    }
+
+
+    public void testFailedCompilationNotCached() throws Exception
+    {
+        String schemaUrl = write( "broken.sch", schema( "<pattern><rule context='p'>"
+                + "<assert test='('>Broken</assert></rule></pattern>" ) );
+        int size = Runtime.getSchemaCache().size();
+        for( int i = 0; i < 2; i++ )
+        {
+            try
+            {
+                new SchematronSchema( session( schemaUrl ) ).getCompiledSchema( null );
+                assertTrue( "broken schema compiled", false );
+            }
+            catch( RuntimeException e )
+            {
+                // expected
+            }
+            assertEquals( "cached entries", size, Runtime.getSchemaCache().size() );
+        }
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import static org.probatron.TestSupport.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.XdmNode;
+
+import org.xml.sax.InputSource;
+
+/**
+ * Checks that candidates passed as paths, streams, bytes, sources and trees are reported on as
+ * those passed by URL are.
+ */
+public class SessionTest
+{
+    private final static String SCHEMA = schema( "<ns prefix='pr' uri='"
+            + Utils.PROBATRON_FUNCTION_NAME + "'/>"
+            + "<pattern><rule context='p'><assert test='normalize-space(.)'>Empty p</assert>"
+            + "</rule><rule context='doc'><report test='true()'>System id "
+            + "<value-of select='pr:system-id()'/></report>"
+            + "<report test=\"pr:file-exists('sibling.txt')\">Sibling exists</report></rule>"
+            + "</pattern>" );
+    private final static String CANDIDATE = "<doc>\n  <p>one</p>\n  <p/>\n</doc>";
+
+
+    private static String schemaUrl() throws Exception
+    {
+        return write( "candidates.sch", SCHEMA );
+    }
+
+
+    /**
+     * @return a session for the passed schema which reports physical locators
+     */
+    private static Session locating( String schemaUrl )
+    {
+        Session session = session( schemaUrl );
+        session.setUsePhysicalLocators( true );
+        return session;
+    }
+
+
+    private static InputStream stream()
+    {
+        return new ByteArrayInputStream( CANDIDATE.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+
+    public void testParsedInputsMatchUrl() throws Exception
+    {
+        String schemaUrl = schemaUrl();
+        String candidateUrl = write( "candidate.xml", CANDIDATE );
+        String expected = validate( locating( schemaUrl ), candidateUrl );
+        assertContains( expected, "Empty p" );
+        assertContains( expected, "System id " + candidateUrl );
+
+        // whose system identifier is the path's own form of URI
+        Path candidatePath = Paths.get( new URL( candidateUrl ).toURI() );
+        Session path = locating( schemaUrl );
+        assertEquals( "report for a path", expected.replace( candidateUrl, candidatePath.toUri()
+                .toString() ), call( () -> report( path.doValidation( candidatePath ) ) ) );
+
+        Session stream = locating( schemaUrl );
+        assertEquals( "report for a stream", expected, call( () -> report( stream
+                .doValidation( stream(), candidateUrl ) ) ) );
+
+        Session bytes = locating( schemaUrl );
+        assertEquals( "report for bytes", expected, call( () -> report( bytes.doValidation(
+                CANDIDATE.getBytes( StandardCharsets.UTF_8 ), candidateUrl ) ) ) );
+
+        Session streamSource = locating( schemaUrl );
+        assertEquals( "report for a stream source", expected, call( () -> report( streamSource
+                .doValidation( new StreamSource( stream(), candidateUrl ) ) ) ) );
+
+        Session saxSource = locating( schemaUrl );
+        InputSource is = new InputSource( stream() );
+        is.setSystemId( candidateUrl );
+        assertEquals( "report for a SAX source", expected, call( () -> report( saxSource
+                .doValidation( new SAXSource( is ) ) ) ) );
+    }
+
+
+    public void testTreesMatchUrl() throws Exception
+    {
+        String schemaUrl = schemaUrl();
+        String candidateUrl = write( "candidate.xml", CANDIDATE );
+        String expected = validate( locating( schemaUrl ), candidateUrl );
+
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware( true );
+        Session dom = locating( schemaUrl );
+        DOMSource domSource = new DOMSource( dbf.newDocumentBuilder().parse( stream() ),
+                candidateUrl );
+        assertEquals( "findings for a DOM source", findings( expected ), findings( call(
+                () -> report( dom.doValidation( domSource ) ) ) ) );
+
+        DocumentBuilder builder = Runtime.getSaxonProcessor().newDocumentBuilder();
+        builder.setLineNumbering( true );
+        builder.setBaseURI( new URL( candidateUrl ).toURI() );
+        XdmNode tree = builder.build( new StreamSource( stream(), candidateUrl ) );
+        Session node = locating( schemaUrl );
+        assertEquals( "report for a tree", expected, call( () -> report( node
+                .doValidation( tree ) ) ) );
+    }
+
+
+    public void testDtdIdentifiers() throws Exception
+    {
+        // the DTD is beside the candidate only, so is found only if the candidate's relative
+        // references are resolved against its own location
+        File dir = new File( scratchDir(), "dtd-" + System.nanoTime() );
+        String schemaUrl = write( "dtd.sch", schema( "<ns prefix='pr' uri='"
+                + Utils.PROBATRON_FUNCTION_NAME + "'/>"
+                + "<pattern><rule context='/*'><report test='true()'>Public "
+                + "<value-of select='pr:governing-dtd-public-identifier()'/> system "
+                + "<value-of select='pr:governing-dtd-system-identifier()'/></report></rule>"
+                + "</pattern>" ) );
+        write( new File( dir, "doc.dtd" ), "<!ELEMENT doc (#PCDATA)>" );
+        String content = "<!DOCTYPE doc PUBLIC '-//Test//DTD Doc//EN' 'doc.dtd'><doc/>";
+        File candidate = new File( dir, "candidate.xml" );
+        String candidateUrl = write( candidate, content );
+        String expected = "Public -//Test//DTD Doc//EN system doc.dtd";
+
+        // the identifiers are recorded as the candidate is read, whatever it is read from
+        assertContains( validate( session( schemaUrl ), candidateUrl ), expected );
+
+        Session path = session( schemaUrl );
+        assertContains( call( () -> report( path.doValidation( candidate.toPath() ) ) ),
+                expected );
+
+        Session bytes = session( schemaUrl );
+        assertContains( call( () -> report( bytes.doValidation( content
+                .getBytes( StandardCharsets.UTF_8 ), candidateUrl ) ) ), expected );
+
+        // and from the prolog of a tree's document, if it has one
+        DocumentBuilder builder = Runtime.getSaxonProcessor().newDocumentBuilder();
+        builder.setDTDValidation( false );
+        XdmNode tree = builder.build( candidate );
+        Session node = session( schemaUrl );
+        assertContains( call( () -> report( node.doValidation( tree ) ) ), expected );
+    }
+
+
+    public void testNoSystemId() throws Exception
+    {
+        String schemaUrl = schemaUrl();
+        Session session = session( schemaUrl );
+        String report = call( () -> report( session.doValidation( CANDIDATE
+                .getBytes( StandardCharsets.UTF_8 ), null ) ) );
+        assertContains( report, "Empty p" );
+        assertContains( report, "System id <" );
+    }
+
+
+    public void testFileExists() throws Exception
+    {
+        String schemaUrl = schemaUrl();
+        File dir = new File( scratchDir(), "siblings-" + System.nanoTime() );
+        File candidate = new File( dir, "candidate.xml" );
+        write( candidate, CANDIDATE );
+
+        // relative to the candidate's own location, where it has one
+        Session path = session( schemaUrl );
+        path.setFsContextDir( "/" );
+        assertNotContains( call( () -> report( path.doValidation( candidate.toPath() ) ) ),
+                "Sibling exists" );
+
+        Files.write( new File( dir, "sibling.txt" ).toPath(), new byte[ 0 ] );
+        Session withSibling = session( schemaUrl );
+        withSibling.setFsContextDir( "/" );
+        assertContains( call( () -> report( withSibling.doValidation( candidate.toPath() ) ) ),
+                "Sibling exists" );
+
+        // else relative to the context directory
+        Session bytes = session( schemaUrl );
+        bytes.setFsContextDir( dir.getAbsolutePath() );
+        assertContains( call( () -> report( bytes.doValidation( CANDIDATE
+                .getBytes( StandardCharsets.UTF_8 ), null ) ) ), "Sibling exists" );
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Runs the tests of the classes named on the command line: each public, no-argument method
+ * whose name begins "test" is invoked on a new instance of its class. A test fails by throwing.
+ * Exits with a non-zero status if any test fails.
+ */
+public class TestRunner
+{
+    public static void main( String[] args ) throws Exception
+    {
+        int run = 0;
+        int failed = 0;
+
+        for( int i = 0; i < args.length; i++ )
+        {
+            Class< ? > c = Class.forName( args[ i ] );
+            Method[] methods = c.getMethods();
+            for( int j = 0; j < methods.length; j++ )
+            {
+                Method m = methods[ j ];
+                if( !m.getName().startsWith( "test" ) || m.getParameterTypes().length != 0
+                        || Modifier.isStatic( m.getModifiers() ) )
+                {
+                    continue;
+                }
+
+                run++;
+                String name = c.getSimpleName() + "." + m.getName();
+                try
+                {
+                    m.invoke( c.getDeclaredConstructor().newInstance() );
+                    System.out.println( "PASS " + name );
+                }
+                catch( InvocationTargetException e )
+                {
+                    failed++;
+                    System.out.println( "FAIL " + name + ": " + e.getCause() );
+                    e.getCause().printStackTrace( System.out );
+                }
+            }
+        }
+
+        System.out.println( "Tests run: " + run + ", failed: " + failed );
+        System.exit( failed == 0 ? 0 : 1 );
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Assertions, and the means of validating documents written to a scratch directory, for the
+ * tests.
+ */
+public class TestSupport
+{
+    public final static String SCHEMATRON_START = "<schema xmlns='http://purl.oclc.org/dsdl/schematron'"
+            + " queryBinding='xslt2'>";
+    public final static String SCHEMATRON_END = "</schema>";
+
+    private final static Pattern FINDING = Pattern.compile(
+            "<svrl:(failed-assert|successful-report)[^>]*?location=\"([^\"]*)\""
+                    + ".*?<svrl:text>(.*?)</svrl:text>", Pattern.DOTALL );
+
+    private static File scratchDir;
+
+
+    /**
+     * @return a directory for the documents of the tests, deleted with its content when the JVM
+     *         exits
+     */
+    public static synchronized File scratchDir() throws IOException
+    {
+        if( scratchDir == null )
+        {
+            scratchDir = Files.createTempDirectory( "probatron-test" ).toFile();
+            final File dir = scratchDir;
+            java.lang.Runtime.getRuntime().addShutdownHook( new Thread( () -> delete( dir ) ) );
+        }
+        return scratchDir;
+    }
+
+
+    private static void delete( File file )
+    {
+        File[] children = file.listFiles();
+        for( int i = 0; children != null && i < children.length; i++ )
+        {
+            delete( children[ i ] );
+        }
+        file.delete();
+    }
+
+
+    /**
+     * Writes the passed content to a file in the scratch directory, using a name not yet used
+     * by any test so that no cache holds anything for it.
+     * 
+     * @return the URL of the file
+     */
+    public static String write( String name, String content ) throws IOException
+    {
+        File dir = new File( scratchDir(), name );
+        for( int i = 0; dir.exists(); i++ )
+        {
+            dir = new File( scratchDir(), i + "-" + name );
+        }
+        return write( dir, content );
+    }
+
+
+    /**
+     * Writes the passed content to the passed file, replacing any there is.
+     * 
+     * @return the URL of the file
+     */
+    public static String write( File file, String content ) throws IOException
+    {
+        file.getParentFile().mkdirs();
+        Files.write( file.toPath(), content.getBytes( StandardCharsets.UTF_8 ) );
+        return file.toURI().toString();
+    }
+
+
+    /**
+     * @return a schema with the passed content
+     */
+    public static String schema( String content )
+    {
+        return SCHEMATRON_START + content + SCHEMATRON_END;
+    }
+
+
+    /**
+     * @return a session for the schema at the passed URL, with no physical locators
+     */
+    public static Session session( String schemaUrl )
+    {
+        Session session = new Session();
+        session.setSchemaSysId( schemaUrl );
+        session.setUsePhysicalLocators( false );
+        return session;
+    }
+
+
+    /**
+     * Validates a candidate with a session, within a minute.
+     * 
+     * @return the report, as text
+     */
+    public static String validate( final Session session, final String candidateUrl )
+            throws Exception
+    {
+        return call( () -> report( session.doValidation( candidateUrl ) ) );
+    }
+
+
+    /**
+     * @return the passed report, as text
+     */
+    public static String report( ValidationReport vr )
+    {
+        return new String( vr.reportAsBytes(), StandardCharsets.UTF_8 );
+    }
+
+
+    /**
+     * @return the kind, location and text of each finding in a report, which serializations
+     *         of the same report agree on
+     */
+    public static List< String > findings( String report )
+    {
+        List< String > findings = new ArrayList< String >();
+        Matcher m = FINDING.matcher( report );
+        while( m.find() )
+        {
+            findings.add( m.group( 1 ) + " " + m.group( 2 ) + " " + m.group( 3 ).trim() );
+        }
+        return findings;
+    }
+
+
+    /**
+     * Runs the passed task, failing if it does not finish within a minute.
+     */
+    public static < T > T call( java.util.concurrent.Callable< T > task ) throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor( r -> {
+            Thread t = new Thread( r );
+            t.setDaemon( true );
+            return t;
+        } );
+        try
+        {
+            Future< T > future = executor.submit( task );
+            return future.get( 60, TimeUnit.SECONDS );
+        }
+        catch( TimeoutException e )
+        {
+            throw new AssertionError( "Timed out" );
+        }
+        catch( ExecutionException e )
+        {
+            if( e.getCause() instanceof Exception )
+            {
+                throw ( Exception )e.getCause();
+            }
+            throw new AssertionError( e.getCause() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * @return the number of times <tt>part</tt> occurs in <tt>s</tt>
+     */
+    public static int count( String s, String part )
+    {
+        int n = 0;
+        for( int i = s.indexOf( part ); i != -1; i = s.indexOf( part, i + part.length() ) )
+        {
+            n++;
+        }
+        return n;
+    }
+
+
+    public static void assertTrue( String message, boolean condition )
+    {
+        if( !condition )
+        {
+            throw new AssertionError( message );
+        }
+    }
+
+
+    public static void assertEquals( String message, Object expected, Object actual )
+    {
+        if( expected == null ? actual != null : !expected.equals( actual ) )
+        {
+            throw new AssertionError( message + ": expected <" + expected + "> but was <"
+                    + actual + ">" );
+        }
+    }
+
+
+    public static void assertContains( String s, String part )
+    {
+        assertTrue( "Expected \"" + part + "\" in:\n" + s, s.contains( part ) );
+    }
+
+
+    public static void assertNotContains( String s, String part )
+    {
+        assertTrue( "Did not expect \"" + part + "\" in:\n" + s, !s.contains( part ) );
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * This file is part of the source of
+ *
+ * Probatron4J - a Schematron validator for Java(tm)
+ *
+ * Copyright (C) 2009 Griffin Brown Digitial Publishing Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this
+ * program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.probatron;
+
+import static org.probatron.TestSupport.*;
+
+import java.io.StringWriter;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.BuildingContentHandler;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmDestination;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XsltTransformer;
+
+/**
+ * Checks that the XSLT the generator writes reports exactly what the skeleton's does.
+ */
+public class XsltGeneratorTest
+{
+    private final static String CANDIDATE = "<doc xmlns:x='urn:x'><sec id='s1'><p>one</p><p/>"
+            + "</sec><sec id='s2' ref='s1'><x:note/><p>two</p></sec></doc>";
+
+
+    /**
+     * @return the report of the XSLT generated by the passed means for the passed schema
+     */
+    private static String apply( XdmNode schema, String phase, boolean generator,
+            String candidateUrl ) throws Exception
+    {
+        Processor processor = Runtime.getSaxonProcessor();
+        XdmNode xslt;
+        if( generator )
+        {
+            BuildingContentHandler handler = processor.newDocumentBuilder()
+                    .newBuildingContentHandler();
+            XsltGenerator g = new XsltGenerator( schema );
+            g.setPhase( phase );
+            g.generate( handler );
+            xslt = handler.getDocumentNode();
+        }
+        else
+        {
+            XsltTransformer skeleton = Runtime.getMetaStylesheet(
+                    Runtime.SVRL_META_STYLESHEET ).load();
+            if( phase != null )
+            {
+                skeleton.setParameter( new QName( "phase" ), new XdmAtomicValue( phase ) );
+            }
+            XdmDestination destination = new XdmDestination();
+            skeleton.setSource( schema.asSource() );
+            skeleton.setDestination( destination );
+            skeleton.transform();
+            xslt = destination.getXdmNode();
+        }
+
+        XsltTransformer t = processor.newXsltCompiler().compile( xslt.asSource() ).load();
+        StringWriter sw = new StringWriter();
+        t.setSource( new StreamSource( candidateUrl ) );
+        t.setDestination( processor.newSerializer( sw ) );
+        t.transform();
+        return sw.toString();
+    }
+
+
+    private static void assertSameAsSkeleton( String schema, String phase ) throws Exception
+    {
+        String schemaUrl = write( "generated.sch", schema );
+        String candidateUrl = write( "candidate.xml", CANDIDATE );
+        XdmNode expanded = new SchematronSchema( session( schemaUrl ) ).getExpandedSchema();
+        assertEquals( "unsupported", null, XsltGenerator.checkSchema( expanded ) );
+
+        String expected = apply( expanded, phase, false, candidateUrl );
+        assertTrue( "no findings:\n" + expected, !findings( expected ).isEmpty() );
+        assertEquals( "report", expected, apply( expanded, phase, true, candidateUrl ) );
+    }
+
+
+    public void testRulesAndLets() throws Exception
+    {
+        assertSameAsSkeleton( schema( "<ns prefix='x' uri='urn:x'/>"
+                + "<let name='secs' value='count(//sec)'/>"
+                + "<pattern id='structure'><title>Structure</title>"
+                + "<rule context='sec'><let name='n' value='count(p)'/>"
+                + "<assert test='$n &gt; 1' diagnostics='d1'>Section <value-of select='@id'/>"
+                + " has <value-of select='$n'/> of <value-of select='$secs'/></assert></rule>"
+                + "<rule context='sec/p'><report test='not(node())'>Empty <name/></report>"
+                + "</rule>"
+                + "<rule context='p'><report test='true()'>Unreached</report></rule>"
+                + "</pattern>"
+                + "<pattern id='refs'><rule context='@ref'>"
+                + "<report test='//sec[@id = current()]'>Ref to <value-of select='.'/></report>"
+                + "</rule><rule context='x:note'><report test='true()'>Note in "
+                + "<value-of select='../@id'/></report></rule></pattern>"
+                + "<diagnostics><diagnostic id='d1'>Add paragraphs to "
+                + "<value-of select='@id'/></diagnostic></diagnostics>" ), null );
+    }
+
+
+    public void testPhases() throws Exception
+    {
+        String schema = schema( "<phase id='refs'><let name='kind' value=\"'ref'\"/>"
+                + "<active pattern='refs'/></phase>"
+                + "<phase id='paras'><active pattern='paras'/></phase>"
+                + "<pattern id='paras'><rule context='p'>"
+                + "<assert test='normalize-space(.)'>Empty p</assert></rule></pattern>"
+                + "<pattern id='refs'><rule context='@ref'><report test='true()'>"
+                + "<value-of select='$kind'/> <value-of select='.'/></report></rule></pattern>" );
+
+        assertSameAsSkeleton( schema, "refs" );
+        assertSameAsSkeleton( schema, "paras" );
+        assertSameAsSkeleton( schema, "#ALL" );
+    }
+
+}